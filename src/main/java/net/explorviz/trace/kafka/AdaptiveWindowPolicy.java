@@ -0,0 +1,171 @@
+package net.explorviz.trace.kafka;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Window size and grace period per landscape. The policy tracks the durations of emitted traces
+ * and the delay of spans w.r.t. stream time per landscape token. Once enough samples are
+ * recorded, the window size is derived from the given quantile of the trace durations (times a
+ * safety factor, such that traces are rarely split) and the grace period from the quantile of
+ * the delays, both within the configured limits. The bounds of a landscape are only recomputed
+ * every {@value #RECOMPUTE_INTERVAL} samples, such that windows stay stable in between. Until
+ * then and for unknown landscapes, the default window size and grace apply. Thread-safe.
+ */
+public class AdaptiveWindowPolicy {
+
+  private static final int RECOMPUTE_INTERVAL = 100;
+  private static final long MAX_SAMPLES = 10_000;
+  private static final long SIZE_FACTOR = 4;
+
+  private final long defaultSizeMs;
+  private final long defaultGraceMs;
+  private final long minSizeMs;
+  private final long maxSizeMs;
+  private final long minGraceMs;
+  private final long maxGraceMs;
+  private final double quantile;
+  private final boolean adaptive;
+
+  private final Map<String, LandscapeWindow> landscapes = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a policy that adapts the windows of each landscape.
+   *
+   * @param defaultSizeMs  window size of landscapes without enough samples
+   * @param defaultGraceMs grace period of landscapes without enough samples
+   * @param minSizeMs      lower limit of the window size
+   * @param maxSizeMs      upper limit of the window size
+   * @param minGraceMs     lower limit of the grace period
+   * @param maxGraceMs     upper limit of the grace period
+   * @param quantile       quantile of the durations and delays to cover, e.g., 0.99
+   */
+  public AdaptiveWindowPolicy(final long defaultSizeMs, final long defaultGraceMs,
+      final long minSizeMs, final long maxSizeMs, final long minGraceMs, final long maxGraceMs,
+      final double quantile) {
+    this(defaultSizeMs, defaultGraceMs, minSizeMs, maxSizeMs, minGraceMs, maxGraceMs, quantile,
+        true);
+  }
+
+  private AdaptiveWindowPolicy(final long defaultSizeMs, final long defaultGraceMs,
+      final long minSizeMs, final long maxSizeMs, final long minGraceMs, final long maxGraceMs,
+      final double quantile, final boolean adaptive) {
+    if (minSizeMs <= 0 || minSizeMs > maxSizeMs || minGraceMs < 0 || minGraceMs > maxGraceMs) {
+      throw new IllegalArgumentException("Invalid window limits");
+    }
+    this.defaultSizeMs = defaultSizeMs;
+    this.defaultGraceMs = defaultGraceMs;
+    this.minSizeMs = minSizeMs;
+    this.maxSizeMs = maxSizeMs;
+    this.minGraceMs = minGraceMs;
+    this.maxGraceMs = maxGraceMs;
+    this.quantile = quantile;
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Creates a policy with the same window size and grace period for all landscapes.
+   *
+   * @param sizeMs  the window size
+   * @param graceMs the grace period
+   * @return the policy
+   */
+  public static AdaptiveWindowPolicy fixed(final long sizeMs, final long graceMs) {
+    return new AdaptiveWindowPolicy(sizeMs, graceMs, sizeMs, sizeMs, graceMs, graceMs, 1, false);
+  }
+
+  /**
+   * Returns the current window size of a landscape.
+   *
+   * @param landscapeToken the landscape token
+   * @return the window size in ms
+   */
+  public long windowSize(final String landscapeToken) {
+    final LandscapeWindow window = this.landscapes.get(landscapeToken);
+    return window == null ? this.defaultSizeMs : window.sizeMs;
+  }
+
+  /**
+   * Returns the current grace period of a landscape.
+   *
+   * @param landscapeToken the landscape token
+   * @return the grace period in ms
+   */
+  public long grace(final String landscapeToken) {
+    final LandscapeWindow window = this.landscapes.get(landscapeToken);
+    return window == null ? this.defaultGraceMs : window.graceMs;
+  }
+
+  /**
+   * Records the duration of an emitted trace.
+   *
+   * @param landscapeToken the landscape token of the trace
+   * @param durationMs     the duration of the trace
+   */
+  public void recordDuration(final String landscapeToken, final long durationMs) {
+    if (this.adaptive) {
+      this.landscapes.computeIfAbsent(landscapeToken, t -> new LandscapeWindow())
+          .recordDuration(durationMs);
+    }
+  }
+
+  /**
+   * Records by how much stream time was ahead of a span when it arrived.
+   *
+   * @param landscapeToken the landscape token of the span
+   * @param delayMs        stream time minus the timestamp of the span
+   */
+  public void recordDelay(final String landscapeToken, final long delayMs) {
+    if (this.adaptive) {
+      this.landscapes.computeIfAbsent(landscapeToken, t -> new LandscapeWindow())
+          .recordDelay(delayMs);
+    }
+  }
+
+  private static long clamp(final long value, final long min, final long max) {
+    return Math.max(min, Math.min(max, value));
+  }
+
+  /**
+   * Samples and derived bounds of a single landscape.
+   */
+  private final class LandscapeWindow {
+
+    private final LatencyHistogram durations = new LatencyHistogram(MAX_SAMPLES);
+    private final LatencyHistogram delays = new LatencyHistogram(MAX_SAMPLES);
+    private int sinceRecompute;
+
+    private volatile long sizeMs = AdaptiveWindowPolicy.this.defaultSizeMs;
+    private volatile long graceMs = AdaptiveWindowPolicy.this.defaultGraceMs;
+
+    /* default */ synchronized void recordDuration(final long durationMs) {
+      this.durations.record(durationMs);
+      this.sampled();
+    }
+
+    /* default */ synchronized void recordDelay(final long delayMs) {
+      this.delays.record(delayMs);
+      this.sampled();
+    }
+
+    private void sampled() {
+      if (++this.sinceRecompute < RECOMPUTE_INTERVAL) {
+        return;
+      }
+      this.sinceRecompute = 0;
+
+      final AdaptiveWindowPolicy policy = AdaptiveWindowPolicy.this;
+      if (this.durations.count() >= RECOMPUTE_INTERVAL) {
+        final long duration = this.durations.quantile(policy.quantile);
+        final long size = duration > Long.MAX_VALUE / SIZE_FACTOR ? Long.MAX_VALUE
+            : duration * SIZE_FACTOR;
+        this.sizeMs = clamp(size, policy.minSizeMs, policy.maxSizeMs);
+      }
+      if (this.delays.count() >= RECOMPUTE_INTERVAL) {
+        this.graceMs = clamp(this.delays.quantile(policy.quantile), policy.minGraceMs,
+            policy.maxGraceMs);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,79 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.kafka.streams.processor.api.FixedKeyProcessor;
+import org.apache.kafka.streams.processor.api.FixedKeyProcessorContext;
+import org.apache.kafka.streams.processor.api.FixedKeyRecord;
+
+/**
+ * Forwards the spans admitted by a {@link LandscapeAdmissionController} and counts the decisions
+ * per landscape. Each task controls the spans of its partitions on its own, hence the limits apply
+ * per landscape and task. Decisions are only counted per token if the tokens are known, i.e.,
+ * checked by the token filter. Otherwise, any agent could create arbitrarily many meters, hence
+ * all decisions are counted as token {@value TopologyProducer#UNKNOWN_TOKEN}.
+ */
+public class AdmissionProcessor implements FixedKeyProcessor<String, LazySpan, LazySpan> {
+
+  private static final LandscapeAdmissionController.Decision[] DECISIONS =
+      LandscapeAdmissionController.Decision.values();
+
+  private final LandscapeAdmissionController controller;
+  private final MeterRegistry registry;
+  private final boolean knownTokens;
+
+  // Counters by token tag, indexed by decision
+  private final Map<String, Counter[]> counters = new HashMap<>();
+
+  private FixedKeyProcessorContext<String, LazySpan> context;
+
+  /**
+   * Creates a new processor.
+   *
+   * @param controller  the admission controller
+   * @param registry    registry for the number of spans per landscape and decision
+   * @param knownTokens whether only spans of known tokens are admitted, such that decisions can
+   *                    be counted per token
+   */
+  public AdmissionProcessor(final LandscapeAdmissionController controller,
+      final MeterRegistry registry, final boolean knownTokens) {
+    this.controller = controller;
+    this.registry = registry;
+    this.knownTokens = knownTokens;
+  }
+
+  @Override
+  public void init(final FixedKeyProcessorContext<String, LazySpan> context) {
+    this.context = context;
+  }
+
+  @Override
+  public void process(final FixedKeyRecord<String, LazySpan> record) {
+    final LazySpan span = record.value();
+    final LandscapeAdmissionController.Decision decision = this.controller.admit(
+        span.getLandscapeToken(), span.getTraceId(), this.context.currentSystemTimeMs());
+
+    final String tag =
+        this.knownTokens ? span.getLandscapeToken() : TopologyProducer.UNKNOWN_TOKEN;
+    this.counters.computeIfAbsent(tag, this::register)[decision.ordinal()].increment();
+    if (decision.isAdmitted()) {
+      this.context.forward(record);
+    }
+  }
+
+  private Counter[] register(final String tag) {
+    final Counter[] landscapeCounters = new Counter[DECISIONS.length];
+    for (final LandscapeAdmissionController.Decision decision : DECISIONS) {
+      landscapeCounters[decision.ordinal()] = Counter.builder("explorviz.trace.admission.spans")
+          .tag("token", tag)
+          .tag("decision", decision.name().toLowerCase(Locale.ROOT).replace('_', '-'))
+          .description("Spans accepted or shed by the admission control")
+          .register(this.registry);
+    }
+    return landscapeCounters;
+  }
+
+}
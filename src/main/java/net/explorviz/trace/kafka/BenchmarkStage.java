@@ -0,0 +1,91 @@
+package net.explorviz.trace.kafka;
+
+/**
+ * Stages of the topology in processing order. In benchmark mode, the topology ends after the
+ * configured stage, such that the throughput of the stages up to it can be measured without the
+ * following ones, e.g., without Cassandra.
+ */
+public enum BenchmarkStage {
+
+  /**
+   * The complete topology, no benchmark.
+   */
+  NONE("none"),
+
+  /**
+   * Consumption of spans, which are only decoded partially.
+   */
+  CONSUMPTION("consumption"),
+
+  /**
+   * Complete decoding and hashing of spans.
+   */
+  HASHING("hashing"),
+
+  /**
+   * Repartitioning of spans by landscapeToken::traceId.
+   */
+  REPARTITION("repartition"),
+
+  /**
+   * Aggregation of spans into traces. In the DSL assembly, every update of a trace is emitted.
+   */
+  AGGREGATION("aggregation"),
+
+  /**
+   * Emission of assembled traces once their window is closed or they are complete.
+   */
+  SUPPRESSION("suppression"),
+
+  /**
+   * Reduction of assembled traces, followed by deduplication and sampling if enabled.
+   */
+  REDUCTION("reduction"),
+
+  /**
+   * Conversion of reduced traces to their database representation.
+   */
+  CONVERSION("conversion"),
+
+  /**
+   * Everything up to the database, i.e., conversion and segmentation, but no Cassandra query.
+   */
+  PERSISTENCE_STUB("persistence-stub");
+
+  private final String configName;
+
+  BenchmarkStage(final String configName) {
+    this.configName = configName;
+  }
+
+  /**
+   * Returns whether the topology ends after this stage, i.e., whether a benchmark is running.
+   */
+  public boolean isBenchmark() {
+    return this != NONE;
+  }
+
+  /**
+   * Returns the name of the stage as used in the configuration and metrics.
+   */
+  public String getConfigName() {
+    return this.configName;
+  }
+
+  /**
+   * Resolves a stage by its name as used in the configuration, e.g. {@code reduction}.
+   *
+   * @param configName the name of the stage
+   * @return the stage
+   * @throws IllegalArgumentException if there is no stage with the given name
+   */
+  public static BenchmarkStage fromConfigName(final String configName) {
+    for (final BenchmarkStage stage : values()) {
+      if (stage.configName.equalsIgnoreCase(configName)) {
+        return stage;
+      }
+    }
+    throw new IllegalArgumentException("Unknown benchmark stage: " + configName);
+  }
+
+}
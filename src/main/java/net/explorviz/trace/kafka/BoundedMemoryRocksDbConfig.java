@@ -0,0 +1,113 @@
+package net.explorviz.trace.kafka;
+
+import java.util.Map;
+import org.apache.kafka.streams.state.RocksDBConfigSetter;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.Cache;
+import org.rocksdb.CompressionType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.Statistics;
+import org.rocksdb.StatsLevel;
+import org.rocksdb.WriteBufferManager;
+
+/**
+ * Bounds the native memory of all RocksDB stores of the process, e.g., the window stores of the
+ * trace aggregation and the spilled suppression buffer. All stores share a single block cache, and
+ * their memtables are accounted against that cache by a shared {@link WriteBufferManager}, such
+ * that memory does not grow with the number of partitions. Index and filter blocks are cached as
+ * well. Trace records repeat many strings, hence they are compressed (LZ4 and ZSTD for the
+ * bottommost level by default). Statistics of each store are collected by
+ * {@link RocksDbStatistics}.
+ *
+ * <p>Configured by the Kafka Streams properties {@value #CACHE_BYTES_CONFIG},
+ * {@value #WRITE_BUFFER_BYTES_CONFIG}, {@value #COMPRESSION_CONFIG} and
+ * {@value #BOTTOMMOST_COMPRESSION_CONFIG}. Cache and write buffer manager are static, i.e., shared
+ * by all stores and Kafka Streams instances of the JVM, and created with the configuration of the
+ * first store that is opened. Later stores with other cache or write buffer sizes, e.g., of another
+ * Kafka Streams instance, use them as well and their sizes are ignored. Compression is configured
+ * per store.</p>
+ */
+public class BoundedMemoryRocksDbConfig implements RocksDBConfigSetter {
+
+  public static final String CACHE_BYTES_CONFIG = "rocksdb.cache.bytes";
+  public static final String WRITE_BUFFER_BYTES_CONFIG = "rocksdb.write-buffer.bytes";
+  public static final String COMPRESSION_CONFIG = "rocksdb.compression";
+  public static final String BOTTOMMOST_COMPRESSION_CONFIG = "rocksdb.bottommost-compression";
+
+  private static final long DEFAULT_CACHE_BYTES = 128L * 1024 * 1024;
+  private static final long DEFAULT_WRITE_BUFFER_BYTES = 32L * 1024 * 1024;
+  private static final String DEFAULT_COMPRESSION = "lz4";
+  private static final String DEFAULT_BOTTOMMOST_COMPRESSION = "zstd";
+  // Share of the cache reserved for index and filter blocks
+  private static final double HIGH_PRIORITY_POOL_RATIO = 0.1;
+
+  private static Cache cache;
+  private static WriteBufferManager writeBufferManager;
+
+  private Statistics statistics;
+
+  @Override
+  public void setConfig(final String storeName, final Options options,
+      final Map<String, Object> configs) {
+    initShared(configs);
+
+    final BlockBasedTableConfig tableConfig = (BlockBasedTableConfig) options.tableFormatConfig();
+    tableConfig.setBlockCache(cache);
+    tableConfig.setCacheIndexAndFilterBlocks(true);
+    tableConfig.setCacheIndexAndFilterBlocksWithHighPriority(true);
+    tableConfig.setPinTopLevelIndexAndFilter(true);
+    options.setTableFormatConfig(tableConfig);
+    options.setWriteBufferManager(writeBufferManager);
+
+    options.setCompressionType(CompressionType.getCompressionType(
+        string(configs, COMPRESSION_CONFIG, DEFAULT_COMPRESSION)));
+    options.setBottommostCompressionType(CompressionType.getCompressionType(
+        string(configs, BOTTOMMOST_COMPRESSION_CONFIG, DEFAULT_BOTTOMMOST_COMPRESSION)));
+
+    this.statistics = new Statistics();
+    this.statistics.setStatsLevel(StatsLevel.EXCEPT_DETAILED_TIMERS);
+    options.setStatistics(this.statistics);
+    RocksDbStatistics.register(this.statistics);
+  }
+
+  @Override
+  public void close(final String storeName, final Options options) {
+    // Cache and write buffer manager are shared and must not be closed
+    if (this.statistics != null) {
+      RocksDbStatistics.unregister(this.statistics);
+      this.statistics.close();
+      this.statistics = null;
+    }
+  }
+
+  /* default */ static synchronized Cache sharedCache() {
+    return cache;
+  }
+
+  /* default */ static synchronized WriteBufferManager sharedWriteBufferManager() {
+    return writeBufferManager;
+  }
+
+  private static synchronized void initShared(final Map<String, Object> configs) {
+    if (cache == null) {
+      final long cacheBytes = bytes(configs, CACHE_BYTES_CONFIG, DEFAULT_CACHE_BYTES);
+      cache = new LRUCache(cacheBytes, -1, false, HIGH_PRIORITY_POOL_RATIO);
+      writeBufferManager = new WriteBufferManager(
+          bytes(configs, WRITE_BUFFER_BYTES_CONFIG, DEFAULT_WRITE_BUFFER_BYTES), cache);
+    }
+  }
+
+  private static long bytes(final Map<String, Object> configs, final String key,
+      final long defaultValue) {
+    final Object value = configs.get(key);
+    return value == null ? defaultValue : Long.parseLong(value.toString().trim());
+  }
+
+  private static String string(final Map<String, Object> configs, final String key,
+      final String defaultValue) {
+    final Object value = configs.get(key);
+    return value == null ? defaultValue : value.toString().trim();
+  }
+
+}
@@ -0,0 +1,40 @@
+package net.explorviz.trace.kafka;
+
+import net.explorviz.avro.Span;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Schema-registry-free serde for single {@link Span}s on internal topics and in state stores, using
+ * the encoding of {@link CompactTraceSerde}. A single span barely repeats strings, but still
+ * benefits from varints and the missing schema id.
+ */
+public class CompactSpanSerde implements Serde<Span> {
+
+  @Override
+  public Serializer<Span> serializer() {
+    return (topic, span) -> {
+      if (span == null) {
+        return null;
+      }
+      final CompactTraceSerde.Writer writer = new CompactTraceSerde.Writer();
+      writer.writeVersion();
+      writer.writeSpan(span, 0L);
+      return writer.toByteArray();
+    };
+  }
+
+  @Override
+  public Deserializer<Span> deserializer() {
+    return (topic, data) -> {
+      if (data == null) {
+        return null;
+      }
+      final CompactTraceSerde.Reader reader = new CompactTraceSerde.Reader(data);
+      reader.checkVersion();
+      return reader.readSpan(0L);
+    };
+  }
+
+}
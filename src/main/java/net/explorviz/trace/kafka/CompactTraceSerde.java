@@ -0,0 +1,315 @@
+package net.explorviz.trace.kafka;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Schema-registry-free serde for {@link Trace}s on internal topics and in state stores. The
+ * spans of a trace mostly repeat the same strings (landscape token, trace id, host, application,
+ * operation), hence each string is written once and afterwards referenced by its index in a
+ * per-record dictionary. Span timestamps are delta-encoded relative to the start of the trace and
+ * the span, respectively, and all numbers are written as varints.
+ */
+public class CompactTraceSerde implements Serde<Trace> {
+
+  private static final byte VERSION = 1;
+
+  // String references: null, new literal, or index into the dictionary (offset by 2)
+  private static final int NULL_STRING = 0;
+  private static final int NEW_STRING = 1;
+  private static final int DICTIONARY_OFFSET = 2;
+
+  private static final int VARINT_PAYLOAD_BITS = 7;
+  private static final int VARINT_PAYLOAD_MASK = 0x7f;
+  private static final int VARINT_CONTINUE = 0x80;
+  private static final int INITIAL_CAPACITY = 256;
+
+  @Override
+  public Serializer<Trace> serializer() {
+    return (topic, trace) -> trace == null ? null : encode(trace);
+  }
+
+  @Override
+  public Deserializer<Trace> deserializer() {
+    return (topic, data) -> data == null ? null : decode(data);
+  }
+
+  /**
+   * Encodes a trace.
+   *
+   * @param trace the trace
+   * @return the encoded trace
+   */
+  public static byte[] encode(final Trace trace) {
+    final Writer writer = new Writer();
+    writer.writeVersion();
+    writer.writeString(trace.getLandscapeToken());
+    writer.writeString(trace.getTraceId());
+    writer.writeVarlong(trace.getStartTimeEpochMilli());
+    writer.writeVarlong(trace.getEndTimeEpochMilli() - trace.getStartTimeEpochMilli());
+    writer.writeVarlong(trace.getDuration());
+    writer.writeVarlong(trace.getOverallRequestCount());
+    writer.writeVarlong(trace.getTraceCount());
+
+    final List<Span> spans = trace.getSpanList();
+    if (spans == null) {
+      writer.writeVarlong(0);
+    } else {
+      writer.writeVarlong(spans.size());
+      for (final Span span : spans) {
+        writer.writeSpan(span, trace.getStartTimeEpochMilli());
+      }
+    }
+    // Appended last, such that earlier encodings without them can still be read
+    writer.writeVarlong(trace.getDroppedSpanCount());
+    writer.writeVarlong(trace.getMinDuration());
+    writer.writeVarlong(trace.getAvgDuration());
+    writer.writeVarlong(trace.getMaxDuration());
+    return writer.toByteArray();
+  }
+
+  /**
+   * Decodes a trace.
+   *
+   * @param data the encoded trace
+   * @return the trace
+   */
+  public static Trace decode(final byte[] data) {
+    final Reader reader = new Reader(data);
+    reader.checkVersion();
+
+    final Trace trace = new Trace();
+    trace.setLandscapeToken(reader.readString());
+    trace.setTraceId(reader.readString());
+    final long start = reader.readVarlong();
+    trace.setStartTimeEpochMilli(start);
+    trace.setEndTimeEpochMilli(start + reader.readVarlong());
+    trace.setDuration(reader.readVarlong());
+    trace.setOverallRequestCount((int) reader.readVarlong());
+    trace.setTraceCount((int) reader.readVarlong());
+
+    final int spanCount = reader.readLength();
+    // Linked list just as in the TraceAggregator
+    final List<Span> spans = new LinkedList<>();
+    for (int i = 0; i < spanCount; i++) {
+      spans.add(reader.readSpan(start));
+    }
+    trace.setSpanList(spans);
+    if (reader.hasRemaining()) {
+      trace.setDroppedSpanCount((int) reader.readVarlong());
+    }
+    if (reader.hasRemaining()) {
+      trace.setMinDuration(reader.readVarlong());
+      trace.setAvgDuration(reader.readVarlong());
+      trace.setMaxDuration(reader.readVarlong());
+    }
+    return trace;
+  }
+
+  /**
+   * Appends varints and dictionary-encoded strings to a growing buffer.
+   */
+  /* default */ static final class Writer {
+
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int position;
+
+    /* default */ void writeSpan(final Span span, final long baseTime) {
+      this.writeString(span.getLandscapeToken());
+      this.writeString(span.getSpanId());
+      this.writeString(span.getParentSpanId());
+      this.writeString(span.getTraceId());
+      this.writeVarlong(span.getStartTimeEpochMilli() - baseTime);
+      this.writeVarlong(span.getEndTimeEpochMilli() - span.getStartTimeEpochMilli());
+      this.writeString(span.getFullyQualifiedOperationName());
+      this.writeString(span.getHostname());
+      this.writeString(span.getHostIpAddress());
+      this.writeString(span.getAppName());
+      this.writeString(span.getAppInstanceId());
+      this.writeString(span.getAppLanguage());
+      this.writeString(span.getHashCode());
+
+      final ByteBuffer hash = span.getHashCodeBinary();
+      if (hash == null) {
+        this.writeVarlong(0);
+      } else {
+        this.writeVarlong(hash.remaining() + 1L);
+        this.ensureCapacity(hash.remaining());
+        hash.duplicate().get(this.buffer, this.position, hash.remaining());
+        this.position += hash.remaining();
+      }
+    }
+
+    /* default */ void writeVersion() {
+      this.ensureCapacity(1);
+      this.buffer[this.position++] = VERSION;
+    }
+
+    /* default */ void writeString(final String value) {
+      if (value == null) {
+        this.writeVarlong(NULL_STRING);
+        return;
+      }
+
+      final Integer index = this.dictionary.get(value);
+      if (index != null) {
+        this.writeVarlong(index + DICTIONARY_OFFSET);
+        return;
+      }
+
+      this.dictionary.put(value, this.dictionary.size());
+      final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      this.writeVarlong(NEW_STRING);
+      this.writeVarlong(bytes.length);
+      this.ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+      this.position += bytes.length;
+    }
+
+    /**
+     * Writes a zig-zag encoded varint, such that small negative values take few bytes as well.
+     */
+    /* default */ void writeVarlong(final long value) {
+      long v = value << 1 ^ value >> 63;
+      this.ensureCapacity(Long.BYTES + 2);
+      while ((v & ~VARINT_PAYLOAD_MASK) != 0) {
+        this.buffer[this.position++] = (byte) (v & VARINT_PAYLOAD_MASK | VARINT_CONTINUE);
+        v >>>= VARINT_PAYLOAD_BITS;
+      }
+      this.buffer[this.position++] = (byte) v;
+    }
+
+    /* default */ byte[] toByteArray() {
+      return Arrays.copyOf(this.buffer, this.position);
+    }
+
+    private void ensureCapacity(final int bytes) {
+      if (this.position + bytes > this.buffer.length) {
+        this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2,
+            this.position + bytes));
+      }
+    }
+  }
+
+  /**
+   * Reads what a {@link Writer} wrote. Lengths and dictionary references are validated, such that
+   * corrupt records fail with a {@link SerializationException}.
+   */
+  /* default */ static final class Reader {
+
+    private final List<String> dictionary = new ArrayList<>();
+    private final byte[] data;
+    private int position;
+
+    /* default */ Reader(final byte[] data) {
+      this.data = data;
+    }
+
+    /* default */ void checkVersion() {
+      if (this.data.length == 0 || this.data[this.position++] != VERSION) {
+        throw new SerializationException("Unknown version of compact encoding");
+      }
+    }
+
+    /* default */ boolean hasRemaining() {
+      return this.position < this.data.length;
+    }
+
+    /* default */ Span readSpan(final long baseTime) {
+      final Span span = new Span();
+      span.setLandscapeToken(this.readString());
+      span.setSpanId(this.readString());
+      span.setParentSpanId(this.readString());
+      span.setTraceId(this.readString());
+      final long start = baseTime + this.readVarlong();
+      span.setStartTimeEpochMilli(start);
+      span.setEndTimeEpochMilli(start + this.readVarlong());
+      span.setFullyQualifiedOperationName(this.readString());
+      span.setHostname(this.readString());
+      span.setHostIpAddress(this.readString());
+      span.setAppName(this.readString());
+      span.setAppInstanceId(this.readString());
+      span.setAppLanguage(this.readString());
+      span.setHashCode(this.readString());
+
+      // Length plus one, 0 if absent
+      final long hashLength = this.readVarlong();
+      if (hashLength > 0) {
+        final int length = this.checkRemaining(hashLength - 1);
+        span.setHashCodeBinary(
+            ByteBuffer.wrap(Arrays.copyOfRange(this.data, this.position, this.position + length)));
+        this.position += length;
+      }
+      return span;
+    }
+
+    /* default */ String readString() {
+      final long reference = this.readVarlong();
+      if (reference == NULL_STRING) {
+        return null;
+      }
+      if (reference >= DICTIONARY_OFFSET) {
+        if (reference - DICTIONARY_OFFSET >= this.dictionary.size()) {
+          throw new SerializationException("Unknown string reference in compact encoding");
+        }
+        return this.dictionary.get((int) (reference - DICTIONARY_OFFSET));
+      }
+      if (reference != NEW_STRING) {
+        throw new SerializationException("Invalid string reference in compact encoding");
+      }
+
+      final int length = this.readLength();
+      final String value = new String(this.data, this.position, length, StandardCharsets.UTF_8);
+      this.position += length;
+      this.dictionary.add(value);
+      return value;
+    }
+
+    /* default */ long readVarlong() {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+        if (this.position >= this.data.length) {
+          throw new SerializationException("Truncated compact encoding");
+        }
+        if (shift >= Long.SIZE) {
+          throw new SerializationException("Malformed varint in compact encoding");
+        }
+        b = this.data[this.position++];
+        value |= (long) (b & VARINT_PAYLOAD_MASK) << shift;
+        shift += VARINT_PAYLOAD_BITS;
+      } while ((b & VARINT_CONTINUE) != 0);
+      return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * Reads a count or length, which can not exceed the remaining bytes, since each element takes
+     * at least one byte.
+     */
+    /* default */ int readLength() {
+      return this.checkRemaining(this.readVarlong());
+    }
+
+    private int checkRemaining(final long length) {
+      if (length < 0 || length > this.data.length - this.position) {
+        throw new SerializationException("Invalid length in compact encoding: " + length);
+      }
+      return (int) length;
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.processor.Punctuator;
+import org.apache.kafka.streams.processor.api.ProcessingContext;
+
+/**
+ * Advancement of stream time for idle partitions. Stream time is driven by the timestamps of
+ * incoming spans only, hence buffered traces of a partition that stops receiving spans are never
+ * emitted. If enabled, processors that track their own stream time check in a wall-clock interval
+ * whether their partition has been idle for the configured timeout. If so, stream time advances
+ * with wall-clock time from the last observed span on, such that windows close eventually.
+ */
+public class IdleAdvancement {
+
+  /**
+   * Never advances stream time.
+   */
+  public static final IdleAdvancement DISABLED = new IdleAdvancement(0, Duration.ZERO, null);
+
+  private final long idleTimeoutMs;
+  private final Duration interval;
+  private final Timer waitTimer;
+
+  /**
+   * Creates a new idle advancement.
+   *
+   * @param idleTimeoutMs wall-clock time without spans after which a partition is idle
+   * @param interval      wall-clock interval in which idleness is checked
+   * @param registry      registry for the wait time of traces emitted due to idleness
+   */
+  public IdleAdvancement(final long idleTimeoutMs, final Duration interval,
+      final MeterRegistry registry) {
+    this.idleTimeoutMs = idleTimeoutMs;
+    this.interval = interval;
+    this.waitTimer = registry == null ? null
+        : Timer.builder("explorviz.trace.idle.wait")
+            .description("Wall-clock time traces waited for an idle partition to be flushed")
+            .register(registry);
+  }
+
+  public boolean isEnabled() {
+    return this.idleTimeoutMs > 0;
+  }
+
+  /**
+   * Schedules the idleness check if enabled.
+   *
+   * @param context   the context of the processor
+   * @param punctuator called with the current wall-clock time
+   */
+  public void schedule(final ProcessingContext context, final Punctuator punctuator) {
+    if (this.isEnabled()) {
+      context.schedule(this.interval, PunctuationType.WALL_CLOCK_TIME, punctuator);
+    }
+  }
+
+  /**
+   * Creates a tracker of the stream time of a single processor.
+   *
+   * @return a new tracker
+   */
+  public StreamTime streamTime() {
+    return new StreamTime();
+  }
+
+  /**
+   * Stream time as observed by a single processor, i.e., partition, which is advanced while the
+   * partition is idle. Stream time never decreases.
+   */
+  public final class StreamTime {
+
+    private long streamTime = -1L;
+    private long lastSpanWallClock;
+    private long advancedMs;
+
+    private StreamTime() {
+      // Created by the outer class
+    }
+
+    /**
+     * Observes the timestamp of a span.
+     *
+     * @param timestamp the timestamp of the span
+     * @param now       the current wall-clock time
+     */
+    public void observe(final long timestamp, final long now) {
+      this.streamTime = Math.max(this.streamTime, timestamp);
+      this.lastSpanWallClock = now;
+      this.advancedMs = 0L;
+    }
+
+    /**
+     * Returns the current stream time.
+     */
+    public long get() {
+      return this.streamTime;
+    }
+
+    /**
+     * Checks whether the partition is idle and, if so, advances the stream time.
+     *
+     * @param now the current wall-clock time
+     * @return the wall-clock time the partition has been idle or zero if it is not idle (yet)
+     */
+    public long advanceIfIdle(final long now) {
+      final long idleMs = now - this.lastSpanWallClock;
+      if (!IdleAdvancement.this.isEnabled() || this.streamTime < 0
+          || idleMs < IdleAdvancement.this.idleTimeoutMs) {
+        return 0L;
+      }
+      // Continue stream time from the last advancement on in wall-clock time
+      this.streamTime += idleMs - this.advancedMs;
+      this.advancedMs = idleMs;
+      return idleMs;
+    }
+
+    /**
+     * Records that a trace was emitted because its partition was idle.
+     *
+     * @param idleMs wall-clock time the trace waited for further spans of its partition
+     */
+    public void recordWait(final long idleMs) {
+      if (IdleAdvancement.this.waitTimer != null) {
+        IdleAdvancement.this.waitTimer.record(Duration.ofMillis(idleMs));
+      }
+    }
+  }
+
+}
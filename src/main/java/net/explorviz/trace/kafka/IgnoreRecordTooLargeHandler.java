@@ -1,19 +1,29 @@
 package net.explorviz.trace.kafka;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.errors.RecordTooLargeException;
 import org.apache.kafka.streams.errors.ProductionExceptionHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * {@link ProductionExceptionHandler} used in the application.properties file. Currently, the
  * windowing may result in too big records ({@link RecordTooLargeException}) and the resulting
  * unhandled exception will result in an ERROR state, i.e., complete shutdown of the application.
- * Therefore, we catch the exception, discard the record, and proceed.
+ * Therefore, we catch the exception, discard the record, and proceed. Discarded records are logged
+ * and counted, see {@link #bindTo(MeterRegistry)}. The append-only assembly, which is used if
+ * traces are segmented, only produces records of single spans to its changelogs.
  */
 public class IgnoreRecordTooLargeHandler implements ProductionExceptionHandler {
 
-  // TODO how to get MicroMeterRegistry when there is no DI context?
+  private static final Logger LOGGER = LoggerFactory.getLogger(IgnoreRecordTooLargeHandler.class);
+
+  // Handlers are created by Kafka Streams, i.e., outside the DI context
+  private static final AtomicLong DISCARDED = new AtomicLong();
 
   @Override
   public void configure(final Map<String, ?> configs) {
@@ -24,9 +34,26 @@ public class IgnoreRecordTooLargeHandler implements ProductionExceptionHandler {
   public ProductionExceptionHandlerResponse handle(final ProducerRecord<byte[], byte[]> record,
       final Exception exception) {
     if (exception instanceof RecordTooLargeException) {
+      DISCARDED.incrementAndGet();
+      if (LOGGER.isWarnEnabled()) {
+        LOGGER.warn("Discarded record of {} bytes for topic {}: {}",
+            record.value() == null ? 0 : record.value().length, record.topic(),
+            exception.getMessage());
+      }
       return ProductionExceptionHandlerResponse.CONTINUE;
     } else {
       return ProductionExceptionHandlerResponse.FAIL;
     }
   }
+
+  /**
+   * Exports the number of discarded records as {@code explorviz.trace.records.too-large}.
+   *
+   * @param registry the registry
+   */
+  public static void bindTo(final MeterRegistry registry) {
+    FunctionCounter.builder("explorviz.trace.records.too-large", DISCARDED, AtomicLong::get)
+        .description("Records discarded since they exceed the maximum request size")
+        .register(registry);
+  }
 }
@@ -0,0 +1,216 @@
+package net.explorviz.trace.kafka;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.service.TraceAggregate;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyQueryMetadata;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StoreQueryParameters;
+import org.apache.kafka.streams.StreamsMetadata;
+import org.apache.kafka.streams.errors.InvalidStateStoreException;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.state.HostInfo;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.QueryableStoreTypes;
+import org.apache.kafka.streams.state.ReadOnlyWindowStore;
+import org.apache.kafka.streams.state.WindowStoreIterator;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Interactive queries of traces that are still assembled, i.e., whose window is not closed yet and
+ * which are thus not persisted. The windowed aggregates are materialized in the
+ * {@link #AGGREGATE_STORE} if enabled. Each instance only holds the aggregates of its own tasks,
+ * the other instances are located by the {@code application.server} they advertise.
+ */
+@ApplicationScoped
+public class InFlightTraceQuery {
+
+  /**
+   * Name of the store of the windowed aggregates.
+   */
+  public static final String AGGREGATE_STORE = "trace-aggregate-store";
+
+  private static final String KEY_SEPARATOR = "::";
+  // Sorts after the trace ids of a landscape
+  private static final String KEY_MAX = "\uffff";
+
+  @ConfigProperty(name = "explorviz.kafka-streams.interactive-queries.enabled")
+  /* default */ boolean enabled;
+  @ConfigProperty(name = "explorviz.kafka-streams.window.size")
+  /* default */ long windowSizeInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.window.grace")
+  /* default */ long graceSizeInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.partitioning.mode")
+  /* default */ String partitioningMode;
+  @ConfigProperty(name = "explorviz.kafka-streams.partitioning.upstream-key")
+  /* default */ String upstreamKey;
+  @ConfigProperty(name = "kafka-streams.application.server")
+  /* default */ Optional<String> applicationServer;
+
+  @Inject
+  /* default */ KafkaStreams streams;
+
+  public boolean isEnabled() {
+    return this.enabled;
+  }
+
+  /**
+   * Returns the traces of a landscape that are assembled by this instance.
+   *
+   * @param landscapeToken the token of the landscape
+   * @return the partially assembled traces, one per trace and window
+   * @throws InvalidStateStoreException if the store is not available, e.g., while rebalancing
+   */
+  public List<Trace> localTraces(final String landscapeToken) {
+    return ofLandscape(this.store(), landscapeToken, this.openSince(), this.isKeyedByTraceId());
+  }
+
+  /**
+   * Returns the fragments of a trace that are assembled by this instance.
+   *
+   * @param landscapeToken the token of the landscape
+   * @param traceId        the id of the trace
+   * @return the partially assembled trace, one fragment per window
+   * @throws InvalidStateStoreException if the store is not available, e.g., while rebalancing
+   */
+  public List<Trace> localTrace(final String landscapeToken, final String traceId) {
+    return ofTrace(this.store(), this.keyOf(landscapeToken, traceId), landscapeToken,
+        this.openSince());
+  }
+
+  /**
+   * Locates the instance that assembles a trace.
+   *
+   * @param landscapeToken the token of the landscape
+   * @param traceId        the id of the trace
+   * @return the other instance, or empty if the trace is assembled by this instance
+   * @throws InvalidStateStoreException if the owner is unknown, e.g., while rebalancing
+   */
+  public Optional<HostInfo> remoteOwnerOf(final String landscapeToken, final String traceId) {
+    final Optional<HostInfo> self = this.self();
+    if (self.isEmpty()) {
+      // Without an advertised endpoint, this is the only instance
+      return Optional.empty();
+    }
+
+    final KeyQueryMetadata metadata = this.streams.queryMetadataForKey(AGGREGATE_STORE,
+        this.keyOf(landscapeToken, traceId), Serdes.String().serializer());
+    if (KeyQueryMetadata.NOT_AVAILABLE.equals(metadata)) {
+      throw new InvalidStateStoreException("Owner of trace " + traceId + " is unknown");
+    }
+    if (self.get().equals(metadata.activeHost())) {
+      return Optional.empty();
+    }
+    return Optional.of(metadata.activeHost());
+  }
+
+  /**
+   * Returns the other instances that hold aggregates.
+   */
+  public List<HostInfo> remoteHosts() {
+    final Optional<HostInfo> self = this.self();
+    final List<HostInfo> hosts = new ArrayList<>();
+    if (self.isEmpty()) {
+      return hosts;
+    }
+
+    final Collection<StreamsMetadata> metadata = this.streams.streamsMetadataForStore(
+        AGGREGATE_STORE);
+    for (final StreamsMetadata instance : metadata) {
+      if (!self.get().equals(instance.hostInfo())) {
+        hosts.add(instance.hostInfo());
+      }
+    }
+    return hosts;
+  }
+
+  /**
+   * Collects the aggregates of a landscape in windows that started at or after the given time.
+   * Only the key range of the landscape is read, unless the keys do not contain the token.
+   */
+  /* default */ static List<Trace> ofLandscape(
+      final ReadOnlyWindowStore<String, TraceAggregate> store, final String landscapeToken,
+      final Instant from, final boolean keyedByTraceId) {
+    final Instant to = Instant.ofEpochMilli(Long.MAX_VALUE);
+    final List<Trace> traces = new ArrayList<>();
+    try (KeyValueIterator<Windowed<String>, TraceAggregate> it = keyedByTraceId
+        ? store.fetchAll(from, to)
+        : store.fetch(landscapeToken + KEY_SEPARATOR, landscapeToken + KEY_SEPARATOR + KEY_MAX,
+            from, to)) {
+      while (it.hasNext()) {
+        final TraceAggregate aggregate = it.next().value;
+        if (aggregate != null
+            && landscapeToken.equals(aggregate.getTrace().getLandscapeToken())) {
+          traces.add(aggregate.getTrace());
+        }
+      }
+    }
+    return traces;
+  }
+
+  /**
+   * Collects the aggregates of a key in windows that started at or after the given time.
+   */
+  /* default */ static List<Trace> ofTrace(
+      final ReadOnlyWindowStore<String, TraceAggregate> store, final String key,
+      final String landscapeToken, final Instant from) {
+    final List<Trace> traces = new ArrayList<>();
+    try (WindowStoreIterator<TraceAggregate> it =
+        store.fetch(key, from, Instant.ofEpochMilli(Long.MAX_VALUE))) {
+      while (it.hasNext()) {
+        final KeyValue<Long, TraceAggregate> window = it.next();
+        if (window.value != null
+            && landscapeToken.equals(window.value.getTrace().getLandscapeToken())) {
+          traces.add(window.value.getTrace());
+        }
+      }
+    }
+    return traces;
+  }
+
+  private ReadOnlyWindowStore<String, TraceAggregate> store() {
+    return this.streams.store(
+        StoreQueryParameters.fromNameAndType(AGGREGATE_STORE, QueryableStoreTypes.windowStore()));
+  }
+
+  /**
+   * Start of the earliest window that may still be open. Windows are assigned by the span
+   * timestamps, which approximate the wall-clock time.
+   */
+  private Instant openSince() {
+    return Instant.now().minusMillis(this.windowSizeInMs + this.graceSizeInMs);
+  }
+
+  /**
+   * Key of a trace in the aggregate store, see the partitioning of {@link TopologyProducer}.
+   */
+  private String keyOf(final String landscapeToken, final String traceId) {
+    if (this.isKeyedByTraceId()) {
+      return traceId;
+    }
+    return landscapeToken + KEY_SEPARATOR + traceId;
+  }
+
+  /**
+   * Whether the aggregates are keyed by the bare trace id, i.e., co-partitioned with the trace id
+   * as upstream key.
+   */
+  private boolean isKeyedByTraceId() {
+    return TopologyProducer.PARTITIONING_CO_PARTITIONED.equals(this.partitioningMode)
+        && TopologyProducer.UPSTREAM_KEY_TRACE_ID.equals(this.upstreamKey);
+  }
+
+  private Optional<HostInfo> self() {
+    return this.applicationServer.filter(endpoint -> !endpoint.isBlank())
+        .map(HostInfo::buildFromEndpoint);
+  }
+
+}
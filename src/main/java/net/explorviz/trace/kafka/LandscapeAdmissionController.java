@@ -0,0 +1,200 @@
+package net.explorviz.trace.kafka;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Admission control of spans per landscape, such that a single flooding landscape does not slow
+ * down the assembly of all others. Each landscape has a token bucket that limits its rate of spans
+ * and a maximum number of open traces, i.e., traces that received a span within the trace timeout.
+ * Only the first span of a trace is subject to the limits. Spans of traces that are already open
+ * are always admitted, such that admitted traces stay complete, but still consume tokens of the
+ * bucket (down to a debt of one burst), which delays the admission of new traces. Spans beyond a
+ * limit are shed according to the {@link SheddingPolicy}. Landscapes without open traces whose
+ * bucket is refilled completely are forgotten. Times are wall-clock times. Not thread-safe.
+ */
+public class LandscapeAdmissionController {
+
+  private static final double MS_PER_SECOND = 1000.0;
+  private static final int SAMPLE_RESOLUTION = 10_000;
+
+  /**
+   * Outcome of the admission of a span.
+   */
+  public enum Decision {
+    /** Admitted within the limits. */
+    ACCEPTED,
+    /** Admitted beyond the limits since its trace is sampled. */
+    SAMPLED,
+    /** Shed since the rate limit of its landscape is exceeded. */
+    RATE_LIMITED,
+    /** Shed since its landscape has too many open traces. */
+    TRACE_LIMITED;
+
+    public boolean isAdmitted() {
+      return this == ACCEPTED || this == SAMPLED;
+    }
+  }
+
+  /**
+   * Handling of spans beyond the limits of their landscape.
+   */
+  public enum SheddingPolicy {
+
+    /**
+     * Drops all spans beyond the limits.
+     */
+    DROP_NEWEST("drop-newest"),
+
+    /**
+     * Keeps all spans of a fixed sample of traces, selected by the trace id, and drops the others.
+     */
+    SAMPLE("sample");
+
+    private final String configName;
+
+    SheddingPolicy(final String configName) {
+      this.configName = configName;
+    }
+
+    /**
+     * Resolves a policy by its name as used in the configuration, e.g. {@code drop-newest}.
+     *
+     * @param configName the name of the policy
+     * @return the policy
+     * @throws IllegalArgumentException if there is no policy with the given name
+     */
+    public static SheddingPolicy fromConfigName(final String configName) {
+      for (final SheddingPolicy policy : values()) {
+        if (policy.configName.equalsIgnoreCase(configName)) {
+          return policy;
+        }
+      }
+      throw new IllegalArgumentException("Unknown shedding policy: " + configName);
+    }
+  }
+
+  private final double spansPerMs;
+  private final double burst;
+  private final int maxOpenTraces;
+  private final long traceTimeoutMs;
+  private final SheddingPolicy policy;
+  private final int sampleThreshold;
+  // Time without spans after which a landscape is in its initial state again
+  private final long idleMs;
+
+  // Least recently active first
+  private final Map<String, Landscape> landscapes = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Creates a new controller.
+   *
+   * @param spansPerSecond sustained rate of spans per landscape
+   * @param burst          number of spans a landscape may send at once
+   * @param maxOpenTraces  maximum number of open traces per landscape
+   * @param traceTimeoutMs time after the last span of a trace after which it is no longer open
+   * @param policy         the handling of spans beyond the limits
+   * @param sampleRate     fraction of traces kept beyond the limits when sampling
+   */
+  public LandscapeAdmissionController(final double spansPerSecond, final long burst,
+      final int maxOpenTraces, final long traceTimeoutMs, final SheddingPolicy policy,
+      final double sampleRate) {
+    if (spansPerSecond <= 0 || burst < 1 || maxOpenTraces < 1) {
+      throw new IllegalArgumentException("Invalid admission limits");
+    }
+    this.spansPerMs = spansPerSecond / MS_PER_SECOND;
+    this.burst = burst;
+    this.maxOpenTraces = maxOpenTraces;
+    this.traceTimeoutMs = traceTimeoutMs;
+    this.policy = policy;
+    this.sampleThreshold = (int) (sampleRate * SAMPLE_RESOLUTION);
+    // All open traces expired and the bucket refilled from the maximum debt
+    this.idleMs = traceTimeoutMs + (long) Math.ceil(2 * burst / this.spansPerMs);
+  }
+
+  /**
+   * Decides whether to admit a span.
+   *
+   * @param landscapeToken the landscape token of the span
+   * @param traceId        the trace id of the span
+   * @param now            the current wall-clock time
+   * @return the decision
+   */
+  public Decision admit(final String landscapeToken, final String traceId, final long now) {
+    final Landscape landscape =
+        this.landscapes.computeIfAbsent(landscapeToken, t -> new Landscape(this.burst, now));
+    landscape.refill(now, this.spansPerMs, this.burst);
+    landscape.expire(now, this.traceTimeoutMs);
+    this.forgetIdle(now);
+
+    final Decision limited;
+    if (landscape.openTraces.containsKey(traceId)) {
+      // Charged, but never shed
+      landscape.tokens = Math.max(-this.burst, landscape.tokens - 1);
+      landscape.openTraces.put(traceId, now);
+      return Decision.ACCEPTED;
+    } else if (landscape.openTraces.size() >= this.maxOpenTraces) {
+      limited = Decision.TRACE_LIMITED;
+    } else if (landscape.tokens < 1) {
+      limited = Decision.RATE_LIMITED;
+    } else {
+      landscape.tokens--;
+      landscape.openTraces.put(traceId, now);
+      return Decision.ACCEPTED;
+    }
+
+    if (this.policy == SheddingPolicy.SAMPLE && this.isSampled(traceId)) {
+      // Not tracked as open, such that the limits still hold for the admitted traces
+      return Decision.SAMPLED;
+    }
+    return limited;
+  }
+
+  /**
+   * Removes the least recently active landscapes that have been idle long enough to be in their
+   * initial state again.
+   */
+  private void forgetIdle(final long now) {
+    final Iterator<Landscape> it = this.landscapes.values().iterator();
+    while (it.hasNext() && now - it.next().lastRefill > this.idleMs) {
+      it.remove();
+    }
+  }
+
+  /* default */ int landscapeCount() {
+    return this.landscapes.size();
+  }
+
+  private boolean isSampled(final String traceId) {
+    return Math.floorMod(traceId.hashCode(), SAMPLE_RESOLUTION) < this.sampleThreshold;
+  }
+
+  private static final class Landscape {
+
+    // Last span per open trace, least recently active first
+    private final LinkedHashMap<String, Long> openTraces = new LinkedHashMap<>(16, 0.75f, true);
+    private double tokens;
+    private long lastRefill;
+
+    private Landscape(final double tokens, final long now) {
+      this.tokens = tokens;
+      this.lastRefill = now;
+    }
+
+    private void refill(final long now, final double spansPerMs, final double burst) {
+      if (now > this.lastRefill) {
+        this.tokens = Math.min(burst, this.tokens + (now - this.lastRefill) * spansPerMs);
+        this.lastRefill = now;
+      }
+    }
+
+    private void expire(final long now, final long traceTimeoutMs) {
+      final Iterator<Long> it = this.openTraces.values().iterator();
+      while (it.hasNext() && now - it.next() > traceTimeoutMs) {
+        it.remove();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,59 @@
+package net.explorviz.trace.kafka;
+
+import org.apache.kafka.streams.processor.api.FixedKeyProcessor;
+import org.apache.kafka.streams.processor.api.FixedKeyProcessorContext;
+import org.apache.kafka.streams.processor.api.FixedKeyRecord;
+
+/**
+ * Marks spans whose tumbling window is already closed w.r.t. the observed stream time as late,
+ * i.e., the spans the subsequent windowed aggregation would drop. Must be placed in the same task
+ * as the aggregation and see the same spans, such that both observe the same stream time. Keys
+ * are not changed, hence no repartitioning is introduced in between. All spans are forwarded.
+ * The window of a span is derived from its own timestamp, which matches the windowed aggregation
+ * only since its windows are fixed. The append-only assembly ties traces to windows and detects
+ * late spans itself (see {@link WindowedTraceAssemblyProcessor}).
+ */
+public class LateSpanRouter implements FixedKeyProcessor<String, LazySpan, LazySpan> {
+
+  private final AdaptiveWindowPolicy windowPolicy;
+  private final IdleAdvancement idleAdvancement;
+
+  private FixedKeyProcessorContext<String, LazySpan> context;
+  private IdleAdvancement.StreamTime streamTime;
+
+  /**
+   * Creates a new router.
+   *
+   * @param windowPolicy    size and grace period of the windows as used by the aggregation
+   * @param idleAdvancement advancement of stream time as done by the aggregation
+   */
+  public LateSpanRouter(final AdaptiveWindowPolicy windowPolicy,
+      final IdleAdvancement idleAdvancement) {
+    this.windowPolicy = windowPolicy;
+    this.idleAdvancement = idleAdvancement;
+  }
+
+  @Override
+  public void init(final FixedKeyProcessorContext<String, LazySpan> context) {
+    this.context = context;
+    this.streamTime = this.idleAdvancement.streamTime();
+    this.idleAdvancement.schedule(context, this.streamTime::advanceIfIdle);
+  }
+
+  @Override
+  public void process(final FixedKeyRecord<String, LazySpan> record) {
+    if (record.value() != null) {
+      final long timestamp = record.timestamp();
+      this.streamTime.observe(timestamp, this.context.currentSystemTimeMs());
+
+      final String landscapeToken = record.value().getLandscapeToken();
+      final long windowSizeMs = this.windowPolicy.windowSize(landscapeToken);
+      final long windowEnd = timestamp - timestamp % windowSizeMs + windowSizeMs;
+      if (windowEnd + this.windowPolicy.grace(landscapeToken) <= this.streamTime.get()) {
+        record.value().markLate();
+      }
+    }
+    this.context.forward(record);
+  }
+
+}
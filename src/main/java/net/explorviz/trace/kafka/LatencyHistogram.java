@@ -0,0 +1,61 @@
+package net.explorviz.trace.kafka;
+
+/**
+ * Histogram of non-negative durations in milliseconds with exponentially growing buckets, i.e.,
+ * bucket i holds values of bit length i. Once the configured number of samples is exceeded, all
+ * counts are halved, such that the histogram follows changes of the distribution. Not thread-safe.
+ */
+/* default */ class LatencyHistogram {
+
+  private static final int BUCKETS = Long.SIZE;
+
+  private final long[] counts = new long[BUCKETS];
+  private final long maxSamples;
+  private long total;
+
+  /**
+   * Creates a new histogram.
+   *
+   * @param maxSamples number of samples after which the counts decay
+   */
+  /* default */ LatencyHistogram(final long maxSamples) {
+    this.maxSamples = maxSamples;
+  }
+
+  /* default */ void record(final long valueMs) {
+    final long value = Math.max(0L, valueMs);
+    this.counts[BUCKETS - Long.numberOfLeadingZeros(value)]++;
+    this.total++;
+
+    if (this.total > this.maxSamples) {
+      this.total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        this.counts[i] /= 2;
+        this.total += this.counts[i];
+      }
+    }
+  }
+
+  /* default */ long count() {
+    return this.total;
+  }
+
+  /**
+   * Returns an upper bound of the given quantile, i.e., the upper end of the bucket it falls into.
+   *
+   * @param quantile the quantile between 0 and 1
+   * @return upper bound of the quantile in ms, or 0 if there are no samples
+   */
+  /* default */ long quantile(final double quantile) {
+    final long rank = (long) Math.ceil(quantile * this.total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += this.counts[i];
+      if (seen >= rank && seen > 0) {
+        return i == 0 ? 0L : (1L << i) - 1;
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+}
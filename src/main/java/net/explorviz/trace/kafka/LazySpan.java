@@ -0,0 +1,107 @@
+package net.explorviz.trace.kafka;
+
+import net.explorviz.avro.Span;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/**
+ * A span record of which only the fields needed for partitioning and windowing, i.e., landscape
+ * token, trace id, and start time, are decoded eagerly. The complete {@link Span} is only decoded
+ * on the first call of {@link #span()}. Until then, the record can be forwarded to repartition
+ * topics as is, without encoding it again.
+ */
+public class LazySpan {
+
+  private final String topic;
+  private final byte[] data;
+  private final Deserializer<Span> deserializer;
+
+  private final String landscapeToken;
+  private final String traceId;
+  private final long startTimeEpochMilli;
+
+  private Span span;
+  private boolean late;
+
+  /**
+   * Creates a new lazy span.
+   *
+   * @param topic               the topic the record was read from
+   * @param data                the serialized span
+   * @param deserializer        the deserializer to decode the complete span with
+   * @param landscapeToken      the eagerly decoded landscape token
+   * @param traceId             the eagerly decoded trace id
+   * @param startTimeEpochMilli the eagerly decoded start time
+   */
+  public LazySpan(final String topic, final byte[] data, final Deserializer<Span> deserializer,
+      final String landscapeToken, final String traceId, final long startTimeEpochMilli) {
+    this.topic = topic;
+    this.data = data;
+    this.deserializer = deserializer;
+    this.landscapeToken = landscapeToken;
+    this.traceId = traceId;
+    this.startTimeEpochMilli = startTimeEpochMilli;
+  }
+
+  /**
+   * Creates a new lazy span of which the complete span has already been decoded.
+   *
+   * @param topic        the topic the record was read from
+   * @param data         the serialized span
+   * @param deserializer the deserializer the span was decoded with
+   * @param span         the decoded span
+   */
+  public LazySpan(final String topic, final byte[] data, final Deserializer<Span> deserializer,
+      final Span span) {
+    this(topic, data, deserializer, span.getLandscapeToken(), span.getTraceId(),
+        span.getStartTimeEpochMilli());
+    this.span = span;
+  }
+
+  public String getLandscapeToken() {
+    return this.landscapeToken;
+  }
+
+  public String getTraceId() {
+    return this.traceId;
+  }
+
+  public long getStartTimeEpochMilli() {
+    return this.startTimeEpochMilli;
+  }
+
+  /**
+   * Returns the complete span, decoding it on the first call.
+   *
+   * @return the decoded span
+   */
+  public Span span() {
+    if (this.span == null) {
+      this.span = this.deserializer.deserialize(this.topic, this.data);
+    }
+    return this.span;
+  }
+
+  /**
+   * Whether the complete span has been decoded (and possibly modified) yet.
+   */
+  public boolean isDecoded() {
+    return this.span != null;
+  }
+
+  /**
+   * Whether the window of the span was already closed when it arrived (see
+   * {@link LateSpanRouter}).
+   */
+  public boolean isLate() {
+    return this.late;
+  }
+
+  /* default */ void markLate() {
+    this.late = true;
+  }
+
+  /* default */ byte[] data() {
+    return this.data;
+  }
+
+}
@@ -0,0 +1,146 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.ParsedSchema;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.rest.exceptions.RestClientException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import net.explorviz.avro.Span;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Serde for {@link LazySpan}s in the Confluent wire format, i.e., a magic byte and the schema id
+ * followed by the Avro binary encoding. The deserializer only decodes the leading fields of the
+ * span record up to the start time and skips over the remaining bytes. The serializer writes the
+ * original bytes of spans that have not been decoded completely.
+ *
+ * <p>The partial decoding reads the bytes as written, i.e., by the writer schema referenced by the
+ * schema id in the header. Records of writer schemas whose leading fields differ from the expected
+ * ones are decoded completely (and resolved against the reader schema) instead. Whether a writer
+ * schema qualifies is looked up once per schema id.
+ */
+public class LazySpanSerde implements Serde<LazySpan> {
+
+  private static final byte MAGIC_BYTE = 0x0;
+
+  // Magic byte and schema id
+  private static final int HEADER_BYTES = 1 + Integer.BYTES;
+
+  private static final List<String> LEADING_FIELDS = List.of("landscapeToken", "spanId",
+      "parentSpanId", "traceId", "startTimeEpochMilli");
+
+  private static final List<Schema.Type> LEADING_TYPES = List.of(Schema.Type.STRING,
+      Schema.Type.STRING, Schema.Type.STRING, Schema.Type.STRING, Schema.Type.LONG);
+
+  private final Serde<Span> avroSerde;
+  private final SchemaRegistryClient registry;
+
+  // Whether the leading fields of the writer schema with the id can be decoded partially
+  private final Map<Integer, Boolean> partiallyDecodable = new ConcurrentHashMap<>();
+
+  /**
+   * Creates a new serde.
+   *
+   * @param avroSerde serde to completely (de)serialize spans with
+   * @param registry  registry to look up the writer schemas of records with
+   */
+  public LazySpanSerde(final Serde<Span> avroSerde, final SchemaRegistryClient registry) {
+    this.avroSerde = avroSerde;
+    this.registry = registry;
+
+    // Spans written with the reader schema must be partially decodable, new fields must be appended
+    if (!hasLeadingFields(Span.SCHEMA$)) {
+      throw new IllegalStateException("Unexpected field order in span schema");
+    }
+  }
+
+  @Override
+  public Serializer<LazySpan> serializer() {
+    final Serializer<Span> serializer = this.avroSerde.serializer();
+    return (topic, lazy) -> {
+      if (lazy == null) {
+        return null;
+      }
+      if (lazy.isDecoded()) {
+        return serializer.serialize(topic, lazy.span());
+      }
+      return lazy.data();
+    };
+  }
+
+  @Override
+  public Deserializer<LazySpan> deserializer() {
+    final Deserializer<Span> deserializer = this.avroSerde.deserializer();
+    return (topic, data) -> {
+      if (data == null) {
+        return null;
+      }
+      if (data.length < HEADER_BYTES) {
+        throw new SerializationException("Span record too short");
+      }
+      if (data[0] != MAGIC_BYTE || !this.isPartiallyDecodable(ByteBuffer.wrap(data, 1,
+          Integer.BYTES).getInt())) {
+        // Let the Avro deserializer resolve (or reject) the record
+        return new LazySpan(topic, data, deserializer, deserializer.deserialize(topic, data));
+      }
+
+      try {
+        final BinaryDecoder decoder = DecoderFactory.get()
+            .binaryDecoder(data, HEADER_BYTES, data.length - HEADER_BYTES, null);
+        final String landscapeToken = decoder.readString();
+        decoder.skipString(); // spanId
+        decoder.skipString(); // parentSpanId
+        final String traceId = decoder.readString();
+        final long startTimeEpochMilli = decoder.readLong();
+        return new LazySpan(topic, data, deserializer, landscapeToken, traceId,
+            startTimeEpochMilli);
+      } catch (final IOException e) {
+        throw new SerializationException("Could not decode span", e);
+      }
+    };
+  }
+
+  private boolean isPartiallyDecodable(final int schemaId) {
+    final Boolean cached = this.partiallyDecodable.get(schemaId);
+    if (cached != null) {
+      return cached;
+    }
+
+    final ParsedSchema writerSchema;
+    try {
+      writerSchema = this.registry.getSchemaById(schemaId);
+    } catch (final IOException | RestClientException e) {
+      // Not cached, the lookup is retried with the next record
+      return false;
+    }
+    final boolean decodable = writerSchema.rawSchema() instanceof Schema
+        && hasLeadingFields((Schema) writerSchema.rawSchema());
+    this.partiallyDecodable.put(schemaId, decodable);
+    return decodable;
+  }
+
+  private static boolean hasLeadingFields(final Schema schema) {
+    if (schema.getType() != Schema.Type.RECORD
+        || schema.getFields().size() < LEADING_FIELDS.size()) {
+      return false;
+    }
+    final List<Schema.Field> fields = schema.getFields();
+    for (int i = 0; i < LEADING_FIELDS.size(); i++) {
+      if (!LEADING_FIELDS.get(i).equals(fields.get(i).name())
+          || LEADING_TYPES.get(i) != fields.get(i).schema().getType()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,90 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.rocksdb.Statistics;
+import org.rocksdb.TickerType;
+
+/**
+ * Sums the RocksDB statistics of all stores configured by {@link BoundedMemoryRocksDbConfig}, such
+ * that they can be exported as process-wide counters. Counts of closed stores are retained, hence
+ * the sums never decrease.
+ */
+public final class RocksDbStatistics {
+
+  private static final double MICROS_PER_SECOND = 1_000_000d;
+
+  private static final Set<Statistics> OPEN = ConcurrentHashMap.newKeySet();
+  private static final Map<TickerType, Long> RETIRED = new EnumMap<>(TickerType.class);
+
+  private RocksDbStatistics() {
+    // Utility class
+  }
+
+  /* default */ static void register(final Statistics statistics) {
+    OPEN.add(statistics);
+  }
+
+  /* default */ static void unregister(final Statistics statistics) {
+    if (OPEN.remove(statistics)) {
+      synchronized (RETIRED) {
+        for (final TickerType ticker : TickerType.values()) {
+          if (ticker != TickerType.TICKER_ENUM_MAX) {
+            RETIRED.merge(ticker, statistics.getTickerCount(ticker), Long::sum);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Sums a ticker over all open and closed stores.
+   *
+   * @param ticker the ticker
+   * @return the sum
+   */
+  public static long sum(final TickerType ticker) {
+    long sum;
+    synchronized (RETIRED) {
+      sum = RETIRED.getOrDefault(ticker, 0L);
+    }
+    for (final Statistics statistics : OPEN) {
+      sum += statistics.getTickerCount(ticker);
+    }
+    return sum;
+  }
+
+  /**
+   * Registers counters for memtable stalls, compaction, flushes and the block cache.
+   *
+   * @param registry the registry
+   */
+  public static void bindTo(final MeterRegistry registry) {
+    FunctionCounter.builder("explorviz.trace.rocksdb.stall", TickerType.STALL_MICROS,
+            t -> sum(t) / MICROS_PER_SECOND).baseUnit("seconds")
+        .description("Time writes were stalled by RocksDB").register(registry);
+    counter(registry, "explorviz.trace.rocksdb.compaction.read", TickerType.COMPACT_READ_BYTES,
+        "Bytes read by RocksDB compactions");
+    counter(registry, "explorviz.trace.rocksdb.compaction.written", TickerType.COMPACT_WRITE_BYTES,
+        "Bytes written by RocksDB compactions");
+    counter(registry, "explorviz.trace.rocksdb.flush.written", TickerType.FLUSH_WRITE_BYTES,
+        "Bytes written by RocksDB memtable flushes");
+    FunctionCounter.builder("explorviz.trace.rocksdb.block-cache.hits", TickerType.BLOCK_CACHE_HIT,
+        RocksDbStatistics::sum).description("Hits in the shared RocksDB block cache")
+        .register(registry);
+    FunctionCounter.builder("explorviz.trace.rocksdb.block-cache.misses",
+        TickerType.BLOCK_CACHE_MISS, RocksDbStatistics::sum)
+        .description("Misses in the shared RocksDB block cache").register(registry);
+  }
+
+  private static void counter(final MeterRegistry registry, final String name,
+      final TickerType ticker, final String description) {
+    FunctionCounter.builder(name, ticker, RocksDbStatistics::sum).baseUnit("bytes")
+        .description(description).register(registry);
+  }
+
+}
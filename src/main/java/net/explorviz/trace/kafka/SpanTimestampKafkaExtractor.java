@@ -18,6 +18,10 @@ public class SpanTimestampKafkaExtractor implements TimestampExtractor {
 
   @Override
   public long extract(final ConsumerRecord<Object, Object> record, final long previousTimestamp) {
+    if (record.value() instanceof LazySpan) {
+      return ((LazySpan) record.value()).getStartTimeEpochMilli();
+    }
+
     final Span span = (Span) record.value();
 
     if (span != null) {
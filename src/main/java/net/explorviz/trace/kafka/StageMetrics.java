@@ -0,0 +1,195 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import org.apache.kafka.streams.kstream.ValueMapper;
+
+/**
+ * Throughput, latency, and allocation rate of the {@link BenchmarkStage}s of the topology. Stages
+ * that transform single records are timed, and the bytes allocated by the stream thread meanwhile
+ * are counted if the JVM supports it. Stages that only pass records on are counted. If disabled,
+ * nothing is measured.
+ */
+public class StageMetrics {
+
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+  private final boolean enabled;
+  private final Map<BenchmarkStage, Stats> stats = new EnumMap<>(BenchmarkStage.class);
+  private final com.sun.management.ThreadMXBean threads;
+  private long lastReportNanos = System.nanoTime();
+
+  /**
+   * Creates the metrics of all stages.
+   *
+   * @param registry registry for the meters of the stages
+   * @param enabled  whether the stages are measured
+   */
+  public StageMetrics(final MeterRegistry registry, final boolean enabled) {
+    this.enabled = enabled;
+    this.threads = enabled ? allocationCounter() : null;
+    if (enabled) {
+      for (final BenchmarkStage stage : BenchmarkStage.values()) {
+        if (stage.isBenchmark()) {
+          this.stats.put(stage, new Stats(registry, stage));
+        }
+      }
+    }
+  }
+
+  private static com.sun.management.ThreadMXBean allocationCounter() {
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+      final com.sun.management.ThreadMXBean bean =
+          (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      if (bean.isThreadAllocatedMemorySupported()) {
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+      }
+    }
+    return null;
+  }
+
+  public boolean isEnabled() {
+    return this.enabled;
+  }
+
+  /**
+   * Wraps the mapper of a stage, such that each invocation is timed and counted.
+   *
+   * @param stage  the stage the mapper belongs to
+   * @param mapper the mapper
+   * @return the measured mapper, or the given mapper if disabled
+   */
+  public <V, R> ValueMapper<V, R> timed(final BenchmarkStage stage,
+      final ValueMapper<V, R> mapper) {
+    if (!this.enabled) {
+      return mapper;
+    }
+    return value -> this.time(stage, () -> mapper.apply(value));
+  }
+
+  /**
+   * Times and counts a single invocation of a stage.
+   *
+   * @param stage the stage
+   * @param work  the work of the stage for a single record
+   * @return the result of the work
+   */
+  public <R> R time(final BenchmarkStage stage, final Supplier<R> work) {
+    if (!this.enabled) {
+      return work.get();
+    }
+    final Stats stageStats = this.stats.get(stage);
+    final long threadId = Thread.currentThread().getId();
+    final long allocatedBefore = this.allocatedBytes(threadId);
+    final long start = System.nanoTime();
+    final R result = work.get();
+    stageStats.latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    stageStats.record(this.allocatedBytes(threadId) - allocatedBefore);
+    return result;
+  }
+
+  /**
+   * Counts a record that passed a stage which is not timed.
+   *
+   * @param stage the stage
+   */
+  public void count(final BenchmarkStage stage) {
+    if (this.enabled) {
+      this.stats.get(stage).record(0L);
+    }
+  }
+
+  private long allocatedBytes(final long threadId) {
+    return this.threads == null ? 0L : this.threads.getThreadAllocatedBytes(threadId);
+  }
+
+  /**
+   * Summarizes the stages that processed records since the last report.
+   *
+   * @return one line per stage
+   */
+  public synchronized List<String> report() {
+    final long now = System.nanoTime();
+    final double seconds = Math.max(1L, now - this.lastReportNanos) / NANOS_PER_SECOND;
+    this.lastReportNanos = now;
+
+    final List<String> lines = new ArrayList<>();
+    for (final Map.Entry<BenchmarkStage, Stats> entry : this.stats.entrySet()) {
+      final Stats stageStats = entry.getValue();
+      final long records = stageStats.intervalRecords.sumThenReset();
+      final long allocated = stageStats.intervalAllocated.sumThenReset();
+      if (records == 0) {
+        continue;
+      }
+
+      final StringBuilder line = new StringBuilder(String.format(Locale.ROOT,
+          "Stage %s: %.0f records/s", entry.getKey().getConfigName(), records / seconds));
+      // Stages that only pass records on are not timed
+      if (stageStats.latency.count() > 0) {
+        for (final ValueAtPercentile percentile : stageStats.latency.takeSnapshot()
+            .percentileValues()) {
+          line.append(String.format(Locale.ROOT, ", p%.0f %.3f ms",
+              percentile.percentile() * 100, percentile.value(TimeUnit.MILLISECONDS)));
+        }
+      }
+      if (this.threads != null && allocated > 0) {
+        line.append(String.format(Locale.ROOT, ", %.1f MB/s allocated",
+            allocated / BYTES_PER_MB / seconds));
+      }
+      lines.add(line.toString());
+    }
+    return lines;
+  }
+
+  /**
+   * Meters of a single stage.
+   */
+  private static final class Stats {
+
+    private final Timer latency;
+    private final Counter records;
+    private final Counter allocated;
+    private final LongAdder intervalRecords = new LongAdder();
+    private final LongAdder intervalAllocated = new LongAdder();
+
+    private Stats(final MeterRegistry registry, final BenchmarkStage stage) {
+      this.latency = Timer.builder("explorviz.trace.stage.latency")
+          .tag("stage", stage.getConfigName())
+          .description("Processing time of a record in a stage of the topology")
+          .publishPercentiles(0.5, 0.95, 0.99)
+          .register(registry);
+      this.records = Counter.builder("explorviz.trace.stage.records")
+          .tag("stage", stage.getConfigName())
+          .description("Records that passed a stage of the topology")
+          .register(registry);
+      this.allocated = Counter.builder("explorviz.trace.stage.allocated")
+          .tag("stage", stage.getConfigName())
+          .description("Bytes allocated by the stream threads in a stage of the topology")
+          .baseUnit("bytes")
+          .register(registry);
+    }
+
+    private void record(final long allocatedBytes) {
+      this.records.increment();
+      this.intervalRecords.increment();
+      if (allocatedBytes > 0) {
+        this.allocated.increment(allocatedBytes);
+        this.intervalAllocated.add(allocatedBytes);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,186 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.runtime.StartupEvent;
+import io.quarkus.scheduler.Scheduled;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KafkaStreams.State;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds and removes stream threads of the {@link KafkaStreams} instance depending on the consumer
+ * lag and the process ratio of the stream threads, as decided by a {@link ThreadScalingPolicy}.
+ * The current number of threads and each change are exposed as metrics.
+ */
+@ApplicationScoped
+public class StreamThreadScaler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamThreadScaler.class);
+
+  private static final String FETCH_METRICS_GROUP = "consumer-fetch-manager-metrics";
+  private static final String LAG_METRIC = "records-lag";
+  private static final String THREAD_METRICS_GROUP = "stream-thread-metrics";
+  private static final String PROCESS_RATIO_METRIC = "process-ratio";
+  private static final String CLIENT_ID_TAG = "client-id";
+  private static final String PARTITION_TAG = "partition";
+  private static final String RESTORE_CONSUMER_SUFFIX = "-restore-consumer";
+  private static final String GLOBAL_CONSUMER_SUFFIX = "-global-consumer";
+
+  private final AtomicInteger threads = new AtomicInteger(0);
+
+  @ConfigProperty(name = "explorviz.kafka-streams.scaling.enabled")
+  /* default */ boolean enabled;
+  @ConfigProperty(name = "explorviz.kafka-streams.scaling.min-threads")
+  /* default */ int minThreads;
+  @ConfigProperty(name = "explorviz.kafka-streams.scaling.max-threads")
+  /* default */ int maxThreads;
+  @ConfigProperty(name = "explorviz.kafka-streams.scaling.lag.up")
+  /* default */ long scaleUpLag;
+  @ConfigProperty(name = "explorviz.kafka-streams.scaling.lag.down")
+  /* default */ long scaleDownLag;
+  @ConfigProperty(name = "explorviz.kafka-streams.scaling.busy-ratio")
+  /* default */ double busyRatio;
+  @ConfigProperty(name = "explorviz.kafka-streams.scaling.cooldown")
+  /* default */ long cooldownInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.scaling.remove-timeout")
+  /* default */ long removeTimeoutInMs;
+
+  @Inject
+  /* default */ KafkaStreams streams;
+  @Inject
+  /* default */ MeterRegistry meterRegistry;
+
+  private ThreadScalingPolicy policy;
+  private Counter added;
+  private Counter removed;
+
+  /* default */ void onStart(final @Observes StartupEvent ev) {
+    this.policy = new ThreadScalingPolicy(this.minThreads, this.maxThreads, this.scaleUpLag,
+        this.scaleDownLag, this.busyRatio, this.cooldownInMs);
+
+    Gauge.builder("explorviz.trace.streams.threads", this.threads, AtomicInteger::get)
+        .description("Alive stream threads").register(this.meterRegistry);
+    this.added = Counter.builder("explorviz.trace.streams.scaling").tag("direction", "up")
+        .description("Stream threads added or removed due to consumer lag")
+        .register(this.meterRegistry);
+    this.removed = Counter.builder("explorviz.trace.streams.scaling").tag("direction", "down")
+        .description("Stream threads added or removed due to consumer lag")
+        .register(this.meterRegistry);
+  }
+
+  @Scheduled(every = "{explorviz.kafka-streams.scaling.interval}")
+    /* default */ void scale() {
+    if (this.policy == null || this.streams.state() != State.RUNNING) {
+      return;
+    }
+
+    final int current = this.streams.metadataForLocalThreads().size();
+    this.threads.set(current);
+    if (!this.enabled) {
+      return;
+    }
+
+    final Map<MetricName, ? extends Metric> metrics = this.streams.metrics();
+    final long lag = lag(metrics);
+    final double processRatio = processRatio(metrics);
+    final long now = System.currentTimeMillis();
+
+    switch (this.policy.decide(current, lag, processRatio, now)) {
+      case ADD:
+        this.add(lag, processRatio, now);
+        break;
+      case REMOVE:
+        this.remove(lag, now);
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void add(final long lag, final double processRatio, final long now) {
+    final Optional<String> name = this.streams.addStreamThread();
+    if (name.isPresent()) {
+      this.policy.changed(now);
+      this.added.increment();
+      this.threads.incrementAndGet();
+      if (LOGGER.isInfoEnabled()) {
+        LOGGER.info("Added stream thread {} (lag {}, process ratio {}).", name.get(), lag,
+            processRatio);
+      }
+    }
+  }
+
+  private void remove(final long lag, final long now) {
+    final Optional<String> name =
+        this.streams.removeStreamThread(Duration.ofMillis(this.removeTimeoutInMs));
+    if (name.isPresent()) {
+      this.policy.changed(now);
+      this.removed.increment();
+      this.threads.decrementAndGet();
+      if (LOGGER.isInfoEnabled()) {
+        LOGGER.info("Removed stream thread {} (lag {}).", name.get(), lag);
+      }
+    }
+  }
+
+  /**
+   * Sums the lag of all partitions assigned to the main consumers of the stream threads.
+   */
+  private static long lag(final Map<MetricName, ? extends Metric> metrics) {
+    long lag = 0;
+    for (final Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet()) {
+      final MetricName name = entry.getKey();
+      if (!FETCH_METRICS_GROUP.equals(name.group()) || !LAG_METRIC.equals(name.name())
+          || !name.tags().containsKey(PARTITION_TAG)) {
+        continue;
+      }
+      final String clientId = name.tags().getOrDefault(CLIENT_ID_TAG, "");
+      if (clientId.endsWith(RESTORE_CONSUMER_SUFFIX) || clientId.endsWith(GLOBAL_CONSUMER_SUFFIX)) {
+        continue;
+      }
+      final double value = value(entry.getValue());
+      if (!Double.isNaN(value)) {
+        lag += (long) value;
+      }
+    }
+    return lag;
+  }
+
+  /**
+   * Averages the ratio of time the stream threads spend processing records.
+   */
+  private static double processRatio(final Map<MetricName, ? extends Metric> metrics) {
+    double sum = 0;
+    int count = 0;
+    for (final Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet()) {
+      final MetricName name = entry.getKey();
+      if (THREAD_METRICS_GROUP.equals(name.group()) && PROCESS_RATIO_METRIC.equals(name.name())) {
+        final double value = value(entry.getValue());
+        if (!Double.isNaN(value)) {
+          sum += value;
+          count++;
+        }
+      }
+    }
+    return count == 0 ? 0 : sum / count;
+  }
+
+  private static double value(final Metric metric) {
+    final Object value = metric.metricValue();
+    return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+  }
+
+}
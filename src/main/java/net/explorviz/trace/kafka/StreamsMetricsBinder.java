@@ -0,0 +1,42 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.kafka.KafkaStreamsMetrics;
+import io.quarkus.runtime.ShutdownEvent;
+import io.quarkus.runtime.StartupEvent;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.event.Observes;
+import javax.inject.Inject;
+import org.apache.kafka.streams.KafkaStreams;
+
+/**
+ * Exports the metrics of the {@link KafkaStreams} instance, including the memory usage of the
+ * RocksDB stores (e.g., {@code block-cache-usage} and {@code size-all-mem-tables}), and the summed
+ * RocksDB statistics of {@link RocksDbStatistics} and the records discarded by
+ * {@link IgnoreRecordTooLargeHandler} via Micrometer.
+ */
+@ApplicationScoped
+public class StreamsMetricsBinder {
+
+  @Inject
+  /* default */ KafkaStreams streams;
+
+  @Inject
+  /* default */ MeterRegistry meterRegistry;
+
+  private KafkaStreamsMetrics streamsMetrics;
+
+  /* default */ void onStart(final @Observes StartupEvent ev) {
+    this.streamsMetrics = new KafkaStreamsMetrics(this.streams);
+    this.streamsMetrics.bindTo(this.meterRegistry);
+    RocksDbStatistics.bindTo(this.meterRegistry);
+    IgnoreRecordTooLargeHandler.bindTo(this.meterRegistry);
+  }
+
+  /* default */ void onStop(final @Observes ShutdownEvent ev) {
+    if (this.streamsMetrics != null) {
+      this.streamsMetrics.close();
+    }
+  }
+
+}
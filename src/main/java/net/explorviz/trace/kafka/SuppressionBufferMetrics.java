@@ -0,0 +1,59 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gauges and counters of all {@link SuppressionBufferProcessor} instances of this application.
+ * Processors are created per stream task, hence they report deltas to this shared object.
+ */
+public class SuppressionBufferMetrics {
+
+  private final AtomicLong bufferedTraces = new AtomicLong(0);
+  private final AtomicLong memoryBytes = new AtomicLong(0);
+  private final AtomicLong spilledTraces = new AtomicLong(0);
+  private final Counter spills;
+  private final Counter droppedUpdates;
+
+  /**
+   * Registers the metrics in the given registry.
+   *
+   * @param registry the registry to publish the metrics to
+   */
+  public SuppressionBufferMetrics(final MeterRegistry registry) {
+    Gauge.builder("explorviz.trace.suppression.buffered.traces", this.bufferedTraces,
+        AtomicLong::get).description("Traces held until their window closes").register(registry);
+    Gauge.builder("explorviz.trace.suppression.buffered.bytes", this.memoryBytes, AtomicLong::get)
+        .description("Serialized bytes of traces held on the heap").baseUnit("bytes")
+        .register(registry);
+    Gauge.builder("explorviz.trace.suppression.spilled.traces", this.spilledTraces,
+        AtomicLong::get).description("Traces spilled to the on-disk store").register(registry);
+    this.spills = Counter.builder("explorviz.trace.suppression.spills")
+        .description("Traces moved from the heap to the on-disk store").register(registry);
+    this.droppedUpdates = Counter.builder("explorviz.trace.suppression.dropped.updates")
+        .description("Updates of traces whose window was already flushed").register(registry);
+  }
+
+  /* default */ void addBufferedTraces(final long delta) {
+    this.bufferedTraces.addAndGet(delta);
+  }
+
+  /* default */ void addMemoryBytes(final long delta) {
+    this.memoryBytes.addAndGet(delta);
+  }
+
+  /* default */ void addSpilledTraces(final long delta) {
+    this.spilledTraces.addAndGet(delta);
+  }
+
+  /* default */ void spilled() {
+    this.spills.increment();
+  }
+
+  /* default */ void droppedUpdate() {
+    this.droppedUpdates.increment();
+  }
+
+}
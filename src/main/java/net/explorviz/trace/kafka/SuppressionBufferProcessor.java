@@ -0,0 +1,326 @@
+package net.explorviz.trace.kafka;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.service.AggregateMemory;
+import net.explorviz.trace.service.TraceSizeEstimator;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.processor.api.Processor;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.processor.api.Record;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+/**
+ * Replacement for {@code Suppressed.untilWindowCloses(BufferConfig.unbounded())} with a bounded
+ * heap footprint. Windowed traces are buffered in an in-memory store until their window is closed
+ * w.r.t. the observed stream time. If the serialized traces on the heap exceed the configured
+ * amount of bytes, the traces whose windows close last are spilled to a persistent (RocksDB)
+ * store. Both stores are backed by a changelog. The emitted records are keyed by the trace key,
+ * i.e., landscapeToken::traceId. Stream time of idle partitions is advanced according to the
+ * given {@link IdleAdvancement}.
+ *
+ * <p>The upstream windowed aggregation does not observe the advanced stream time and still accepts
+ * spans of windows this buffer has already flushed. Their updates are dropped, otherwise the whole
+ * trace would be emitted once more. Windows are flushed up to stream time minus grace, hence that
+ * is the watermark for dropping.
+ *
+ * <p>The buffer holds the latest aggregate of each open window, hence it keeps the estimated bytes
+ * of the open aggregates (see {@link TraceSizeEstimator}) in the {@link AggregateMemory}. The
+ * estimate of each trace is stored along with it, such that exactly the bytes added for a trace
+ * are released once it is emitted, and all bytes of this instance once it is closed. Dropped
+ * updates are never added.
+ */
+public class SuppressionBufferProcessor
+    implements Processor<Windowed<String>, Trace, String, Trace> {
+
+  private static final int KEY_PREFIX_BYTES = Long.BYTES * 2;
+  // Timestamp and estimated bytes of the trace
+  private static final int VALUE_PREFIX_BYTES = Long.BYTES * 2;
+
+  private final String memoryStoreName;
+  private final String diskStoreName;
+  private final long graceMs;
+  private final long maxMemoryBytes;
+  private final Serde<Trace> traceSerde;
+  private final SuppressionBufferMetrics metrics;
+  private final AggregateMemory memory;
+  private final IdleAdvancement idleAdvancement;
+
+  // Estimated bytes of the spilled traces
+  private final Map<Bytes, Long> spilled = new HashMap<>();
+  private long memoryTraces;
+  private long memoryBytes;
+  private long heldBytes;
+  private IdleAdvancement.StreamTime streamTime;
+  private long earliestWindowEnd = Long.MAX_VALUE;
+
+  private ProcessorContext<String, Trace> context;
+  private KeyValueStore<Bytes, byte[]> memoryStore;
+  private KeyValueStore<Bytes, byte[]> diskStore;
+
+  /**
+   * Creates a new suppression buffer.
+   *
+   * @param memoryStoreName name of the in-memory store
+   * @param diskStoreName   name of the persistent store that holds spilled traces
+   * @param graceMs         grace period of the windows
+   * @param maxMemoryBytes  maximum serialized bytes of traces held in memory
+   * @param traceSerde      serde used to (de)serialize the buffered traces
+   * @param metrics         shared metrics of all buffer instances
+   * @param memory          estimate of the bytes in open aggregates of all buffer instances
+   * @param idleAdvancement advancement of stream time if the partition is idle
+   */
+  public SuppressionBufferProcessor(final String memoryStoreName, final String diskStoreName,
+      final long graceMs, final long maxMemoryBytes, final Serde<Trace> traceSerde,
+      final SuppressionBufferMetrics metrics, final AggregateMemory memory,
+      final IdleAdvancement idleAdvancement) {
+    this.memoryStoreName = memoryStoreName;
+    this.diskStoreName = diskStoreName;
+    this.graceMs = graceMs;
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.traceSerde = traceSerde;
+    this.metrics = metrics;
+    this.memory = memory;
+    this.idleAdvancement = idleAdvancement;
+  }
+
+  @Override
+  public void init(final ProcessorContext<String, Trace> context) {
+    this.context = context;
+    this.memoryStore = context.getStateStore(this.memoryStoreName);
+    this.diskStore = context.getStateStore(this.diskStoreName);
+    this.streamTime = this.idleAdvancement.streamTime();
+
+    // Rebuild accounting for restored buffers
+    try (KeyValueIterator<Bytes, byte[]> it = this.memoryStore.all()) {
+      while (it.hasNext()) {
+        final KeyValue<Bytes, byte[]> kv = it.next();
+        this.memoryTraces++;
+        this.memoryBytes += size(kv.key, kv.value);
+        this.hold(estimatedBytes(kv.value));
+        this.earliestWindowEnd = Math.min(this.earliestWindowEnd, windowEnd(kv.key));
+      }
+    }
+    try (KeyValueIterator<Bytes, byte[]> it = this.diskStore.all()) {
+      while (it.hasNext()) {
+        final KeyValue<Bytes, byte[]> kv = it.next();
+        this.spilled.put(kv.key, estimatedBytes(kv.value));
+        this.hold(estimatedBytes(kv.value));
+        this.earliestWindowEnd = Math.min(this.earliestWindowEnd, windowEnd(kv.key));
+      }
+    }
+    this.metrics.addBufferedTraces(this.memoryTraces + this.spilled.size());
+    this.metrics.addMemoryBytes(this.memoryBytes);
+    this.metrics.addSpilledTraces(this.spilled.size());
+
+    this.idleAdvancement.schedule(context, now -> {
+      final long idleMs = this.streamTime.advanceIfIdle(now);
+      if (idleMs > 0) {
+        for (int i = this.evictExpired(); i > 0; i--) {
+          this.streamTime.recordWait(idleMs);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void process(final Record<Windowed<String>, Trace> record) {
+    this.streamTime.observe(record.timestamp(), this.context.currentSystemTimeMs());
+
+    if (record.value() != null) {
+      if (record.key().window().end() <= this.flushedUntil()) {
+        this.metrics.droppedUpdate();
+      } else {
+        this.buffer(record);
+      }
+    }
+
+    this.evictExpired();
+  }
+
+  @Override
+  public void close() {
+    this.metrics.addBufferedTraces(-(this.memoryTraces + this.spilled.size()));
+    this.metrics.addMemoryBytes(-this.memoryBytes);
+    this.metrics.addSpilledTraces(-this.spilled.size());
+    // The traces are no longer held by this instance, e.g., since its task was revoked
+    this.hold(-this.heldBytes);
+  }
+
+  private void buffer(final Record<Windowed<String>, Trace> record) {
+    final Windowed<String> windowedKey = record.key();
+    final long windowEnd = windowedKey.window().end();
+    final Bytes key = bufferKey(windowEnd, windowedKey.window().start(), windowedKey.key());
+    final byte[] serialized =
+        this.traceSerde.serializer().serialize(this.memoryStoreName, record.value());
+    final long estimatedBytes = TraceSizeEstimator.estimate(record.value());
+    final byte[] value =
+        ByteBuffer.allocate(VALUE_PREFIX_BYTES + serialized.length).putLong(record.timestamp())
+            .putLong(estimatedBytes).put(serialized).array();
+
+    this.earliestWindowEnd = Math.min(this.earliestWindowEnd, windowEnd);
+
+    final Long spilledBytes = this.spilled.get(key);
+    if (spilledBytes != null) {
+      this.diskStore.put(key, value);
+      this.spilled.put(key, estimatedBytes);
+      this.hold(estimatedBytes - spilledBytes);
+      return;
+    }
+
+    final byte[] previous = this.memoryStore.get(key);
+    if (previous == null) {
+      this.memoryTraces++;
+      this.metrics.addBufferedTraces(1);
+      this.hold(estimatedBytes);
+    } else {
+      this.addMemoryBytes(-size(key, previous));
+      this.hold(estimatedBytes - estimatedBytes(previous));
+    }
+    this.memoryStore.put(key, value);
+    this.addMemoryBytes(size(key, value));
+
+    this.spillWhileExceeded();
+  }
+
+  /**
+   * Moves the traces whose windows close last to the disk store until the memory bound holds.
+   */
+  private void spillWhileExceeded() {
+    while (this.memoryBytes > this.maxMemoryBytes && this.memoryTraces > 1) {
+      final KeyValue<Bytes, byte[]> coldest;
+      try (KeyValueIterator<Bytes, byte[]> it = this.memoryStore.reverseAll()) {
+        coldest = it.next();
+      }
+      this.memoryStore.delete(coldest.key);
+      this.diskStore.put(coldest.key, coldest.value);
+      this.memoryTraces--;
+      this.addMemoryBytes(-size(coldest.key, coldest.value));
+      this.spilled.put(coldest.key, estimatedBytes(coldest.value));
+      this.metrics.addSpilledTraces(1);
+      this.metrics.spilled();
+    }
+  }
+
+  /**
+   * Emits all traces whose window end is at most stream time minus grace, ordered by window end.
+   *
+   * @return the number of emitted traces
+   */
+  private int evictExpired() {
+    final long expiryTime = this.flushedUntil();
+    if (this.earliestWindowEnd > expiryTime) {
+      return 0;
+    }
+
+    final List<Bytes> evictedFromMemory = new ArrayList<>();
+    final List<Bytes> evictedFromDisk = new ArrayList<>();
+    long nextWindowEnd = Long.MAX_VALUE;
+
+    try (KeyValueIterator<Bytes, byte[]> memory = this.memoryStore.all();
+        KeyValueIterator<Bytes, byte[]> disk = this.diskStore.all()) {
+      while (memory.hasNext() || disk.hasNext()) {
+        final boolean fromMemory = !disk.hasNext()
+            || memory.hasNext() && memory.peekNextKey().compareTo(disk.peekNextKey()) <= 0;
+        final KeyValueIterator<Bytes, byte[]> source = fromMemory ? memory : disk;
+
+        final long windowEnd = windowEnd(source.peekNextKey());
+        if (windowEnd > expiryTime) {
+          nextWindowEnd = windowEnd;
+          break;
+        }
+
+        final KeyValue<Bytes, byte[]> kv = source.next();
+        this.emit(kv.key, kv.value);
+        this.hold(-estimatedBytes(kv.value));
+        if (fromMemory) {
+          evictedFromMemory.add(kv.key);
+          this.addMemoryBytes(-size(kv.key, kv.value));
+        } else {
+          evictedFromDisk.add(kv.key);
+        }
+      }
+    }
+
+    for (final Bytes key : evictedFromMemory) {
+      this.memoryStore.delete(key);
+    }
+    for (final Bytes key : evictedFromDisk) {
+      this.diskStore.delete(key);
+      this.spilled.remove(key);
+    }
+    this.memoryTraces -= evictedFromMemory.size();
+    this.metrics.addBufferedTraces(-(evictedFromMemory.size() + evictedFromDisk.size()));
+    this.metrics.addSpilledTraces(-evictedFromDisk.size());
+    this.earliestWindowEnd = nextWindowEnd;
+    return evictedFromMemory.size() + evictedFromDisk.size();
+  }
+
+  /**
+   * Latest window end up to which traces have been emitted.
+   */
+  private long flushedUntil() {
+    return this.streamTime.get() - this.graceMs;
+  }
+
+  private void emit(final Bytes key, final byte[] value) {
+    final ByteBuffer buffer = ByteBuffer.wrap(value);
+    final long timestamp = buffer.getLong();
+    // Skip the estimated bytes
+    buffer.getLong();
+    final byte[] serialized = new byte[buffer.remaining()];
+    buffer.get(serialized);
+
+    final Trace trace =
+        this.traceSerde.deserializer().deserialize(this.memoryStoreName, serialized);
+    this.context.forward(new Record<>(traceKey(key), trace, timestamp));
+  }
+
+  private void addMemoryBytes(final long delta) {
+    this.memoryBytes += delta;
+    this.metrics.addMemoryBytes(delta);
+  }
+
+  private void hold(final long bytes) {
+    this.heldBytes += bytes;
+    this.memory.add(bytes);
+  }
+
+  private static long estimatedBytes(final byte[] value) {
+    return ByteBuffer.wrap(value).getLong(Long.BYTES);
+  }
+
+  private static long size(final Bytes key, final byte[] value) {
+    return key.get().length + value.length;
+  }
+
+  /**
+   * Encodes window end, window start, and key such that the byte order equals the order of window
+   * ends.
+   */
+  private static Bytes bufferKey(final long windowEnd, final long windowStart, final String key) {
+    final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    return Bytes.wrap(ByteBuffer.allocate(KEY_PREFIX_BYTES + keyBytes.length).putLong(windowEnd)
+        .putLong(windowStart).put(keyBytes).array());
+  }
+
+  private static long windowEnd(final Bytes bufferKey) {
+    return ByteBuffer.wrap(bufferKey.get()).getLong();
+  }
+
+  private static String traceKey(final Bytes bufferKey) {
+    final byte[] bytes = bufferKey.get();
+    return new String(bytes, KEY_PREFIX_BYTES, bytes.length - KEY_PREFIX_BYTES,
+        StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,188 @@
+package net.explorviz.trace.kafka;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.service.TraceShape;
+import org.apache.kafka.streams.KeyValue;
+
+/**
+ * Tail-based sampling of reduced traces per landscape. A trace is kept if
+ * <ul>
+ * <li>its duration exceeds the configured quantile of the landscape's trace durations,</li>
+ * <li>it is one of the first traces of its {@link TraceShape} in the current interval that are
+ * neither slow nor picked at random, or</li>
+ * <li>it is picked at random with the configured probability.</li>
+ * </ul>
+ * All other traces are dropped, but their trace and request counts are added to the first kept
+ * trace of the same shape in the interval, the representative. Representatives that absorbed
+ * dropped traces are returned again at the end of the interval, such that persisting them
+ * overwrites their earlier version with the correct counts. Not thread-safe.
+ */
+public class TailSampler {
+
+  private static final long MIN_SAMPLES = 100;
+  private static final long MAX_SAMPLES = 10_000;
+  private static final int POLICY_FIELDS = 4;
+
+  /**
+   * Outcome of sampling a trace.
+   */
+  public enum Decision {
+    /** Kept since it is slow. */
+    SLOW,
+    /** Kept as one of the first traces of its shape. */
+    SHAPE,
+    /** Kept at random. */
+    RANDOM,
+    /** Dropped and counted by the representative of its shape. */
+    DROPPED
+  }
+
+  private final Policy defaultPolicy;
+  private final Map<String, Policy> policies;
+  private final Random random;
+
+  private final Map<String, Landscape> landscapes = new HashMap<>();
+
+  /**
+   * Creates a new sampler.
+   *
+   * @param defaultPolicy the policy of landscapes without a policy of their own
+   * @param policies      policies by landscape token
+   * @param random        source of the random sampling
+   */
+  public TailSampler(final Policy defaultPolicy, final Map<String, Policy> policies,
+      final Random random) {
+    this.defaultPolicy = defaultPolicy;
+    this.policies = Map.copyOf(policies);
+    this.random = random;
+  }
+
+  /**
+   * Decides whether to keep a trace.
+   *
+   * @param key   the key of the trace
+   * @param trace the trace
+   * @return the decision, the trace must be forwarded unless it is {@link Decision#DROPPED}
+   */
+  public Decision sample(final String key, final Trace trace) {
+    final String token = trace.getLandscapeToken();
+    final Policy policy = this.policies.getOrDefault(token, this.defaultPolicy);
+    final Landscape landscape = this.landscapes.computeIfAbsent(token, t -> new Landscape());
+
+    final boolean slow = landscape.durations.count() >= MIN_SAMPLES
+        && trace.getDuration() > landscape.durations.quantile(policy.durationQuantile);
+    landscape.durations.record(trace.getDuration());
+
+    final Shape shape =
+        landscape.shapes.computeIfAbsent(TraceShape.fingerprint(trace), s -> new Shape());
+
+    final Decision decision;
+    if (slow) {
+      decision = Decision.SLOW;
+    } else if (shape.representative == null || shape.kept < policy.shapeLimit) {
+      decision = Decision.SHAPE;
+    } else if (this.random.nextDouble() < policy.probability) {
+      decision = Decision.RANDOM;
+    } else {
+      decision = Decision.DROPPED;
+    }
+
+    if (decision == Decision.DROPPED) {
+      final Trace representative = shape.representative;
+      representative.setTraceCount(representative.getTraceCount() + trace.getTraceCount());
+      representative.setOverallRequestCount(
+          representative.getOverallRequestCount() + trace.getOverallRequestCount());
+      shape.absorbed = true;
+    } else {
+      // Only traces kept for their shape count towards its limit
+      if (decision == Decision.SHAPE) {
+        shape.kept++;
+      }
+      if (shape.representative == null) {
+        // Copied, since the forwarded trace may be modified downstream
+        shape.representative = Trace.newBuilder(trace).build();
+        shape.key = key;
+      }
+    }
+    return decision;
+  }
+
+  /**
+   * Ends the current interval, i.e., resets the shapes of all landscapes.
+   *
+   * @return the representatives that absorbed dropped traces in the interval, keyed as given
+   */
+  public List<KeyValue<String, Trace>> endInterval() {
+    final List<KeyValue<String, Trace>> updated = new ArrayList<>();
+    for (final Landscape landscape : this.landscapes.values()) {
+      for (final Shape shape : landscape.shapes.values()) {
+        if (shape.absorbed) {
+          updated.add(KeyValue.pair(shape.key, shape.representative));
+        }
+      }
+      landscape.shapes.clear();
+    }
+    return updated;
+  }
+
+  /**
+   * Sampling policy of a landscape.
+   */
+  public static final class Policy {
+
+    private final double durationQuantile;
+    private final int shapeLimit;
+    private final double probability;
+
+    /**
+     * Creates a new policy.
+     *
+     * @param durationQuantile traces above this quantile of the durations are kept
+     * @param shapeLimit       number of traces kept per shape and interval
+     * @param probability      probability of keeping any other trace
+     */
+    public Policy(final double durationQuantile, final int shapeLimit,
+        final double probability) {
+      this.durationQuantile = durationQuantile;
+      this.shapeLimit = shapeLimit;
+      this.probability = probability;
+    }
+
+    /**
+     * Parses policies of the form {@code token:durationQuantile:shapeLimit:probability}.
+     *
+     * @param values the policies
+     * @return the policies by landscape token
+     */
+    public static Map<String, Policy> parse(final List<String> values) {
+      final Map<String, Policy> policies = new HashMap<>();
+      for (final String value : values) {
+        final String[] fields = value.trim().split(":");
+        if (fields.length != POLICY_FIELDS) {
+          throw new IllegalArgumentException("Invalid sampling policy: " + value);
+        }
+        policies.put(fields[0], new Policy(Double.parseDouble(fields[1]),
+            Integer.parseInt(fields[2]), Double.parseDouble(fields[3])));
+      }
+      return policies;
+    }
+  }
+
+  private static final class Landscape {
+    private final LatencyHistogram durations = new LatencyHistogram(MAX_SAMPLES);
+    private final Map<Long, Shape> shapes = new HashMap<>();
+  }
+
+  private static final class Shape {
+    private int kept;
+    private Trace representative;
+    private String key;
+    private boolean absorbed;
+  }
+
+}
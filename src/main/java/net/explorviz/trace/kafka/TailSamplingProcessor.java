@@ -0,0 +1,70 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import net.explorviz.avro.Trace;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.processor.api.Processor;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.processor.api.Record;
+
+/**
+ * Forwards the traces kept by a {@link TailSampler}. At the end of each wall-clock interval,
+ * representatives that absorbed the counts of dropped traces are forwarded again. Each task
+ * samples the traces of its partitions on its own.
+ */
+public class TailSamplingProcessor implements Processor<String, Trace, String, Trace> {
+
+  private final TailSampler sampler;
+  private final Duration interval;
+  private final Map<TailSampler.Decision, Counter> decisions =
+      new EnumMap<>(TailSampler.Decision.class);
+
+  private ProcessorContext<String, Trace> context;
+
+  /**
+   * Creates a new processor.
+   *
+   * @param sampler  the sampler
+   * @param interval the sampling interval
+   * @param registry registry for the number of traces per decision
+   */
+  public TailSamplingProcessor(final TailSampler sampler, final Duration interval,
+      final MeterRegistry registry) {
+    this.sampler = sampler;
+    this.interval = interval;
+    for (final TailSampler.Decision decision : TailSampler.Decision.values()) {
+      this.decisions.put(decision, Counter.builder("explorviz.trace.sampling")
+          .tag("decision", decision.name().toLowerCase(Locale.ROOT))
+          .description("Sampled traces by decision")
+          .register(registry));
+    }
+  }
+
+  @Override
+  public void init(final ProcessorContext<String, Trace> context) {
+    this.context = context;
+    context.schedule(this.interval, PunctuationType.WALL_CLOCK_TIME, this::endInterval);
+  }
+
+  @Override
+  public void process(final Record<String, Trace> record) {
+    final TailSampler.Decision decision = this.sampler.sample(record.key(), record.value());
+    this.decisions.get(decision).increment();
+    if (decision != TailSampler.Decision.DROPPED) {
+      this.context.forward(record);
+    }
+  }
+
+  private void endInterval(final long timestamp) {
+    for (final KeyValue<String, Trace> updated : this.sampler.endInterval()) {
+      this.context.forward(new Record<>(updated.key, updated.value, timestamp));
+    }
+  }
+
+}
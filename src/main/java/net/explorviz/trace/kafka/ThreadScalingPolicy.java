@@ -0,0 +1,85 @@
+package net.explorviz.trace.kafka;
+
+/**
+ * Decides whether to add or remove a stream thread based on the consumer lag and on how busy the
+ * stream threads are. A thread is only added if the lag is high and the threads spend most of
+ * their time processing, i.e., if more threads would actually reduce the lag. A thread is removed
+ * once the lag is low again. After each change, no further change is made for the cooldown
+ * period, such that the rebalance of the change can settle first.
+ */
+public class ThreadScalingPolicy {
+
+  /**
+   * Outcome of a scaling decision.
+   */
+  public enum Decision {
+    ADD, REMOVE, KEEP
+  }
+
+  private final int minThreads;
+  private final int maxThreads;
+  private final long scaleUpLag;
+  private final long scaleDownLag;
+  private final double busyRatio;
+  private final long cooldownMs;
+
+  private long lastChange = Long.MIN_VALUE;
+
+  /**
+   * Creates a new policy.
+   *
+   * @param minThreads   lower bound of stream threads
+   * @param maxThreads   upper bound of stream threads
+   * @param scaleUpLag   lag (records) above which a thread is added
+   * @param scaleDownLag lag (records) below which a thread is removed
+   * @param busyRatio    minimal average ratio of time the threads spend processing to add one
+   * @param cooldownMs   minimal time between two changes
+   */
+  public ThreadScalingPolicy(final int minThreads, final int maxThreads, final long scaleUpLag,
+      final long scaleDownLag, final double busyRatio, final long cooldownMs) {
+    if (minThreads < 1 || minThreads > maxThreads || scaleDownLag > scaleUpLag) {
+      throw new IllegalArgumentException("Invalid scaling bounds");
+    }
+    this.minThreads = minThreads;
+    this.maxThreads = maxThreads;
+    this.scaleUpLag = scaleUpLag;
+    this.scaleDownLag = scaleDownLag;
+    this.busyRatio = busyRatio;
+    this.cooldownMs = cooldownMs;
+  }
+
+  /**
+   * Decides about the next change.
+   *
+   * @param threads      current number of stream threads
+   * @param lag          current consumer lag in records
+   * @param processRatio average ratio of time the threads spend processing, between 0 and 1
+   * @param now          current time in ms
+   * @return the decision
+   */
+  public Decision decide(final int threads, final long lag, final double processRatio,
+      final long now) {
+    if (this.lastChange != Long.MIN_VALUE && now - this.lastChange < this.cooldownMs) {
+      return Decision.KEEP;
+    }
+
+    if (threads < this.minThreads
+        || threads < this.maxThreads && lag > this.scaleUpLag && processRatio >= this.busyRatio) {
+      return Decision.ADD;
+    }
+    if (threads > this.maxThreads || threads > this.minThreads && lag < this.scaleDownLag) {
+      return Decision.REMOVE;
+    }
+    return Decision.KEEP;
+  }
+
+  /**
+   * Records that a change was made, which starts the cooldown.
+   *
+   * @param now current time in ms
+   */
+  public void changed(final long now) {
+    this.lastChange = now;
+  }
+
+}
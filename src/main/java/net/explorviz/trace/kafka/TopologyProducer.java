@@ -1,33 +1,62 @@
 package net.explorviz.trace.kafka;
 
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
 import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.quarkus.scheduler.Scheduled;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import javax.enterprise.context.ApplicationScoped;
 import javax.enterprise.inject.Produces;
 import javax.inject.Inject;
+import net.explorviz.avro.EventType;
 import net.explorviz.avro.Span;
+import net.explorviz.avro.TokenEvent;
 import net.explorviz.avro.Trace;
+import net.explorviz.trace.persistence.LateSpanService;
 import net.explorviz.trace.persistence.ReactiveTraceService;
-import net.explorviz.trace.service.HashHelper;
+import net.explorviz.trace.persistence.dao.TraceSegment;
+import net.explorviz.trace.service.AggregateMemory;
+import net.explorviz.trace.service.SpanDeduplicator;
+import net.explorviz.trace.service.SpanHashAlgorithm;
+import net.explorviz.trace.service.SpanHasher;
+import net.explorviz.trace.service.TraceAggregate;
 import net.explorviz.trace.service.TraceAggregator;
 import net.explorviz.trace.service.TraceConverter;
-import net.explorviz.trace.service.reduction.CallTree;
-import net.explorviz.trace.service.reduction.CallTreeConverter;
-import net.explorviz.trace.service.reduction.DepthReducer;
-import net.explorviz.trace.service.reduction.SimpleLoopReducer;
+import net.explorviz.trace.service.TraceSegmenter;
+import net.explorviz.trace.service.reduction.TraceReduction;
+import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.kstream.Branched;
 import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.GlobalKTable;
 import org.apache.kafka.streams.kstream.Grouped;
+import org.apache.kafka.streams.kstream.KGroupedStream;
 import org.apache.kafka.streams.kstream.KStream;
 import org.apache.kafka.streams.kstream.KTable;
 import org.apache.kafka.streams.kstream.Materialized;
+import org.apache.kafka.streams.kstream.Named;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.kstream.Repartitioned;
 import org.apache.kafka.streams.kstream.Suppressed;
 import org.apache.kafka.streams.kstream.TimeWindows;
+import org.apache.kafka.streams.kstream.ValueMapper;
 import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.processor.api.ProcessorSupplier;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.WindowStore;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,28 +69,160 @@ import org.slf4j.LoggerFactory;
 public class TopologyProducer {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(TopologyProducer.class);
+  private static final String EMISSION_MODE_COMPLETION = "completion";
+  private static final String ASSEMBLY_APPEND_ONLY = "append-only";
+  /* default */ static final String PARTITIONING_CO_PARTITIONED = "co-partitioned";
+  /* default */ static final String UPSTREAM_KEY_TRACE_ID = "trace-id";
+  private static final String INTERNAL_SERDE_COMPACT = "compact";
+  private static final String BRANCH_PREFIX = "partitioning-";
+  private static final String BRANCH_MATCHING = "matching";
+  private static final String BRANCH_MISMATCHING = "mismatching";
+  private static final String LATE_BRANCH_PREFIX = "lateness-";
+  private static final String BRANCH_LATE = "late";
+  private static final String BRANCH_ON_TIME = "on-time";
+  private static final String TOKEN_STORE = "token-store";
+  /* default */ static final String UNKNOWN_TOKEN = "unknown";
+  /* default */ static final String ADMISSION_PROCESSOR = "admission";
+  private static final String DEDUP_STORE = "trace-dedup-store";
+  private static final String SUPPRESSION_MEMORY_STORE = "trace-suppression-memory-store";
+  private static final String SUPPRESSION_DISK_STORE = "trace-suppression-disk-store";
   // Logged and reset every n seconds
   private final AtomicInteger lastReceivedTotalSpans = new AtomicInteger(0);
   private final AtomicInteger reconstructedTracesCount = new AtomicInteger(0);
   private final AtomicInteger spanReducedTracesCount = new AtomicInteger(0);
+  private volatile StageMetrics stageMetrics;
   @ConfigProperty(name = "explorviz.kafka-streams.topics.in")
   /* default */ String inTopic;
+  @ConfigProperty(name = "explorviz.kafka-streams.topics.tokens")
+  /* default */ String tokenTopic;
+  @ConfigProperty(name = "explorviz.kafka-streams.token-filter.enabled")
+  /* default */ boolean tokenFilter;
+  @ConfigProperty(name = "explorviz.kafka-streams.admission.enabled")
+  /* default */ boolean admission;
+  @ConfigProperty(name = "explorviz.kafka-streams.admission.rate")
+  /* default */ double admissionRate;
+  @ConfigProperty(name = "explorviz.kafka-streams.admission.burst")
+  /* default */ long admissionBurst;
+  @ConfigProperty(name = "explorviz.kafka-streams.admission.max-open-traces")
+  /* default */ int admissionMaxOpenTraces;
+  @ConfigProperty(name = "explorviz.kafka-streams.admission.trace-timeout")
+  /* default */ long admissionTraceTimeoutInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.admission.policy")
+  /* default */ String admissionPolicy;
+  @ConfigProperty(name = "explorviz.kafka-streams.admission.sample-rate")
+  /* default */ double admissionSampleRate;
+  @ConfigProperty(name = "explorviz.kafka-streams.topics.out")
+  /* default */ String outTopic;
+  @ConfigProperty(name = "explorviz.kafka-streams.output.enabled")
+  /* default */ boolean output;
+  @ConfigProperty(name = "explorviz.kafka-streams.output.serde")
+  /* default */ String outputSerde;
   @ConfigProperty(name = "explorviz.kafka-streams.window.size")
   /* default */ long windowSizeInMs;
   @ConfigProperty(name = "explorviz.kafka-streams.window.grace")
   /* default */ long graceSizeInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.window.adaptive")
+  /* default */ boolean adaptiveWindows;
+  @ConfigProperty(name = "explorviz.kafka-streams.window.adaptive.min-size")
+  /* default */ long minWindowSizeInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.window.adaptive.max-size")
+  /* default */ long maxWindowSizeInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.window.adaptive.min-grace")
+  /* default */ long minGraceSizeInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.window.adaptive.max-grace")
+  /* default */ long maxGraceSizeInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.window.adaptive.quantile")
+  /* default */ double windowQuantile;
   @ConfigProperty(name = "explorviz.kafka-streams.discard")
   /* default */ boolean discard;
+  @ConfigProperty(name = "explorviz.kafka-streams.benchmark.stage")
+  /* default */ String benchmarkStageName;
+  @ConfigProperty(name = "explorviz.kafka-streams.partitioning.mode")
+  /* default */ String partitioningMode;
+  @ConfigProperty(name = "explorviz.kafka-streams.partitioning.upstream-key")
+  /* default */ String upstreamKey;
+  @ConfigProperty(name = "explorviz.kafka-streams.assembly")
+  /* default */ String assembly;
+  @ConfigProperty(name = "explorviz.kafka-streams.assembly.depth-pruning")
+  /* default */ boolean depthPruning;
+  @ConfigProperty(name = "explorviz.reduction.depthlimit")
+  /* default */ int depthLimit;
+  @ConfigProperty(name = "explorviz.kafka-streams.internal-serde")
+  /* default */ String internalSerde;
+  @ConfigProperty(name = "explorviz.kafka-streams.suppression.memory-bytes")
+  /* default */ long suppressionMemoryBytes;
+  @ConfigProperty(name = "explorviz.kafka-streams.idle.timeout")
+  /* default */ long idleTimeoutInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.idle.interval")
+  /* default */ long idleIntervalInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.late.stitching")
+  /* default */ boolean lateStitching;
+  @ConfigProperty(name = "explorviz.kafka-streams.sampling.enabled")
+  /* default */ boolean sampling;
+  @ConfigProperty(name = "explorviz.kafka-streams.sampling.interval")
+  /* default */ long samplingIntervalInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.sampling.duration-quantile")
+  /* default */ double samplingQuantile;
+  @ConfigProperty(name = "explorviz.kafka-streams.sampling.shape-limit")
+  /* default */ int samplingShapeLimit;
+  @ConfigProperty(name = "explorviz.kafka-streams.sampling.probability")
+  /* default */ double samplingProbability;
+  @ConfigProperty(name = "explorviz.kafka-streams.sampling.landscapes")
+  /* default */ Optional<List<String>> samplingLandscapes;
+  @ConfigProperty(name = "explorviz.kafka-streams.dedup.enabled")
+  /* default */ boolean dedup;
+  @ConfigProperty(name = "explorviz.kafka-streams.dedup.interval")
+  /* default */ long dedupIntervalInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.interactive-queries.enabled")
+  /* default */ boolean interactiveQueries;
+  @ConfigProperty(name = "explorviz.kafka-streams.reduction.decoupled")
+  /* default */ boolean decoupledReduction;
+  @ConfigProperty(name = "explorviz.kafka-streams.reduction.partitions")
+  /* default */ int reductionPartitions;
+  @ConfigProperty(name = "explorviz.kafka-streams.emission.mode")
+  /* default */ String emissionMode;
+  @ConfigProperty(name = "explorviz.kafka-streams.emission.inactivity")
+  /* default */ long inactivityInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.emission.timeout")
+  /* default */ long timeoutInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.emission.interval")
+  /* default */ long emissionIntervalInMs;
+  @ConfigProperty(name = "explorviz.kafka-streams.aggregation.max-spans")
+  /* default */ int maxTraceSpans;
+  @ConfigProperty(name = "explorviz.kafka-streams.aggregation.max-bytes")
+  /* default */ long maxTraceBytes;
+  @ConfigProperty(name = "explorviz.kafka-streams.aggregation.span-dedup")
+  /* default */ boolean spanDedup;
+  @ConfigProperty(name = "explorviz.kafka-streams.aggregation.span-dedup.exact-limit")
+  /* default */ int spanDedupExactLimit;
+  @ConfigProperty(name = "explorviz.segmentation.max-spans")
+  /* default */ int maxSegmentSpans;
+  @ConfigProperty(name = "explorviz.hash.algorithm")
+  /* default */ String hashAlgorithm;
+  @ConfigProperty(name = "explorviz.hash.cache-size")
+  /* default */ int hashCacheSize;
+  @ConfigProperty(name = "explorviz.hash.trust-upstream")
+  /* default */ boolean trustUpstreamHash;
+  @ConfigProperty(name = "explorviz.hash.binary")
+  /* default */ boolean binaryHash;
   @Inject
   /* default */ SpecificAvroSerde<Span> dynamicAvroSerde;
   @Inject
+  /* default */ SchemaRegistryClient registry;
+  @Inject
   /* default */ SpecificAvroSerde<Trace> traceAvroSerde;
   @Inject
+  /* default */ SpecificAvroSerde<TokenEvent> tokenEventAvroSerde;
+  @Inject
   /* default */ ReactiveTraceService reactiveTraceService;
   @Inject
-  /* default */ DepthReducer depthReducer;
+  /* default */ MeterRegistry meterRegistry;
+  @Inject
+  /* default */ AggregateMemory aggregateMemory;
+  @Inject
+  /* default */ TraceReduction traceReduction;
   @Inject
-  /* default */ SimpleLoopReducer loopReducer;
+  /* default */ LateSpanService lateSpanService;
 
   /**
    * Builds a Kafka Streams topology to process and aggregate spans into traces, and returns the
@@ -73,83 +234,156 @@ public class TopologyProducer {
   public Topology buildTopology() {
 
     final StreamsBuilder builder = new StreamsBuilder();
+    final BenchmarkStage benchmark = this.benchmarkStage();
+    final StageMetrics stages = new StageMetrics(this.meterRegistry, benchmark.isBenchmark());
+    this.stageMetrics = stages;
 
     // BEGIN Span conversion
 
-    final KStream<String, Span> spanStream =
-        builder.stream(this.inTopic, Consumed.with(Serdes.String(), this.dynamicAvroSerde));
+    // Only the fields needed for partitioning and windowing are decoded here
+    final KStream<String, LazySpan> spanStream =
+        builder.stream(this.inTopic, Consumed.with(Serdes.String(), this.lazySpanSerde()));
 
-    final KStream<String, Span> spanStreamWithHashCodes =
-        spanStream.mapValues((readOnlyKey, value) -> {
-          value.setHashCode(HashHelper.createHash(value));
-          return value;
-        });
+    final SpanHasher hasher =
+        new SpanHasher(SpanHashAlgorithm.fromConfigName(this.hashAlgorithm), this.hashCacheSize,
+            this.trustUpstreamHash);
+
+    // Decodes the complete span and sets its hash code, once spans are assembled into traces
+    final ValueMapper<LazySpan, Span> decoder = stages.timed(BenchmarkStage.HASHING, lazy -> {
+      final Span value = lazy.span();
+      if (this.binaryHash) {
+        value.setHashCodeBinary(hasher.hashBinary(value));
+        value.setHashCode("");
+      } else {
+        value.setHashCode(hasher.hash(value));
+      }
+      return value;
+    });
 
     // DEBUG Total spans
-    spanStreamWithHashCodes.foreach((key, value) -> {
+    spanStream.foreach((key, value) -> {
       this.lastReceivedTotalSpans.incrementAndGet();
+      stages.count(BenchmarkStage.CONSUMPTION);
     });
 
-    if (this.discard) {
+    if (benchmark == BenchmarkStage.CONSUMPTION) {
       return builder.build();
     }
 
-    final TimeWindows traceWindow =
-        TimeWindows.ofSizeAndGrace(Duration.ofMillis(this.windowSizeInMs),
-            Duration.ofMillis(this.graceSizeInMs));
+    final KStream<String, LazySpan> validSpanStream;
+    if (this.tokenFilter) {
+      validSpanStream = this.withValidToken(builder, spanStream);
+    } else {
+      validSpanStream = spanStream;
+    }
 
-    final TraceAggregator aggregator = new TraceAggregator();
+    // Admission tracks open traces, so all spans of a trace must be admitted by the same task
+    final KStream<String, LazySpan> traceSpanStream;
+    if (this.isCoPartitioned()) {
+      traceSpanStream = this.coPartitioned(validSpanStream);
+    } else if (this.isRepartitionedForAdmission()) {
+      traceSpanStream = this.repartitionedByTrace(validSpanStream);
+    } else {
+      traceSpanStream = validSpanStream;
+    }
+
+    final KStream<String, LazySpan> partitionedSpanStream;
+    if (this.admission) {
+      partitionedSpanStream = this.admitted(traceSpanStream);
+    } else {
+      partitionedSpanStream = traceSpanStream;
+    }
+
+    if (benchmark == BenchmarkStage.HASHING) {
+      partitionedSpanStream.mapValues(decoder).foreach((k, span) -> {
+      });
+      return builder.build();
+    }
+    if (benchmark == BenchmarkStage.REPARTITION) {
+      this.byTraceKey(partitionedSpanStream)
+          .foreach((k, span) -> stages.count(BenchmarkStage.REPARTITION));
+      return builder.build();
+    }
 
-    // Group by landscapeToken::TraceId
-    final KTable<Windowed<String>, Trace> traceTable =
-        spanStreamWithHashCodes.groupBy((k, v) -> v.getLandscapeToken() + "::" + v.getTraceId(),
-                Grouped.with(Serdes.String(), this.dynamicAvroSerde)).windowedBy(traceWindow)
-            .aggregate(Trace::new,
-                (key, value, aggregate) -> aggregator.aggregate(aggregate, value),
-                Materialized.with(Serdes.String(), this.traceAvroSerde))
-            .suppress(Suppressed.untilWindowCloses(Suppressed.BufferConfig.unbounded()));
+    final KStream<String, Trace> traceStream;
+    if (this.isCompletionMode()) {
+      traceStream = this.completedTraces(builder, partitionedSpanStream, decoder);
+    } else {
+      traceStream = this.windowedTraces(builder, partitionedSpanStream, decoder);
+    }
 
-    final KStream<String, Trace> traceStream =
-        traceTable.toStream().selectKey((k, v) -> v.getLandscapeToken() + "::" + k);
+    // Without suppression, the aggregation emits every update of a trace
+    final BenchmarkStage assemblyStage =
+        benchmark == BenchmarkStage.AGGREGATION ? benchmark : BenchmarkStage.SUPPRESSION;
 
     // DEBUG Total traces for window
     traceStream.foreach((key, value) -> {
       this.reconstructedTracesCount.incrementAndGet();
+      stages.count(assemblyStage);
     });
 
+    if (benchmark == BenchmarkStage.AGGREGATION || benchmark == BenchmarkStage.SUPPRESSION) {
+      return builder.build();
+    }
+
     // traceStream.foreach(
     // (key, value) -> System.out.println("|Trace.spans()| = " + value.getSpanList().size()));
 
-    final KStream<String, Trace> reducedTraceStream = traceStream.mapValues((k, trace) -> {
-      final int tracesOriginal = trace.getSpanList().size();
-      try {
-        final CallTree tree = CallTreeConverter.toTree(trace);
-        CallTree reduced = this.depthReducer.reduce(tree);
-        reduced = this.loopReducer.reduce(reduced);
-        final Trace reducedTrace = CallTreeConverter.toTrace(reduced);
-        if (LOGGER.isTraceEnabled()) {
-          LOGGER.trace("Reduced trace with {} original spans to {} spans.", tracesOriginal,
-              reducedTrace.getSpanList().size());
-        }
-        return reducedTrace;
-      } catch (final IllegalArgumentException e) {
-        if (LOGGER.isWarnEnabled()) {
-          LOGGER.warn("Could not perform reduction: {}", e.getMessage());
-        }
-        return trace;
-      }
+    final KStream<String, Trace> reducedTraceStream = this.toReduction(traceStream)
+        .mapValues(stages.timed(BenchmarkStage.REDUCTION, this.traceReduction::reduce));
 
-    });
+    final KStream<String, Trace> dedupedTraceStream;
+    if (this.dedup) {
+      dedupedTraceStream = this.deduplicated(builder, reducedTraceStream);
+    } else {
+      dedupedTraceStream = reducedTraceStream;
+    }
+
+    final KStream<String, Trace> finalTraceStream;
+    if (this.sampling) {
+      finalTraceStream = this.sampled(dedupedTraceStream);
+    } else {
+      finalTraceStream = dedupedTraceStream;
+    }
+
+    if (benchmark == BenchmarkStage.REDUCTION) {
+      finalTraceStream.foreach((k, t) -> {
+      });
+      return builder.build();
+    }
+
+    if (this.output) {
+      // Keyed by landscapeToken::traceId in all modes
+      final Serde<Trace> serde = INTERNAL_SERDE_COMPACT.equals(this.outputSerde)
+          ? new CompactTraceSerde() : this.traceAvroSerde;
+      finalTraceStream.to(this.outTopic, Produced.with(Serdes.String(), serde));
+    }
 
     // reducedTraceStream.foreach((key, value) -> System.out
     // .println("Reduction |Trace.spans()| = " + value.getSpanList().size()));
 
-    reducedTraceStream.foreach((k, t) -> {
+    final ValueMapper<Trace, net.explorviz.trace.persistence.dao.Trace> conversion =
+        stages.timed(BenchmarkStage.CONVERSION, TraceConverter::convertTraceToDao);
+    // All work of the persistence but the queries
+    final ValueMapper<net.explorviz.trace.persistence.dao.Trace, List<TraceSegment>> stub =
+        stages.timed(BenchmarkStage.PERSISTENCE_STUB,
+            daoTrace -> TraceSegmenter.split(daoTrace, this.maxSegmentSpans));
+
+    finalTraceStream.foreach((k, t) -> {
 
       // DEBUG Total traces for window
       this.spanReducedTracesCount.incrementAndGet();
 
-      this.reactiveTraceService.insert(TraceConverter.convertTraceToDao(t)).subscribe()
+      final net.explorviz.trace.persistence.dao.Trace daoTrace = conversion.apply(t);
+      if (benchmark == BenchmarkStage.CONVERSION) {
+        return;
+      }
+      if (benchmark == BenchmarkStage.PERSISTENCE_STUB) {
+        stub.apply(daoTrace);
+        return;
+      }
+
+      this.reactiveTraceService.insert(daoTrace).subscribe()
           .with(unused -> {
           }, failure -> {
             if (LOGGER.isErrorEnabled()) {
@@ -163,6 +397,477 @@ public class TopologyProducer {
     return builder.build();
   }
 
+  /**
+   * Merges reduced traces with identical call trees per landscape and interval into a single
+   * representative with accumulated counts and durations.
+   *
+   * @return the representatives once stream time passes the end of their interval
+   */
+  private KStream<String, Trace> deduplicated(final StreamsBuilder builder,
+      final KStream<String, Trace> traceStream) {
+    builder.addStateStore(
+        Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(DEDUP_STORE),
+            Serdes.String(), this.internalTraceSerde()));
+    final IdleAdvancement idleAdvancement = this.idleAdvancement();
+
+    return traceStream.process(() -> new TraceDeduplicationProcessor(DEDUP_STORE,
+        this.dedupIntervalInMs, idleAdvancement, this.meterRegistry), DEDUP_STORE);
+  }
+
+  /**
+   * Samples reduced (and deduplicated) traces with a {@link TailSampler} per task.
+   *
+   * @return the kept traces and the updated representatives of dropped traces
+   */
+  private KStream<String, Trace> sampled(final KStream<String, Trace> traceStream) {
+    final TailSampler.Policy defaultPolicy = new TailSampler.Policy(this.samplingQuantile,
+        this.samplingShapeLimit, this.samplingProbability);
+    final Map<String, TailSampler.Policy> policies =
+        TailSampler.Policy.parse(this.samplingLandscapes.orElse(List.of()));
+    final Duration interval = Duration.ofMillis(this.samplingIntervalInMs);
+
+    return traceStream.process(() -> new TailSamplingProcessor(
+        new TailSampler(defaultPolicy, policies, new Random()), interval, this.meterRegistry));
+  }
+
+  /**
+   * Drops spans of landscape tokens that are unknown or deleted, i.e., that have no entry in a
+   * {@link GlobalKTable} of the token events. Deleted tokens are removed from the topic by a
+   * tombstone. Dropped spans are counted per deleted token that is still known. Spans of unknown
+   * (or already removed) tokens are counted as token {@value #UNKNOWN_TOKEN}, since any agent can
+   * send arbitrary tokens.
+   *
+   * @return spans of existing tokens
+   */
+  private KStream<String, LazySpan> withValidToken(final StreamsBuilder builder,
+      final KStream<String, LazySpan> spanStream) {
+    final GlobalKTable<String, TokenEvent> tokens = builder.globalTable(this.tokenTopic,
+        Consumed.with(Serdes.String(), this.tokenEventAvroSerde),
+        Materialized.as(TOKEN_STORE));
+
+    final Map<String, Counter> dropped = new ConcurrentHashMap<>();
+    return spanStream.leftJoin(tokens, (k, v) -> v.getLandscapeToken(), (span, event) -> {
+      if (event == null || event.getType() == EventType.DELETED) {
+        final String tag = event == null ? UNKNOWN_TOKEN : span.getLandscapeToken();
+        dropped.computeIfAbsent(tag,
+            token -> Counter.builder("explorviz.trace.tokens.dropped.spans").tag("token", token)
+                .description("Spans dropped since their landscape token is unknown or deleted")
+                .register(this.meterRegistry)).increment();
+        return null;
+      }
+      return span;
+    }).filter((k, v) -> v != null);
+  }
+
+  /**
+   * Applies the rate limit and the open-trace limit per landscape (see
+   * {@link LandscapeAdmissionController}) once spans are partitioned by trace, such that each
+   * controller sees all spans of its traces, but before spans are assembled.
+   *
+   * @return the admitted spans
+   */
+  private KStream<String, LazySpan> admitted(final KStream<String, LazySpan> spanStream) {
+    final LandscapeAdmissionController.SheddingPolicy policy =
+        LandscapeAdmissionController.SheddingPolicy.fromConfigName(this.admissionPolicy);
+
+    return spanStream.processValues(() -> new AdmissionProcessor(
+        new LandscapeAdmissionController(this.admissionRate, this.admissionBurst,
+            this.admissionMaxOpenTraces, this.admissionTraceTimeoutInMs, policy,
+            this.admissionSampleRate),
+        this.meterRegistry, this.tokenFilter), Named.as(ADMISSION_PROCESSOR));
+  }
+
+  /**
+   * Validates that spans are keyed as configured in {@code partitioning.upstream-key}, i.e., that
+   * all spans of a trace already reside in the same partition of the input topic. Such spans are
+   * processed without a repartition topic. Mismatching spans are re-keyed and explicitly
+   * repartitioned into the partition their key maps to, and then merged with the matching spans.
+   * Both the agents and the repartitioning must use the default partitioner on string keys.
+   *
+   * @return spans keyed by the upstream key
+   */
+  private KStream<String, LazySpan> coPartitioned(final KStream<String, LazySpan> spanStream) {
+    final Counter fallbacks = Counter.builder("explorviz.trace.partitioning.fallbacks")
+        .description("Spans whose key does not match the upstream key and are repartitioned")
+        .register(this.meterRegistry);
+
+    final Map<String, KStream<String, LazySpan>> branches =
+        spanStream.split(Named.as(BRANCH_PREFIX))
+            .branch((k, v) -> this.upstreamKeyOf(v).equals(k), Branched.as(BRANCH_MATCHING))
+            .defaultBranch(Branched.as(BRANCH_MISMATCHING));
+
+    final KStream<String, LazySpan> repartitioned =
+        branches.get(BRANCH_PREFIX + BRANCH_MISMATCHING).peek((k, v) -> fallbacks.increment())
+            .selectKey((k, v) -> this.upstreamKeyOf(v))
+            .repartition(Repartitioned.with(Serdes.String(), this.lazySpanSerde())
+                .withName("partitioning-fallback"));
+
+    return branches.get(BRANCH_PREFIX + BRANCH_MATCHING).merge(repartitioned);
+  }
+
+  /**
+   * Assembles traces in tumbling windows and emits each trace once its window is closed. If a
+   * memory bound is configured for the suppression or spans are shed above a memory limit, closed
+   * windows are held in a {@link SuppressionBufferProcessor} instead of the unbounded Kafka Streams
+   * suppression buffer.
+   * In the append-only assembly, spans are stored individually by a
+   * {@link WindowedTraceAssemblyProcessor} instead. Since the Kafka Streams suppression can not be
+   * flushed by wall-clock time, idle advancement always uses one of both processors. Adaptive
+   * windows per landscape, segmented traces, and depth pruning always use the append-only
+   * assembly, which stores single spans instead of whole traces. So do spans co-partitioned by
+   * their bare trace id: the append-only assembly groups them by landscapeToken::traceId in place,
+   * whereas the windowed aggregation would merge traces of different landscapes with the same
+   * trace id, or need a repartition topic. Only the aggregates of the windowed aggregation can be
+   * queried by an {@link InFlightTraceQuery} while assembled.
+   */
+  private KStream<String, Trace> windowedTraces(final StreamsBuilder builder,
+      final KStream<String, LazySpan> spanStream, final ValueMapper<LazySpan, Span> decoder) {
+    if (ASSEMBLY_APPEND_ONLY.equals(this.assembly) || this.adaptiveWindows
+        || this.maxSegmentSpans > 0 || this.depthPruning || this.isKeyedByTraceId()) {
+      if (this.interactiveQueries && LOGGER.isWarnEnabled()) {
+        LOGGER.warn("In-flight traces can only be queried in assembly 'aggregate'.");
+      }
+      TraceAssemblyStore.addTo(builder, this.internalTraceSerde(), this.internalSpanSerde(),
+          this.depthPruning);
+
+      // Spans are stored off-heap until their trace is materialized, but still count as held
+      final TraceAggregator aggregator = this.traceAggregator(this.meteredAggregateMemory());
+      final AdaptiveWindowPolicy windowPolicy = this.windowPolicy();
+      final IdleAdvancement idleAdvancement = this.idleAdvancement();
+      // The processor decides on lateness itself, since it ties each trace to a window
+      final Consumer<Span> lateSpans = this.lateSpans();
+      final ProcessorSupplier<String, Span, String, Trace> assembler =
+          () -> new WindowedTraceAssemblyProcessor(windowPolicy, aggregator, idleAdvancement,
+              lateSpans);
+
+      return this.byTraceKey(spanStream).mapValues(decoder)
+          .process(assembler, TraceAssemblyStore.storeNames(this.depthPruning));
+    }
+
+    final TimeWindows traceWindow =
+        TimeWindows.ofSizeAndGrace(Duration.ofMillis(this.windowSizeInMs),
+            Duration.ofMillis(this.graceSizeInMs));
+
+    // Only the suppression buffer keeps the estimate, it holds the latest aggregate of each window
+    final boolean unsuppressed = this.benchmarkStage() == BenchmarkStage.AGGREGATION;
+    final boolean buffered = this.suppressionMemoryBytes > 0 || this.idleTimeoutInMs > 0
+        || this.aggregateMemory.isLimited();
+    final TraceAggregator aggregator =
+        this.traceAggregator(unsuppressed || !buffered ? null : this.meteredAggregateMemory());
+    final StageMetrics stages = this.stageMetrics;
+    final AdaptiveWindowPolicy windowPolicy =
+        AdaptiveWindowPolicy.fixed(this.windowSizeInMs, this.graceSizeInMs);
+
+    // Group by landscapeToken::TraceId, which is already the upstream key if co-partitioned, or
+    // the key if repartitioned for admission
+    final KGroupedStream<String, LazySpan> groupedSpans;
+    if (this.isCoPartitioned() || this.isRepartitionedForAdmission()) {
+      groupedSpans = this.onTime(spanStream, windowPolicy, IdleAdvancement.DISABLED, decoder)
+          .groupByKey(Grouped.with(Serdes.String(), this.lazySpanSerde()));
+    } else if (this.lateStitching) {
+      // Repartition explicitly, such that late spans are detected in the task of the aggregation
+      groupedSpans = this.onTime(this.byTraceKey(spanStream), windowPolicy,
+              IdleAdvancement.DISABLED, decoder)
+          .groupByKey(Grouped.with(Serdes.String(), this.lazySpanSerde()));
+    } else {
+      groupedSpans = spanStream.groupBy((k, v) -> v.getLandscapeToken() + "::" + v.getTraceId(),
+          Grouped.with(Serdes.String(), this.lazySpanSerde()));
+    }
+
+    // Named stores can be queried, but their changelog topic is named after them
+    final Serde<TraceAggregate> aggregateSerde = new TraceAggregateSerde(this.internalTraceSerde());
+    final Materialized<String, TraceAggregate, WindowStore<Bytes, byte[]>> materialized;
+    if (this.interactiveQueries) {
+      materialized = Materialized.<String, TraceAggregate, WindowStore<Bytes, byte[]>>as(
+              InFlightTraceQuery.AGGREGATE_STORE).withKeySerde(Serdes.String())
+          .withValueSerde(aggregateSerde);
+    } else {
+      materialized = Materialized.with(Serdes.String(), aggregateSerde);
+    }
+
+    // The running estimate of the bytes stays in the store of the aggregation
+    final KTable<Windowed<String>, Trace> traceTable = groupedSpans.windowedBy(traceWindow)
+        .aggregate(TraceAggregate::new,
+            (key, value, aggregate) -> stages.time(BenchmarkStage.AGGREGATION,
+                () -> aggregator.aggregate(aggregate, decoder.apply(value))),
+            materialized)
+        .mapValues(TraceAggregate::getTrace);
+
+    if (unsuppressed) {
+      return traceTable.toStream().selectKey((k, trace) -> k.key());
+    }
+
+    final KStream<String, Trace> suppressed;
+
+    if (buffered) {
+      builder.addStateStore(
+          Stores.keyValueStoreBuilder(Stores.inMemoryKeyValueStore(SUPPRESSION_MEMORY_STORE),
+              Serdes.Bytes(), Serdes.ByteArray()));
+      builder.addStateStore(
+          Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(SUPPRESSION_DISK_STORE),
+              Serdes.Bytes(), Serdes.ByteArray()));
+
+      // Without a memory bound, the buffer is only used for idle advancement and never spills
+      final long memoryBytes =
+          this.suppressionMemoryBytes > 0 ? this.suppressionMemoryBytes : Long.MAX_VALUE;
+      final SuppressionBufferMetrics metrics = new SuppressionBufferMetrics(this.meterRegistry);
+      final IdleAdvancement idleAdvancement = this.idleAdvancement();
+      final ProcessorSupplier<Windowed<String>, Trace, String, Trace> suppression =
+          () -> new SuppressionBufferProcessor(SUPPRESSION_MEMORY_STORE, SUPPRESSION_DISK_STORE,
+              this.graceSizeInMs, memoryBytes, this.internalTraceSerde(), metrics,
+              this.aggregateMemory, idleAdvancement);
+
+      suppressed = traceTable.toStream()
+          .process(suppression, SUPPRESSION_MEMORY_STORE, SUPPRESSION_DISK_STORE);
+    } else {
+      suppressed = traceTable.suppress(
+              Suppressed.untilWindowCloses(Suppressed.BufferConfig.unbounded())).toStream()
+          .selectKey((k, v) -> k.key());
+    }
+
+    return suppressed;
+  }
+
+  /**
+   * Registers the metrics of the estimated bytes in open aggregates, which are only kept if the
+   * aggregates are held by the append-only assembly or the suppression buffer.
+   *
+   * @return the estimate of the bytes in open aggregates
+   */
+  private AggregateMemory meteredAggregateMemory() {
+    Gauge.builder("explorviz.trace.aggregates.bytes", this.aggregateMemory, AggregateMemory::get)
+        .description("Estimated bytes of spans held in open trace aggregates").baseUnit("bytes")
+        .register(this.meterRegistry);
+    FunctionCounter.builder("explorviz.trace.aggregates.shed", this.aggregateMemory,
+            AggregateMemory::shedSpans)
+        .description("Spans dropped since the bytes of open aggregates exceeded the limit")
+        .register(this.meterRegistry);
+    return this.aggregateMemory;
+  }
+
+  /**
+   * Creates an aggregator with the configured limits per trace, which drops duplicate spans and
+   * spans beyond the depth limit if enabled.
+   *
+   * @param memory estimate of the bytes in open aggregates, or null if the spans are not held
+   * @return the aggregator
+   */
+  private TraceAggregator traceAggregator(final AggregateMemory memory) {
+    SpanDeduplicator deduplicator = null;
+    if (this.spanDedup) {
+      deduplicator = new SpanDeduplicator(this.spanDedupExactLimit);
+      FunctionCounter.builder("explorviz.trace.spans.duplicates", deduplicator,
+              SpanDeduplicator::duplicates)
+          .description("Spans dropped since their span id was already part of the trace")
+          .register(this.meterRegistry);
+    }
+    // Applied by the append-only assembly, which is always used with depth pruning
+    final int maxDepth = this.depthPruning ? this.depthLimit : -1;
+    return new TraceAggregator(this.maxTraceSpans, this.maxTraceBytes, maxDepth, memory,
+        deduplicator);
+  }
+
+  /**
+   * Separates spans that arrive after their window was closed (see {@link LateSpanRouter}) if
+   * late stitching is enabled. Such spans are stitched into their already persisted trace by the
+   * {@link LateSpanService} instead of being dropped by the windowed aggregation. The router
+   * computes the window of each span on its own, which is only valid for the fixed windows of the
+   * aggregation; the append-only assembly detects late spans itself.
+   *
+   * @return the spans whose window is still open
+   */
+  private KStream<String, LazySpan> onTime(final KStream<String, LazySpan> spanStream,
+      final AdaptiveWindowPolicy windowPolicy, final IdleAdvancement idleAdvancement,
+      final ValueMapper<LazySpan, Span> decoder) {
+    if (!this.lateStitching) {
+      return spanStream;
+    }
+
+    final Consumer<Span> lateSpans = this.lateSpans();
+    final Map<String, KStream<String, LazySpan>> branches = spanStream
+        .processValues(() -> new LateSpanRouter(windowPolicy, idleAdvancement))
+        .split(Named.as(LATE_BRANCH_PREFIX))
+        .branch((k, v) -> v.isLate(), Branched.as(BRANCH_LATE))
+        .defaultBranch(Branched.as(BRANCH_ON_TIME));
+
+    branches.get(LATE_BRANCH_PREFIX + BRANCH_LATE).mapValues(decoder)
+        .foreach((k, span) -> lateSpans.accept(span));
+
+    return branches.get(LATE_BRANCH_PREFIX + BRANCH_ON_TIME);
+  }
+
+  /**
+   * Handles spans that arrived after their window was closed: they are stitched by the
+   * {@link LateSpanService} if late stitching is enabled, and dropped otherwise.
+   */
+  private Consumer<Span> lateSpans() {
+    if (!this.lateStitching) {
+      return span -> {
+        // Dropped, just as in the windowed aggregation
+      };
+    }
+
+    final Counter lateSpans = Counter.builder("explorviz.trace.late.spans")
+        .description("Spans that arrived after their window was closed and are stitched")
+        .register(this.meterRegistry);
+    return span -> {
+      lateSpans.increment();
+      this.lateSpanService.stitch(span).whenComplete((unused, failure) -> {
+        if (failure != null && LOGGER.isErrorEnabled()) {
+          LOGGER.error("Could not stitch late span", failure);
+        }
+      });
+    };
+  }
+
+  /**
+   * Assembles traces without windows and emits each trace as soon as it is complete (see
+   * {@link TraceCompletionProcessor}).
+   */
+  private KStream<String, Trace> completedTraces(final StreamsBuilder builder,
+      final KStream<String, LazySpan> spanStream, final ValueMapper<LazySpan, Span> decoder) {
+    if (this.interactiveQueries && LOGGER.isWarnEnabled()) {
+      LOGGER.warn("In-flight traces can only be queried in assembly 'aggregate'.");
+    }
+    TraceAssemblyStore.addTo(builder, this.internalTraceSerde(), this.internalSpanSerde(),
+        this.depthPruning);
+
+    final TraceAggregator aggregator = this.traceAggregator(this.meteredAggregateMemory());
+    final ProcessorSupplier<String, Span, String, Trace> completion =
+        () -> new TraceCompletionProcessor(this.inactivityInMs, this.timeoutInMs,
+            Duration.ofMillis(this.emissionIntervalInMs), aggregator);
+
+    return this.byTraceKey(spanStream).mapValues(decoder)
+        .process(completion, TraceAssemblyStore.storeNames(this.depthPruning));
+  }
+
+  /**
+   * Re-keys spans by landscapeToken::TraceId and repartitions them, such that all spans of a trace
+   * are processed by the same task. Co-partitioned spans are already in place, and spans
+   * repartitioned for admission are already keyed and in place.
+   */
+  private KStream<String, LazySpan> byTraceKey(final KStream<String, LazySpan> spanStream) {
+    if (this.isRepartitionedForAdmission()) {
+      return spanStream;
+    }
+    if (this.isCoPartitioned()) {
+      return spanStream.selectKey((k, v) -> v.getLandscapeToken() + "::" + v.getTraceId());
+    }
+    return this.repartitionedByTrace(spanStream);
+  }
+
+  private KStream<String, LazySpan> repartitionedByTrace(
+      final KStream<String, LazySpan> spanStream) {
+    return spanStream.selectKey((k, v) -> v.getLandscapeToken() + "::" + v.getTraceId())
+        .repartition(Repartitioned.with(Serdes.String(), this.lazySpanSerde()));
+  }
+
+  /**
+   * Optionally writes assembled traces to an internal topic, such that reduction and persistence
+   * run in a sub-topology of their own. Its tasks are scheduled independently of the assembly, and
+   * their number follows the partitions of that topic. Thus, reducing large traces does not stall
+   * the intake of spans.
+   */
+  private KStream<String, Trace> toReduction(final KStream<String, Trace> traceStream) {
+    if (!this.decoupledReduction) {
+      return traceStream;
+    }
+
+    Repartitioned<String, Trace> repartitioned =
+        Repartitioned.with(Serdes.String(), this.internalTraceSerde()).withName("assembled-traces");
+    if (this.reductionPartitions > 0) {
+      repartitioned = repartitioned.withNumberOfPartitions(this.reductionPartitions);
+    }
+    return traceStream.repartition(repartitioned);
+  }
+
+  /**
+   * Serde for spans from the input and on repartition topics that are not decoded completely
+   * until needed. The bytes of spans that were not decoded are passed through as is.
+   */
+  private Serde<LazySpan> lazySpanSerde() {
+    return new LazySpanSerde(this.dynamicAvroSerde, this.registry);
+  }
+
+  /**
+   * Serde for spans in state stores.
+   */
+  private Serde<Span> internalSpanSerde() {
+    if (INTERNAL_SERDE_COMPACT.equals(this.internalSerde)) {
+      return new CompactSpanSerde();
+    }
+    return this.dynamicAvroSerde;
+  }
+
+  /**
+   * Serde for traces in state stores and on internal topics.
+   */
+  private Serde<Trace> internalTraceSerde() {
+    if (INTERNAL_SERDE_COMPACT.equals(this.internalSerde)) {
+      return new CompactTraceSerde();
+    }
+    return this.traceAvroSerde;
+  }
+
+  private String upstreamKeyOf(final LazySpan span) {
+    if (UPSTREAM_KEY_TRACE_ID.equals(this.upstreamKey)) {
+      return span.getTraceId();
+    }
+    return span.getLandscapeToken() + "::" + span.getTraceId();
+  }
+
+  private boolean isCompletionMode() {
+    return EMISSION_MODE_COMPLETION.equals(this.emissionMode);
+  }
+
+  /**
+   * Window size and grace per landscape, or the configured window size and grace for all
+   * landscapes unless adaptive windows are enabled.
+   */
+  private AdaptiveWindowPolicy windowPolicy() {
+    if (!this.adaptiveWindows) {
+      return AdaptiveWindowPolicy.fixed(this.windowSizeInMs, this.graceSizeInMs);
+    }
+    return new AdaptiveWindowPolicy(this.windowSizeInMs, this.graceSizeInMs,
+        this.minWindowSizeInMs, this.maxWindowSizeInMs, this.minGraceSizeInMs,
+        this.maxGraceSizeInMs, this.windowQuantile);
+  }
+
+  private IdleAdvancement idleAdvancement() {
+    if (this.idleTimeoutInMs <= 0) {
+      return IdleAdvancement.DISABLED;
+    }
+    return new IdleAdvancement(this.idleTimeoutInMs, Duration.ofMillis(this.idleIntervalInMs),
+        this.meterRegistry);
+  }
+
+  /**
+   * Returns the stage after which the topology ends. Discarding all records corresponds to the
+   * consumption stage.
+   */
+  private BenchmarkStage benchmarkStage() {
+    if (this.discard) {
+      return BenchmarkStage.CONSUMPTION;
+    }
+    return BenchmarkStage.fromConfigName(this.benchmarkStageName);
+  }
+
+  private boolean isCoPartitioned() {
+    return PARTITIONING_CO_PARTITIONED.equals(this.partitioningMode);
+  }
+
+  /**
+   * Whether spans are repartitioned by landscapeToken::TraceId before admission, and not only
+   * before their assembly. Co-partitioned spans need no repartition.
+   */
+  private boolean isRepartitionedForAdmission() {
+    return this.admission && !this.isCoPartitioned();
+  }
+
+  private boolean isKeyedByTraceId() {
+    return this.isCoPartitioned() && UPSTREAM_KEY_TRACE_ID.equals(this.upstreamKey);
+  }
+
   @Scheduled(every = "{explorviz.log.span.interval}")
     /* default */ void logStatus() {
     final int totalSpans = this.lastReceivedTotalSpans.getAndSet(0);
@@ -171,12 +876,23 @@ public class TopologyProducer {
     if (LOGGER.isDebugEnabled()) {
       if (this.discard) {
         LOGGER.debug("Received and discarded {} spans.", totalSpans);
+      } else if (this.isCompletionMode()) {
+        LOGGER.debug("Received {} spans: {} completed traces reconstructed,"
+            + " the Spans of {} traces have been reduced.", totalSpans, reconstructedTraces,
+            spanReducedTraces);
       } else {
         LOGGER.debug("Received {} spans: {} trace reconstructed in"
                 + " {} time window, the Spans of {} traces have been reduced.", totalSpans,
             reconstructedTraces, this.windowSizeInMs, spanReducedTraces);
       }
     }
+
+    final StageMetrics stages = this.stageMetrics;
+    if (stages != null && stages.isEnabled() && LOGGER.isInfoEnabled()) {
+      for (final String line : stages.report()) {
+        LOGGER.info(line);
+      }
+    }
   }
 
 }
@@ -0,0 +1,59 @@
+package net.explorviz.trace.kafka;
+
+import java.nio.ByteBuffer;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.service.TraceAggregate;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Serde for {@link TraceAggregate}s in the store of the windowed aggregation. The running estimate
+ * of the bytes precedes the trace, which is (de)serialized by the given trace serde.
+ */
+public class TraceAggregateSerde implements Serde<TraceAggregate> {
+
+  private final Serde<Trace> traceSerde;
+
+  /**
+   * Creates a new serde.
+   *
+   * @param traceSerde serde to (de)serialize the traces with
+   */
+  public TraceAggregateSerde(final Serde<Trace> traceSerde) {
+    this.traceSerde = traceSerde;
+  }
+
+  @Override
+  public Serializer<TraceAggregate> serializer() {
+    final Serializer<Trace> serializer = this.traceSerde.serializer();
+    return (topic, aggregate) -> {
+      if (aggregate == null) {
+        return null;
+      }
+      final byte[] serialized = serializer.serialize(topic, aggregate.getTrace());
+      return ByteBuffer.allocate(Long.BYTES + serialized.length)
+          .putLong(aggregate.getEstimatedBytes()).put(serialized).array();
+    };
+  }
+
+  @Override
+  public Deserializer<TraceAggregate> deserializer() {
+    final Deserializer<Trace> deserializer = this.traceSerde.deserializer();
+    return (topic, data) -> {
+      if (data == null) {
+        return null;
+      }
+      if (data.length < Long.BYTES) {
+        throw new SerializationException("Truncated trace aggregate");
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(data);
+      final long estimatedBytes = buffer.getLong();
+      final byte[] serialized = new byte[buffer.remaining()];
+      buffer.get(serialized);
+      return new TraceAggregate(deserializer.deserialize(topic, serialized), estimatedBytes);
+    };
+  }
+
+}
@@ -0,0 +1,425 @@
+package net.explorviz.trace.kafka;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.service.AggregateMemory;
+import net.explorviz.trace.service.TraceAggregator;
+import net.explorviz.trace.service.TraceSizeEstimator;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+
+/**
+ * Append-only storage for traces under assembly. Each span is written once into a span store,
+ * keyed by the assembly key of its trace and its span id. A second store holds a summary of each
+ * trace, i.e., its start and end time, duration and counts as computed by {@link TraceAggregator},
+ * but no spans. Thus, adding a span costs a constant amount of serialization and changelog
+ * traffic, and the complete {@link Trace} is only materialized once when it is emitted. The limits
+ * of the aggregator on the spans and bytes per trace are applied as spans arrive, just as in the
+ * windowed aggregation, hence the number and estimated bytes of the stored spans are kept per
+ * trace. They are not persisted, but rebuilt from the stores. The estimated bytes are held in the
+ * {@link AggregateMemory} of the aggregator, if any, until the trace is removed or the store is
+ * closed.
+ *
+ * <p>If the aggregator limits the depth of traces, the level of each span is kept in a third store
+ * as soon as the level of its parent is known. Spans deeper than the limit are not stored, but
+ * counted as dropped, and remembered by their level only, such that their descendants are dropped
+ * as well. Spans whose parent has not arrived yet are indexed by their parent in a fourth store
+ * and resolved once the parent arrives. Spans whose parent never arrives are dropped once their
+ * trace is emitted. Hence, the emitted traces only hold the connected spans the depth reduction
+ * keeps anyway.
+ */
+public class TraceAssemblyStore {
+
+  public static final String SUMMARY_STORE = "trace-assembly-summary-store";
+  public static final String SPAN_STORE = "trace-assembly-span-store";
+  public static final String LEVEL_STORE = "trace-assembly-level-store";
+  public static final String ORPHAN_STORE = "trace-assembly-orphan-store";
+
+  private static final String SEPARATOR = "::";
+
+  private final KeyValueStore<String, Trace> summaries;
+  private final KeyValueStore<String, Span> spans;
+  private final KeyValueStore<String, Integer> levels;
+  private final KeyValueStore<String, String> orphans;
+  private final TraceAggregator aggregator;
+  private final AggregateMemory memory;
+  private final StringSerializer prefixSerializer = new StringSerializer();
+
+  // Spans stored per trace, the estimated bytes include the trace itself
+  private final Map<String, Stored> stored = new HashMap<>();
+  private long heldBytes;
+
+  /**
+   * Retrieves the stores from the given processor context.
+   *
+   * @param context    context of the processor that has access to the stores
+   * @param aggregator aggregator used to compute the trace summaries
+   */
+  public TraceAssemblyStore(final ProcessorContext<?, ?> context,
+      final TraceAggregator aggregator) {
+    this.summaries = context.getStateStore(SUMMARY_STORE);
+    this.spans = context.getStateStore(SPAN_STORE);
+    if (aggregator.limitsDepth()) {
+      this.levels = context.getStateStore(LEVEL_STORE);
+      this.orphans = context.getStateStore(ORPHAN_STORE);
+    } else {
+      this.levels = null;
+      this.orphans = null;
+    }
+    this.aggregator = aggregator;
+    this.memory = aggregator.getMemory();
+
+    try (KeyValueIterator<String, Trace> it = this.summaries.all()) {
+      while (it.hasNext()) {
+        final KeyValue<String, Trace> summary = it.next();
+        this.track(summary.key, summary.value);
+      }
+    }
+    try (KeyValueIterator<String, Span> it = this.spans.all()) {
+      while (it.hasNext()) {
+        final KeyValue<String, Span> span = it.next();
+        final Stored trace =
+            this.stored.get(span.key.substring(0, span.key.lastIndexOf(SEPARATOR)));
+        if (trace != null) {
+          this.hold(trace.add(span.value));
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the persistent stores to the given builder.
+   *
+   * @param builder     the builder of the topology
+   * @param traceSerde  serde for the trace summaries
+   * @param spanSerde   serde for the spans
+   * @param limitsDepth whether the stores for the levels of spans are needed
+   */
+  public static void addTo(final StreamsBuilder builder, final Serde<Trace> traceSerde,
+      final Serde<Span> spanSerde, final boolean limitsDepth) {
+    builder.addStateStore(
+        Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(SUMMARY_STORE),
+            Serdes.String(), traceSerde));
+    builder.addStateStore(
+        Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(SPAN_STORE), Serdes.String(),
+            spanSerde));
+    if (limitsDepth) {
+      builder.addStateStore(
+          Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(LEVEL_STORE),
+              Serdes.String(), Serdes.Integer()));
+      builder.addStateStore(
+          Stores.keyValueStoreBuilder(Stores.persistentKeyValueStore(ORPHAN_STORE),
+              Serdes.String(), Serdes.String()));
+    }
+  }
+
+  /**
+   * Returns the names of the stores a processor that uses this store must be connected to.
+   *
+   * @param limitsDepth whether the depth of traces is limited
+   * @return the names of the stores
+   */
+  public static String[] storeNames(final boolean limitsDepth) {
+    if (limitsDepth) {
+      return new String[] {SUMMARY_STORE, SPAN_STORE, LEVEL_STORE, ORPHAN_STORE};
+    }
+    return new String[] {SUMMARY_STORE, SPAN_STORE};
+  }
+
+  /**
+   * Appends a span to the trace with the given key. If the aggregator drops duplicates, a span
+   * whose id is already known for the trace is skipped and counted. If it limits the depth, spans
+   * beyond the limit are only counted. Spans the aggregator drops, i.e., beyond the limits on the
+   * spans and bytes of the trace or while the memory is exhausted, are counted as well, but the
+   * first span of a trace is always stored.
+   *
+   * @param key  the assembly key of the trace
+   * @param span the span to append
+   * @return true iff the span is the first span of the trace
+   */
+  public boolean append(final String key, final Span span) {
+    final String spanKey = key + SEPARATOR + span.getSpanId();
+    if (this.aggregator.dropsDuplicates() && this.isKnown(spanKey)) {
+      this.aggregator.countDuplicate();
+      return false;
+    }
+
+    final Trace summary = this.summaries.get(key);
+    final boolean fresh = summary == null;
+    final Trace updated = this.aggregator.summarize(fresh ? new Trace() : summary, span);
+    final Stored known = this.stored.get(key);
+    final Stored trace = known == null ? this.track(key, updated) : known;
+
+    boolean keep = !this.aggregator.limitsDepth() || this.trackLevel(key, span, updated);
+    if (keep && !fresh && this.aggregator.drops(trace.spans, trace.bytes, span)) {
+      updated.setDroppedSpanCount(updated.getDroppedSpanCount() + 1);
+      keep = false;
+    }
+    this.summaries.put(key, updated);
+    if (keep) {
+      this.spans.put(spanKey, span);
+      this.hold(trace.add(span));
+    }
+    return fresh;
+  }
+
+  private boolean isKnown(final String spanKey) {
+    // Spans beyond the depth limit are only known by their level
+    return this.spans.get(spanKey) != null
+        || this.aggregator.limitsDepth() && this.levels.get(spanKey) != null;
+  }
+
+  /**
+   * Keeps track of the level of a span and its orphans. Spans beyond the depth limit are counted
+   * in the summary.
+   *
+   * @return false iff the span is deeper than the limit
+   */
+  private boolean trackLevel(final String key, final Span span, final Trace summary) {
+    final Integer level = this.levelOf(key, span);
+    if (level == null) {
+      // Resolved once the parent arrives
+      this.orphans.put(key + SEPARATOR + span.getParentSpanId() + SEPARATOR + span.getSpanId(),
+          span.getSpanId());
+      return true;
+    }
+
+    this.levels.put(key + SEPARATOR + span.getSpanId(), level);
+    final boolean keep = level <= this.aggregator.getMaxDepth();
+    final int pruned = this.resolveOrphans(key, span.getSpanId(), level) + (keep ? 0 : 1);
+    summary.setDroppedSpanCount(summary.getDroppedSpanCount() + pruned);
+    return keep;
+  }
+
+  private Integer levelOf(final String key, final Span span) {
+    if (span.getParentSpanId().isEmpty()) {
+      return 0;
+    }
+    final Integer parentLevel = this.levels.get(key + SEPARATOR + span.getParentSpanId());
+    return parentLevel == null ? null : parentLevel + 1;
+  }
+
+  /**
+   * Assigns levels to the (transitive) orphans of a span whose level became known and removes
+   * those deeper than the depth limit.
+   *
+   * @return the number of removed spans
+   */
+  private int resolveOrphans(final String key, final String spanId, final int level) {
+    int pruned = 0;
+    final Deque<String> parents = new ArrayDeque<>();
+    final Deque<Integer> parentLevels = new ArrayDeque<>();
+    parents.add(spanId);
+    parentLevels.add(level);
+
+    while (!parents.isEmpty()) {
+      final String parentPrefix = key + SEPARATOR + parents.poll() + SEPARATOR;
+      final int childLevel = parentLevels.poll() + 1;
+
+      final List<KeyValue<String, String>> children = new ArrayList<>();
+      try (KeyValueIterator<String, String> it = this.orphans.prefixScan(parentPrefix,
+          this.prefixSerializer)) {
+        it.forEachRemaining(children::add);
+      }
+      for (final KeyValue<String, String> child : children) {
+        this.orphans.delete(child.key);
+        final String childKey = key + SEPARATOR + child.value;
+        this.levels.put(childKey, childLevel);
+        if (childLevel > this.aggregator.getMaxDepth()) {
+          // Orphans beyond the other limits were not stored, but are already counted
+          final Span removed = this.spans.delete(childKey);
+          if (removed != null) {
+            this.hold(-this.stored.get(key).remove(removed));
+            pruned++;
+          }
+        }
+        parents.add(child.value);
+        parentLevels.add(childLevel);
+      }
+    }
+    return pruned;
+  }
+
+  /**
+   * Returns the summary (without spans) of a trace.
+   *
+   * @param key the assembly key of the trace
+   * @return the summary or null if there is no such trace
+   */
+  public Trace summary(final String key) {
+    return this.summaries.get(key);
+  }
+
+  /**
+   * Materializes the complete trace, i.e., the summary with all stored spans.
+   *
+   * @param key the assembly key of the trace
+   * @return the complete trace or null if there is no such trace
+   */
+  public Trace materialize(final String key) {
+    final Trace trace = this.summaries.get(key);
+    if (trace == null) {
+      return null;
+    }
+
+    final List<Span> spanList = new LinkedList<>();
+    try (KeyValueIterator<String, Span> it = this.spans.prefixScan(key + SEPARATOR,
+        this.prefixSerializer)) {
+      while (it.hasNext()) {
+        spanList.add(it.next().value);
+      }
+    }
+    trace.setSpanList(spanList);
+    return trace;
+  }
+
+  /**
+   * Drops the spans of a materialized trace whose parent never arrived, including their
+   * descendants, and counts them as dropped. Their level is unknown, hence they are stored
+   * regardless of the depth limit, but they are not connected to the call tree the reduction
+   * expects. Should be called once the trace is emitted, since the parent may still arrive before.
+   * If the root of the trace never arrived, all spans are kept.
+   *
+   * @param key   the assembly key of the trace
+   * @param trace the materialized trace, modified in place
+   */
+  public void dropOrphans(final String key, final Trace trace) {
+    if (!this.aggregator.limitsDepth()) {
+      return;
+    }
+
+    final Set<String> unresolved = new HashSet<>();
+    try (KeyValueIterator<String, String> it = this.orphans.prefixScan(key + SEPARATOR,
+        this.prefixSerializer)) {
+      it.forEachRemaining(orphan -> unresolved.add(orphan.value));
+    }
+    if (unresolved.isEmpty() || !this.hasRoot(key)) {
+      return;
+    }
+
+    final List<Span> spanList = new ArrayList<>(trace.getSpanList().size());
+    for (final Span span : trace.getSpanList()) {
+      if (!unresolved.contains(span.getSpanId())) {
+        spanList.add(span);
+      }
+    }
+    trace.setDroppedSpanCount(
+        trace.getDroppedSpanCount() + trace.getSpanList().size() - spanList.size());
+    trace.setSpanList(spanList);
+  }
+
+  private boolean hasRoot(final String key) {
+    // Levels are only known for the root and its (transitive) children
+    try (KeyValueIterator<String, Integer> it = this.levels.prefixScan(key + SEPARATOR,
+        this.prefixSerializer)) {
+      return it.hasNext();
+    }
+  }
+
+  /**
+   * Removes a trace and all its spans.
+   *
+   * @param key the assembly key of the trace
+   */
+  public void remove(final String key) {
+    this.deleteByPrefix(this.spans, key + SEPARATOR);
+    if (this.aggregator.limitsDepth()) {
+      this.deleteByPrefix(this.levels, key + SEPARATOR);
+      this.deleteByPrefix(this.orphans, key + SEPARATOR);
+    }
+    this.summaries.delete(key);
+    final Stored trace = this.stored.remove(key);
+    if (trace != null) {
+      this.hold(-trace.bytes);
+    }
+  }
+
+  /**
+   * Releases the bytes held by the traces in this store, since they are no longer held by this
+   * instance once its task is closed, e.g., revoked.
+   */
+  public void close() {
+    this.hold(-this.heldBytes);
+    this.stored.clear();
+  }
+
+  private Stored track(final String key, final Trace summary) {
+    final Stored trace = new Stored(TraceSizeEstimator.estimate(summary));
+    this.stored.put(key, trace);
+    this.hold(trace.bytes);
+    return trace;
+  }
+
+  private void hold(final long bytes) {
+    this.heldBytes += bytes;
+    if (this.memory != null) {
+      this.memory.add(bytes);
+    }
+  }
+
+  private <V> void deleteByPrefix(final KeyValueStore<String, V> store, final String prefix) {
+    final List<String> keys = new ArrayList<>();
+    try (KeyValueIterator<String, V> it = store.prefixScan(prefix, this.prefixSerializer)) {
+      while (it.hasNext()) {
+        keys.add(it.next().key);
+      }
+    }
+    for (final String storeKey : keys) {
+      store.delete(storeKey);
+    }
+  }
+
+  /**
+   * Iterates over the summaries of all traces in the order of their assembly keys. The iterator
+   * must be closed.
+   *
+   * @return iterator over all trace summaries
+   */
+  public KeyValueIterator<String, Trace> all() {
+    return this.summaries.all();
+  }
+
+  /**
+   * Number and estimated bytes of the spans stored for a trace.
+   */
+  private static class Stored {
+
+    private int spans;
+    private long bytes;
+
+    /* default */ Stored(final long bytes) {
+      this.bytes = bytes;
+    }
+
+    /* default */ long add(final Span span) {
+      final long spanBytes = TraceSizeEstimator.estimate(span);
+      this.spans++;
+      this.bytes += spanBytes;
+      return spanBytes;
+    }
+
+    /* default */ long remove(final Span span) {
+      final long spanBytes = TraceSizeEstimator.estimate(span);
+      this.spans--;
+      this.bytes -= spanBytes;
+      return spanBytes;
+    }
+  }
+
+}
@@ -0,0 +1,137 @@
+package net.explorviz.trace.kafka;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.service.TraceAggregator;
+import net.explorviz.trace.service.TraceCompleteness;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.processor.api.Processor;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.processor.api.Record;
+import org.apache.kafka.streams.state.KeyValueIterator;
+
+/**
+ * Aggregates spans (keyed by landscapeToken::traceId) into traces and emits a trace as soon as it
+ * is complete, i.e., its root and all referenced parents have arrived and no new span has been
+ * received for the configured inactivity period. Traces that never complete are emitted after a
+ * hard timeout. Both timers are based on wall-clock time. Spans are kept in a
+ * {@link TraceAssemblyStore}.
+ */
+public class TraceCompletionProcessor implements Processor<String, Span, String, Trace> {
+
+  private final long inactivityMs;
+  private final long timeoutMs;
+  private final Duration punctuationInterval;
+  private final TraceAggregator aggregator;
+
+  // Wall-clock timers of open traces, not persisted but rebuilt from the store on init
+  private final Map<String, Activity> activities = new HashMap<>();
+
+  private ProcessorContext<String, Trace> context;
+  private TraceAssemblyStore store;
+
+  /**
+   * Creates a new processor.
+   *
+   * @param inactivityMs        quiet period after the last span before a complete trace is emitted
+   * @param timeoutMs           maximum time a trace is held, measured from its first span
+   * @param punctuationInterval interval in which open traces are checked for emission
+   * @param aggregator          the aggregator used to add spans to traces
+   */
+  public TraceCompletionProcessor(final long inactivityMs, final long timeoutMs,
+      final Duration punctuationInterval, final TraceAggregator aggregator) {
+    this.inactivityMs = inactivityMs;
+    this.timeoutMs = timeoutMs;
+    this.punctuationInterval = punctuationInterval;
+    this.aggregator = aggregator;
+  }
+
+  @Override
+  public void init(final ProcessorContext<String, Trace> context) {
+    this.context = context;
+    this.store = new TraceAssemblyStore(context, this.aggregator);
+
+    // Traces restored from the changelog restart their timers
+    final long now = context.currentSystemTimeMs();
+    try (KeyValueIterator<String, Trace> it = this.store.all()) {
+      while (it.hasNext()) {
+        this.activities.put(it.next().key, new Activity(now));
+      }
+    }
+
+    context.schedule(this.punctuationInterval, PunctuationType.WALL_CLOCK_TIME, this::emit);
+  }
+
+  @Override
+  public void process(final Record<String, Span> record) {
+    final String key = record.key();
+    this.store.append(key, record.value());
+
+    final long now = this.context.currentSystemTimeMs();
+    final Activity activity = this.activities.get(key);
+    if (activity == null) {
+      this.activities.put(key, new Activity(now));
+    } else {
+      activity.touch(now);
+    }
+  }
+
+  @Override
+  public void close() {
+    this.store.close();
+  }
+
+  private void emit(final long now) {
+    final Iterator<Map.Entry<String, Activity>> it = this.activities.entrySet().iterator();
+    while (it.hasNext()) {
+      final Map.Entry<String, Activity> entry = it.next();
+      final Activity activity = entry.getValue();
+
+      final boolean timedOut = now - activity.firstSeen >= this.timeoutMs;
+      final boolean quiet = now - activity.lastSeen >= this.inactivityMs;
+
+      // Only check completeness again if spans arrived since the last check
+      if (!timedOut && (!quiet || !activity.changed)) {
+        continue;
+      }
+
+      final Trace trace = this.store.materialize(entry.getKey());
+      if (trace == null) {
+        it.remove();
+        continue;
+      }
+
+      activity.changed = false;
+      if (timedOut || TraceCompleteness.isComplete(trace)) {
+        this.store.dropOrphans(entry.getKey(), trace);
+        this.context.forward(new Record<>(entry.getKey(), trace, trace.getEndTimeEpochMilli()));
+        this.store.remove(entry.getKey());
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Wall-clock timestamps of the first and last span of an open trace.
+   */
+  private static class Activity {
+
+    private final long firstSeen;
+    private long lastSeen;
+    private boolean changed = true;
+
+    /* default */ Activity(final long now) {
+      this.firstSeen = now;
+      this.lastSeen = now;
+    }
+
+    /* default */ void touch(final long now) {
+      this.lastSeen = now;
+      this.changed = true;
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.service.TraceDeduplicator;
+import net.explorviz.trace.service.TraceShape;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.processor.api.Processor;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.processor.api.Record;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+
+/**
+ * Merges reduced traces with the same landscape token and call tree (see
+ * {@link TraceShape#callTreeFingerprint(Trace)}) within tumbling windows of the trace timestamps.
+ * The representative of each group is kept in a state store and forwarded, keyed by
+ * {@code landscapeToken::traceId}, as soon as stream time passes the end of its window, i.e., once
+ * a later trace arrives. Stream time of idle partitions is advanced according to the given
+ * {@link IdleAdvancement}. Each task deduplicates the traces of its partitions on its own.
+ */
+public class TraceDeduplicationProcessor implements Processor<String, Trace, String, Trace> {
+
+  // Zero-padded window ends sort lexicographically in the order of time. The group key consists
+  // of the window end, the landscape token, and the fingerprint of the call tree.
+  private static final String GROUP_FORMAT = "%019d::%s::%016x";
+  private static final int TIME_DIGITS = 19;
+
+  private final String storeName;
+  private final long intervalMs;
+  private final IdleAdvancement idleAdvancement;
+  private final Counter mergedCounter;
+
+  private IdleAdvancement.StreamTime streamTime;
+  private long earliestWindowEnd = Long.MAX_VALUE;
+
+  private ProcessorContext<String, Trace> context;
+  private KeyValueStore<String, Trace> store;
+
+  /**
+   * Creates a new processor.
+   *
+   * @param storeName       name of the key-value store of the representatives
+   * @param intervalMs      size of the windows in which identical traces are merged
+   * @param idleAdvancement advancement of stream time if the partition is idle
+   * @param registry        registry for the number of merged traces
+   */
+  public TraceDeduplicationProcessor(final String storeName, final long intervalMs,
+      final IdleAdvancement idleAdvancement, final MeterRegistry registry) {
+    this.storeName = storeName;
+    this.intervalMs = intervalMs;
+    this.idleAdvancement = idleAdvancement;
+    this.mergedCounter = Counter.builder("explorviz.trace.dedup.merged")
+        .description("Traces merged into an identical trace")
+        .register(registry);
+  }
+
+  @Override
+  public void init(final ProcessorContext<String, Trace> context) {
+    this.context = context;
+    this.store = context.getStateStore(this.storeName);
+    this.streamTime = this.idleAdvancement.streamTime();
+
+    try (KeyValueIterator<String, Trace> it = this.store.all()) {
+      if (it.hasNext()) {
+        this.earliestWindowEnd = windowEnd(it.peekNextKey());
+      }
+    }
+
+    this.idleAdvancement.schedule(context, now -> {
+      final long idleMs = this.streamTime.advanceIfIdle(now);
+      if (idleMs > 0) {
+        for (int i = this.emitClosed(); i > 0; i--) {
+          this.streamTime.recordWait(idleMs);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void process(final Record<String, Trace> record) {
+    if (record.value() == null) {
+      return;
+    }
+
+    final long timestamp = record.timestamp();
+    this.streamTime.observe(timestamp, this.context.currentSystemTimeMs());
+
+    final Trace trace = record.value();
+    final long windowEnd = timestamp - timestamp % this.intervalMs + this.intervalMs;
+    final String groupKey = String.format(GROUP_FORMAT, windowEnd, trace.getLandscapeToken(),
+        TraceShape.callTreeFingerprint(trace));
+
+    final Trace representative = this.store.get(groupKey);
+    if (representative == null) {
+      this.store.put(groupKey, TraceDeduplicator.represent(trace));
+    } else {
+      TraceDeduplicator.merge(representative, trace);
+      this.store.put(groupKey, representative);
+      this.mergedCounter.increment();
+    }
+    this.earliestWindowEnd = Math.min(this.earliestWindowEnd, windowEnd);
+
+    this.emitClosed();
+  }
+
+  /**
+   * Emits the representatives of all windows whose end is at most stream time, ordered by the
+   * window end. A trace of an already closed window, e.g., one that was delayed by the
+   * assembly, is thus forwarded right away.
+   *
+   * @return the number of emitted representatives
+   */
+  private int emitClosed() {
+    final long streamTime = this.streamTime.get();
+    if (this.earliestWindowEnd > streamTime) {
+      return 0;
+    }
+
+    final List<KeyValue<String, Trace>> closed = new ArrayList<>();
+    long nextWindowEnd = Long.MAX_VALUE;
+    try (KeyValueIterator<String, Trace> it = this.store.all()) {
+      while (it.hasNext()) {
+        final KeyValue<String, Trace> group = it.next();
+        final long windowEnd = windowEnd(group.key);
+        if (windowEnd > streamTime) {
+          nextWindowEnd = windowEnd;
+          break;
+        }
+        closed.add(group);
+      }
+    }
+
+    for (final KeyValue<String, Trace> group : closed) {
+      final Trace representative = group.value;
+      this.context.forward(new Record<>(
+          representative.getLandscapeToken() + "::" + representative.getTraceId(),
+          representative, windowEnd(group.key) - 1));
+      this.store.delete(group.key);
+    }
+    this.earliestWindowEnd = nextWindowEnd;
+    return closed.size();
+  }
+
+  private static long windowEnd(final String groupKey) {
+    return Long.parseLong(groupKey.substring(0, TIME_DIGITS));
+  }
+
+}
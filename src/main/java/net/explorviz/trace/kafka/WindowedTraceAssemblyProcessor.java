@@ -0,0 +1,211 @@
+package net.explorviz.trace.kafka;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.service.TraceAggregator;
+import org.apache.kafka.streams.processor.api.Processor;
+import org.apache.kafka.streams.processor.api.ProcessorContext;
+import org.apache.kafka.streams.processor.api.Record;
+import org.apache.kafka.streams.state.KeyValueIterator;
+
+/**
+ * Processor-API equivalent of the windowed aggregation followed by
+ * {@code Suppressed.untilWindowCloses}. Spans (keyed by landscapeToken::traceId) are appended to
+ * a {@link TraceAssemblyStore} per tumbling window, and each trace is materialized exactly once
+ * when its window is closed w.r.t. the observed stream time. Spans of already closed windows are
+ * handed to a consumer of late spans, e.g., to stitch them into the persisted trace, instead of
+ * being assembled. Lateness is decided here, since only the processor knows the window each trace
+ * is tied to (see below). Window size and grace period are given per
+ * landscape by an {@link AdaptiveWindowPolicy}, which is informed about the observed durations
+ * and delays. Stream time of idle partitions is advanced according to the given
+ * {@link IdleAdvancement}.
+ *
+ * <p>The window of a trace is fixed by its first span: later spans of the trace that start before
+ * the end of that window are added to it, even if the policy has changed the window size or grace
+ * period of the landscape meanwhile. Otherwise, the spans of a trace would be split across
+ * assembly keys. Spans that start after the window end open the next window of the trace.
+ */
+public class WindowedTraceAssemblyProcessor implements Processor<String, Span, String, Trace> {
+
+  // Zero-padded times sort lexicographically in the order of time. The assembly key consists of
+  // the time the window closes (window end plus grace), the window end, and the trace key.
+  private static final String TIME_FORMAT = "%019d";
+  private static final int TIME_DIGITS = 19;
+  private static final String SEPARATOR = "::";
+  private static final int WINDOW_END_OFFSET = TIME_DIGITS + SEPARATOR.length();
+  private static final int TRACE_KEY_OFFSET = WINDOW_END_OFFSET + TIME_DIGITS + SEPARATOR.length();
+
+  private final AdaptiveWindowPolicy windowPolicy;
+  private final TraceAggregator aggregator;
+  private final IdleAdvancement idleAdvancement;
+  private final Consumer<Span> lateSpans;
+
+  private IdleAdvancement.StreamTime streamTime;
+  private long earliestCloseTime = Long.MAX_VALUE;
+
+  // Assembly key of the latest open window per trace key
+  private final Map<String, String> openWindows = new HashMap<>();
+
+  private ProcessorContext<String, Trace> context;
+  private TraceAssemblyStore store;
+
+  /**
+   * Creates a new processor.
+   *
+   * @param windowPolicy    size and grace period of the tumbling windows per landscape
+   * @param aggregator      the aggregator used to summarize the traces
+   * @param idleAdvancement advancement of stream time if the partition is idle
+   */
+  public WindowedTraceAssemblyProcessor(final AdaptiveWindowPolicy windowPolicy,
+      final TraceAggregator aggregator, final IdleAdvancement idleAdvancement) {
+    this(windowPolicy, aggregator, idleAdvancement, span -> {
+      // Dropped, just as in the windowed aggregation
+    });
+  }
+
+  /**
+   * Creates a new processor that hands spans of closed windows to the given consumer.
+   *
+   * @param windowPolicy    size and grace period of the tumbling windows per landscape
+   * @param aggregator      the aggregator used to summarize the traces
+   * @param idleAdvancement advancement of stream time if the partition is idle
+   * @param lateSpans       consumer of the spans whose window is already closed
+   */
+  public WindowedTraceAssemblyProcessor(final AdaptiveWindowPolicy windowPolicy,
+      final TraceAggregator aggregator, final IdleAdvancement idleAdvancement,
+      final Consumer<Span> lateSpans) {
+    this.windowPolicy = windowPolicy;
+    this.aggregator = aggregator;
+    this.idleAdvancement = idleAdvancement;
+    this.lateSpans = lateSpans;
+  }
+
+  @Override
+  public void init(final ProcessorContext<String, Trace> context) {
+    this.context = context;
+    this.store = new TraceAssemblyStore(context, this.aggregator);
+    this.streamTime = this.idleAdvancement.streamTime();
+
+    try (KeyValueIterator<String, Trace> it = this.store.all()) {
+      if (it.hasNext()) {
+        this.earliestCloseTime = closeTime(it.peekNextKey());
+      }
+      while (it.hasNext()) {
+        final String key = it.next().key;
+        this.openWindows.merge(traceKey(key), key, WindowedTraceAssemblyProcessor::later);
+      }
+    }
+
+    this.idleAdvancement.schedule(context, now -> {
+      final long idleMs = this.streamTime.advanceIfIdle(now);
+      if (idleMs > 0) {
+        for (int i = this.emitClosed(); i > 0; i--) {
+          this.streamTime.recordWait(idleMs);
+        }
+      }
+    });
+  }
+
+  @Override
+  public void process(final Record<String, Span> record) {
+    if (record.key() == null || record.value() == null) {
+      return;
+    }
+
+    final long timestamp = record.timestamp();
+    this.streamTime.observe(timestamp, this.context.currentSystemTimeMs());
+
+    final String landscapeToken = record.value().getLandscapeToken();
+    this.windowPolicy.recordDelay(landscapeToken, this.streamTime.get() - timestamp);
+
+    String key = this.openWindows.get(record.key());
+    if (key == null || timestamp >= windowEnd(key)) {
+      final long windowSizeMs = this.windowPolicy.windowSize(landscapeToken);
+      final long windowEnd = timestamp - timestamp % windowSizeMs + windowSizeMs;
+      key = assemblyKey(windowEnd + this.windowPolicy.grace(landscapeToken), windowEnd,
+          record.key());
+    }
+
+    final long closeTime = closeTime(key);
+    if (closeTime > this.streamTime.get()) {
+      this.store.append(key, record.value());
+      this.openWindows.merge(record.key(), key, WindowedTraceAssemblyProcessor::later);
+      this.earliestCloseTime = Math.min(this.earliestCloseTime, closeTime);
+    } else {
+      this.lateSpans.accept(record.value());
+    }
+
+    this.emitClosed();
+  }
+
+  @Override
+  public void close() {
+    this.store.close();
+  }
+
+  /**
+   * Emits all traces whose window end plus grace is at most stream time, ordered by that time.
+   *
+   * @return the number of emitted traces
+   */
+  private int emitClosed() {
+    final long streamTime = this.streamTime.get();
+    if (this.earliestCloseTime > streamTime) {
+      return 0;
+    }
+
+    final List<String> closed = new ArrayList<>();
+    long nextCloseTime = Long.MAX_VALUE;
+    try (KeyValueIterator<String, Trace> it = this.store.all()) {
+      while (it.hasNext()) {
+        final String key = it.next().key;
+        final long closeTime = closeTime(key);
+        if (closeTime > streamTime) {
+          nextCloseTime = closeTime;
+          break;
+        }
+        closed.add(key);
+      }
+    }
+
+    for (final String key : closed) {
+      final Trace trace = this.store.materialize(key);
+      this.store.dropOrphans(key, trace);
+      this.windowPolicy.recordDuration(trace.getLandscapeToken(), trace.getDuration());
+      this.context.forward(new Record<>(traceKey(key), trace, windowEnd(key) - 1));
+      this.store.remove(key);
+      this.openWindows.remove(traceKey(key), key);
+    }
+    this.earliestCloseTime = nextCloseTime;
+    return closed.size();
+  }
+
+  private static String assemblyKey(final long closeTime, final long windowEnd,
+      final String traceKey) {
+    return String.format(TIME_FORMAT, closeTime) + SEPARATOR + String.format(TIME_FORMAT,
+        windowEnd) + SEPARATOR + traceKey;
+  }
+
+  private static long closeTime(final String assemblyKey) {
+    return Long.parseLong(assemblyKey.substring(0, TIME_DIGITS));
+  }
+
+  private static long windowEnd(final String assemblyKey) {
+    return Long.parseLong(
+        assemblyKey.substring(WINDOW_END_OFFSET, WINDOW_END_OFFSET + TIME_DIGITS));
+  }
+
+  private static String later(final String assemblyKey, final String other) {
+    return windowEnd(other) > windowEnd(assemblyKey) ? other : assemblyKey;
+  }
+
+  private static String traceKey(final String assemblyKey) {
+    return assemblyKey.substring(TRACE_KEY_OFFSET);
+  }
+
+}
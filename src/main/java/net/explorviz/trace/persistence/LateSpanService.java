@@ -0,0 +1,103 @@
+package net.explorviz.trace.persistence;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.explorviz.avro.Span;
+import net.explorviz.trace.persistence.dao.Trace;
+import net.explorviz.trace.service.TraceConverter;
+import net.explorviz.trace.service.TraceStitcher;
+import net.explorviz.trace.service.reduction.TraceReduction;
+
+/**
+ * Stitches spans that arrived after the window of their trace was closed into the trace already
+ * persisted. All stored fragments of the trace, i.e., rows with the same landscape token and trace
+ * id, are merged with the late span and reduced again. The merged trace replaces the fragments.
+ * Late spans of the same trace are stitched one after another, such that no span is lost.
+ *
+ * <p>Traces are persisted asynchronously, hence the trace of a late span may not be readable yet.
+ * Such spans are not stitched, since a trace created from the late span alone would be
+ * overwritten by or persisted next to the actual trace. They are counted in the metric
+ * {@code explorviz.trace.late.unstitched}. Counts and durations of fragments that represent
+ * deduplicated or sampled traces are kept (see {@link TraceStitcher}).
+ */
+@ApplicationScoped
+public class LateSpanService {
+
+  private final Map<String, CompletableFuture<Void>> pending = new ConcurrentHashMap<>();
+  private final Counter unstitched;
+
+  @Inject
+  /* default */ ReactiveTraceService reactiveTraceService;
+
+  @Inject
+  /* default */ TraceReduction traceReduction;
+
+  @Inject
+  public LateSpanService(final MeterRegistry meterRegistry) {
+    this.unstitched = Counter.builder("explorviz.trace.late.unstitched")
+        .description("Late spans whose trace was not persisted (yet) and that were dropped")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Stitches a late span into its persisted trace. If no fragment of the trace is persisted yet,
+   * the span is dropped.
+   *
+   * @param lateSpan the late span
+   * @return completes once the merged trace is persisted
+   */
+  public CompletionStage<Void> stitch(final Span lateSpan) {
+    final String key = lateSpan.getLandscapeToken() + "::" + lateSpan.getTraceId();
+    final CompletableFuture<Void> stitched = this.pending.compute(key, (k, previous) -> {
+      final CompletableFuture<Void> predecessor =
+          previous == null ? CompletableFuture.completedFuture(null)
+              : previous.exceptionally(failure -> null);
+      return predecessor.thenCompose(
+          unused -> this.merge(lateSpan).subscribeAsCompletionStage());
+    });
+    stitched.whenComplete((unused, failure) -> this.pending.remove(key, stitched));
+    return stitched;
+  }
+
+  private Uni<Void> merge(final Span lateSpan) {
+    return this.reactiveTraceService.getByTraceId(lateSpan.getLandscapeToken(),
+        lateSpan.getTraceId()).collect().asList().flatMap(fragments -> {
+          if (fragments.isEmpty()) {
+            this.unstitched.increment();
+            return Uni.createFrom().voidItem();
+          }
+
+          final List<net.explorviz.avro.Trace> converted = new ArrayList<>();
+          for (final Trace fragment : fragments) {
+            converted.add(TraceConverter.convertDaoToTrace(fragment));
+          }
+
+          final Trace merged = TraceConverter.convertTraceToDao(this.traceReduction.reduce(
+              TraceStitcher.stitch(converted, List.of(lateSpan))));
+
+          // Fragments with another start time are stored in other rows
+          final List<Trace> stale = new ArrayList<>();
+          for (final Trace fragment : fragments) {
+            if (fragment.getStartTime() != merged.getStartTime()) {
+              stale.add(fragment);
+            }
+          }
+
+          return this.reactiveTraceService.insert(merged)
+              .chain(() -> Multi.createFrom().iterable(stale).onItem()
+                  .transformToUniAndConcatenate(this.reactiveTraceService::delete).collect()
+                  .asList().replaceWithVoid());
+        });
+  }
+
+}
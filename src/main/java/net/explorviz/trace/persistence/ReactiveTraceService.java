@@ -1,14 +1,23 @@
 package net.explorviz.trace.persistence;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
+import java.util.ArrayList;
+import java.util.List;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import net.explorviz.trace.persistence.dao.ReactiveTraceDao;
 import net.explorviz.trace.persistence.dao.Trace;
+import net.explorviz.trace.persistence.dao.TraceSegment;
+import net.explorviz.trace.service.TraceSegmenter;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 /**
- * Service that leverages the reactive DAO {{@link ReactiveTraceDao}}.
+ * Service that leverages the reactive DAO {{@link ReactiveTraceDao}}. Traces with more spans than
+ * configured in {@code explorviz.segmentation.max-spans} are stored in segments (see
+ * {@link TraceSegmenter}) and reassembled when read.
  */
 @ApplicationScoped
 public class ReactiveTraceService {
@@ -16,27 +25,85 @@ public class ReactiveTraceService {
   @Inject
   /* default */ Uni<ReactiveTraceDao> traceDaoReactive;
 
+  @ConfigProperty(name = "explorviz.segmentation.max-spans")
+  /* default */ int maxSegmentSpans;
+
+  private final Counter segmentedTraces;
+
+  @Inject
+  public ReactiveTraceService(final MeterRegistry meterRegistry) {
+    this.segmentedTraces = Counter.builder("explorviz.trace.segmented.traces")
+        .description("Traces persisted in segments due to their number of spans")
+        .register(meterRegistry);
+  }
+
+  /**
+   * Inserts a trace, split into segments if it has too many spans.
+   *
+   * @param trace the trace to insert
+   * @return completes once the trace and all its segments are inserted
+   */
   public Uni<Void> insert(final Trace trace) {
-    return this.traceDaoReactive.flatMap(dao -> dao.insertAsync(trace));
+    final List<TraceSegment> segments = TraceSegmenter.split(trace, this.maxSegmentSpans);
+    if (segments.isEmpty()) {
+      return this.traceDaoReactive.flatMap(dao -> dao.insertAsync(trace));
+    }
+
+    this.segmentedTraces.increment();
+
+    // Segments first, such that the trace is never read without them
+    return this.traceDaoReactive.flatMap(dao -> {
+      final List<Uni<Void>> inserts = new ArrayList<>(segments.size());
+      for (final TraceSegment segment : segments) {
+        inserts.add(dao.insertSegmentAsync(segment));
+      }
+      return Uni.combine().all().unis(inserts).discardItems()
+          .chain(() -> dao.insertAsync(trace));
+    });
   }
 
+  /**
+   * Deletes all traces of a landscape, including their segments. Segments are deleted even if
+   * segmentation is disabled now, since they may have been persisted before.
+   *
+   * @param landscapeTokenValue the landscape token
+   * @return completes once the traces are deleted
+   */
   public Uni<Void> deleteByLandscapeToken(final String landscapeTokenValue) {
-    return this.traceDaoReactive.flatMap(dao -> dao.deleteAsync(landscapeTokenValue));
+    return this.traceDaoReactive.flatMap(dao -> dao.deleteAsync(landscapeTokenValue)
+        .chain(() -> dao.deleteSegmentsAsync(landscapeTokenValue)));
+  }
+
+  /**
+   * Deletes a trace, including its segments. If segmentation is enabled, segments are deleted even
+   * if the trace is not segmented, since a previous version of it may have been.
+   *
+   * @param trace the trace to delete
+   * @return completes once the trace is deleted
+   */
+  public Uni<Void> delete(final Trace trace) {
+    if (trace.getSegmentCount() <= 1 && this.maxSegmentSpans <= 0) {
+      return this.traceDaoReactive.flatMap(dao -> dao.deleteTraceAsync(trace));
+    }
+    return this.traceDaoReactive.flatMap(dao -> dao.deleteTraceAsync(trace)
+        .chain(() -> dao.deleteTraceSegmentsAsync(trace.getLandscapeToken(), trace.getTraceId(),
+            trace.getStartTime())));
   }
 
   public Multi<Trace> getAllAsync(final String landscapeToken) {
-    return this.traceDaoReactive.toMulti().flatMap(dao -> dao.getAllAsync(landscapeToken));
+    return this.reassembled(
+        this.traceDaoReactive.toMulti().flatMap(dao -> dao.getAllAsync(landscapeToken)));
   }
 
   public Multi<Trace> getByStartTimeAndEndTime(final String landscapeToken, final long startTime,
       final long endTime) {
-    return this.traceDaoReactive.toMulti()
-        .flatMap(dao -> dao.getByStartTimeAndEndTime(landscapeToken, startTime, endTime));
+    return this.reassembled(this.traceDaoReactive.toMulti()
+        .flatMap(dao -> dao.getByStartTimeAndEndTime(landscapeToken, startTime, endTime)));
   }
 
   public Multi<Trace> getByTraceId(final String landscapeToken, final String traceId) {
-    return this.traceDaoReactive.toMulti()
-        .flatMap(dao -> dao.getByTraceId(landscapeToken, traceId));
+    return this.reassembled(this.traceDaoReactive.toMulti()
+        .flatMap(dao -> dao.getByTraceId(landscapeToken, traceId)));
   }
 
   public Multi<Trace> cloneAllAsync(final String landscapeToken,
@@ -45,4 +112,18 @@ public class ReactiveTraceService {
         .call(this::insert);
   }
 
+  private Multi<Trace> reassembled(final Multi<Trace> traces) {
+    return traces.onItem().transformToUniAndConcatenate(this::withSegments);
+  }
+
+  private Uni<Trace> withSegments(final Trace trace) {
+    if (trace.getSegmentCount() <= 1) {
+      return Uni.createFrom().item(trace);
+    }
+    return this.traceDaoReactive
+        .flatMap(dao -> dao.getSegments(trace.getLandscapeToken(), trace.getTraceId(),
+            trace.getStartTime()).collect().asList())
+        .map(segments -> TraceSegmenter.merge(trace, segments));
+  }
+
 }
@@ -8,7 +8,7 @@ import io.smallrye.mutiny.Multi;
 import io.smallrye.mutiny.Uni;
 
 /**
- * Datastax Dao for a {@link Trace}.
+ * Datastax Dao for a {@link Trace} and its {@link TraceSegment}s.
  */
 @Dao
 public interface ReactiveTraceDao {
@@ -19,6 +19,9 @@ public interface ReactiveTraceDao {
   @Delete(customWhereClause = "landscape_token = :id", entityClass = Trace.class)
   Uni<Void> deleteAsync(String id);
 
+  @Delete
+  Uni<Void> deleteTraceAsync(Trace trace);
+
   @Select(customWhereClause = "landscape_token = :id")
   Multi<Trace> getAllAsync(String id);
 
@@ -28,5 +31,19 @@ public interface ReactiveTraceDao {
 
   @Select(customWhereClause = "landscape_token = :id and trace_id = :traceId")
   Multi<Trace> getByTraceId(String id, String traceId);
+
+  @Insert
+  Uni<Void> insertSegmentAsync(TraceSegment segment);
+
+  @Delete(customWhereClause = "landscape_token = :id", entityClass = TraceSegment.class)
+  Uni<Void> deleteSegmentsAsync(String id);
+
+  @Delete(customWhereClause = "landscape_token = :id and trace_id = :traceId and "
+      + "start_time = :startTime", entityClass = TraceSegment.class)
+  Uni<Void> deleteTraceSegmentsAsync(String id, String traceId, long startTime);
+
+  @Select(customWhereClause = "landscape_token = :id and trace_id = :traceId and "
+      + "start_time = :startTime")
+  Multi<TraceSegment> getSegments(String id, String traceId, long startTime);
 }
 
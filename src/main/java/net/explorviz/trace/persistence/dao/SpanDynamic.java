@@ -1,6 +1,8 @@
 package net.explorviz.trace.persistence.dao;
 
 import com.datastax.oss.driver.api.mapper.annotations.Entity;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
 /**
@@ -20,6 +22,8 @@ public class SpanDynamic {
 
   private long endTime;
   private String hashCode; // NOPMD
+  // Raw hash code, set instead of the hex hash code if binary hash codes are enabled
+  private ByteBuffer hashCodeBinary;
 
   public SpanDynamic() {
     // for serialization
@@ -106,10 +110,19 @@ public class SpanDynamic {
     this.hashCode = hashCode;
   }
 
+  @JsonIgnore
+  public ByteBuffer getHashCodeBinary() {
+    return this.hashCodeBinary;
+  }
+
+  public void setHashCodeBinary(final ByteBuffer hashCodeBinary) {
+    this.hashCodeBinary = hashCodeBinary;
+  }
+
   @Override
   public int hashCode() {
-    return Objects.hash(this.endTime, this.hashCode, this.landscapeToken, this.parentSpanId,
-        this.spanId, this.startTime, this.traceId);
+    return Objects.hash(this.endTime, this.hashCode, this.hashCodeBinary, this.landscapeToken,
+        this.parentSpanId, this.spanId, this.startTime, this.traceId);
   }
 
   @Override
@@ -127,7 +140,8 @@ public class SpanDynamic {
     // Compare dynamic spans with respect to their attributes
     final SpanDynamic other = (SpanDynamic) obj;
     return this.startTime == other.startTime && this.endTime == other.endTime && Objects.equals(
-        this.hashCode, other.hashCode) && Objects.equals(this.landscapeToken, other.landscapeToken)
+        this.hashCode, other.hashCode) && Objects.equals(this.hashCodeBinary, other.hashCodeBinary)
+        && Objects.equals(this.landscapeToken, other.landscapeToken)
         && Objects.equals(this.parentSpanId, other.parentSpanId) && Objects.equals(this.spanId,
         other.spanId) && Objects.equals(this.traceId, other.traceId);
   }
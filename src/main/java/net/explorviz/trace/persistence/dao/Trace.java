@@ -3,6 +3,7 @@ package net.explorviz.trace.persistence.dao;
 import com.datastax.oss.driver.api.mapper.annotations.ClusteringColumn;
 import com.datastax.oss.driver.api.mapper.annotations.Entity;
 import com.datastax.oss.driver.api.mapper.annotations.PartitionKey;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import java.util.List;
 import java.util.Objects;
 
@@ -29,6 +30,14 @@ public class Trace {
   // @Frozen not available in dependendy?
   private List<SpanDynamic> spanList;
 
+  // Number of segments if the spans are split into TraceSegments, 0 otherwise
+  private int segmentCount;
+
+  // Durations of the identical traces this trace represents
+  private long minDuration;
+  private long avgDuration;
+  private long maxDuration;
+
   public Trace() {
     // for serialization
   }
@@ -123,10 +132,44 @@ public class Trace {
     this.spanList = spanList;
   }
 
+  @JsonIgnore
+  public int getSegmentCount() {
+    return this.segmentCount;
+  }
+
+  public void setSegmentCount(final int segmentCount) {
+    this.segmentCount = segmentCount;
+  }
+
+  public long getMinDuration() {
+    return this.minDuration;
+  }
+
+  public void setMinDuration(final long minDuration) {
+    this.minDuration = minDuration;
+  }
+
+  public long getAvgDuration() {
+    return this.avgDuration;
+  }
+
+  public void setAvgDuration(final long avgDuration) {
+    this.avgDuration = avgDuration;
+  }
+
+  public long getMaxDuration() {
+    return this.maxDuration;
+  }
+
+  public void setMaxDuration(final long maxDuration) {
+    this.maxDuration = maxDuration;
+  }
+
   @Override
   public int hashCode() {
     return Objects.hash(this.duration, this.endTime, this.landscapeToken, this.overallRequestCount,
-        this.spanList, this.startTime, this.traceCount, this.traceId);
+        this.spanList, this.startTime, this.traceCount, this.traceId, this.segmentCount,
+        this.minDuration, this.avgDuration, this.maxDuration);
   }
 
   @Override
@@ -146,7 +189,9 @@ public class Trace {
         this.landscapeToken, other.landscapeToken)
         && this.overallRequestCount == other.overallRequestCount && Objects.equals(this.spanList,
         other.spanList) && this.startTime == other.startTime && this.traceCount == other.traceCount
-        && Objects.equals(this.traceId, other.traceId);
+        && Objects.equals(this.traceId, other.traceId) && this.segmentCount == other.segmentCount
+        && this.minDuration == other.minDuration && this.avgDuration == other.avgDuration
+        && this.maxDuration == other.maxDuration;
   }
 
 
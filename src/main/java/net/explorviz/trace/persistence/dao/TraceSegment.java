@@ -0,0 +1,92 @@
+package net.explorviz.trace.persistence.dao;
+
+import com.datastax.oss.driver.api.mapper.annotations.ClusteringColumn;
+import com.datastax.oss.driver.api.mapper.annotations.Entity;
+import com.datastax.oss.driver.api.mapper.annotations.PartitionKey;
+import java.util.List;
+
+/**
+ * Bean for a segment of the spans of a {@link Trace} that has too many spans to be stored in a
+ * single row. The first segment is stored in the trace itself, further segments are numbered from
+ * 1 on.
+ */
+@Entity
+public class TraceSegment {
+
+  @PartitionKey
+  private String landscapeToken;
+
+  @ClusteringColumn(1)
+  private String traceId;
+
+  @ClusteringColumn(2)
+  private long startTime;
+
+  @ClusteringColumn(3)
+  private int segment;
+
+  private List<SpanDynamic> spanList;
+
+  public TraceSegment() {
+    // for serialization
+  }
+
+  /**
+   * Creates a segment of a trace.
+   *
+   * @param landscapeToken the token of the landscape where the trace occurred
+   * @param traceId        the ID of the trace
+   * @param startTime      the start time of the trace, distinguishes fragments of the same trace
+   * @param segment        the index of the segment, starting at 1
+   * @param spanList       the spans of the segment
+   */
+  public TraceSegment(final String landscapeToken, final String traceId, final long startTime,
+      final int segment, final List<SpanDynamic> spanList) {
+    this.landscapeToken = landscapeToken;
+    this.traceId = traceId;
+    this.startTime = startTime;
+    this.segment = segment;
+    this.spanList = spanList;
+  }
+
+  public String getLandscapeToken() {
+    return this.landscapeToken;
+  }
+
+  public void setLandscapeToken(final String landscapeToken) {
+    this.landscapeToken = landscapeToken;
+  }
+
+  public String getTraceId() {
+    return this.traceId;
+  }
+
+  public void setTraceId(final String traceId) {
+    this.traceId = traceId;
+  }
+
+  public long getStartTime() {
+    return this.startTime;
+  }
+
+  public void setStartTime(final long startTime) {
+    this.startTime = startTime;
+  }
+
+  public int getSegment() {
+    return this.segment;
+  }
+
+  public void setSegment(final int segment) {
+    this.segment = segment;
+  }
+
+  public List<SpanDynamic> getSpanList() {
+    return this.spanList;
+  }
+
+  public void setSpanList(final List<SpanDynamic> spanList) {
+    this.spanList = spanList;
+  }
+
+}
@@ -0,0 +1,211 @@
+package net.explorviz.trace.resources;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.core.MediaType;
+import net.explorviz.trace.kafka.InFlightTraceQuery;
+import net.explorviz.trace.persistence.dao.Trace;
+import net.explorviz.trace.service.TraceConverter;
+import org.apache.kafka.streams.errors.InvalidStateStoreException;
+import org.apache.kafka.streams.state.HostInfo;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP resource for accessing traces that are still assembled, i.e., that are not yet persisted
+ * and thus not available through the {@link TraceResource}. Queries are answered from the state
+ * stores of Kafka Streams (see {@link InFlightTraceQuery}) and forwarded to the other instances
+ * that hold the queried traces.
+ */
+@Path("v2/landscapes")
+public class InFlightTraceResource {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(InFlightTraceResource.class);
+
+  private static final int HTTP_OK = 200;
+
+  @ConfigProperty(name = "explorviz.kafka-streams.interactive-queries.timeout")
+  /* default */ long timeoutInMs;
+
+  private final InFlightTraceQuery query;
+  private final ObjectMapper objectMapper;
+  private final HttpClient httpClient = HttpClient.newHttpClient();
+
+  @Inject
+  public InFlightTraceResource(final InFlightTraceQuery query, final ObjectMapper objectMapper) {
+    this.query = query;
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * Retrieves the partially assembled traces of a landscape from all instances, which are queried
+   * concurrently. Instances that do not respond are skipped.
+   *
+   * @param landscapeToken the token representing the landscape from which to retrieve traces
+   * @param local          only retrieve the traces held by this instance
+   * @return the traces, one per trace and window
+   */
+  @GET
+  @Path("{token}/in-flight")
+  @Produces(MediaType.APPLICATION_JSON)
+  public List<Trace> getTraces(@PathParam("token") final String landscapeToken,
+      @QueryParam("local") final boolean local) {
+    this.requireEnabled();
+
+    final List<Trace> traces = toDao(this.local(() -> this.query.localTraces(landscapeToken)));
+    if (local) {
+      return traces;
+    }
+
+    // Query all instances at once, such that the slowest one bounds the response time
+    final String path = "/v2/landscapes/" + landscapeToken + "/in-flight";
+    final Map<HostInfo, CompletableFuture<List<Trace>>> responses = new LinkedHashMap<>();
+    for (final HostInfo host : this.query.remoteHosts()) {
+      responses.put(host, this.remoteAsync(host, path));
+    }
+    for (final Map.Entry<HostInfo, CompletableFuture<List<Trace>>> response
+        : responses.entrySet()) {
+      try {
+        traces.addAll(response.getValue().join());
+      } catch (final CompletionException e) {
+        if (LOGGER.isWarnEnabled()) {
+          LOGGER.warn("Skipped in-flight traces of {}: {}", response.getKey(),
+              unavailable(response.getKey(), e).getMessage());
+        }
+      }
+    }
+    return traces;
+  }
+
+  /**
+   * Retrieves a partially assembled trace from the instance that assembles it.
+   *
+   * @param landscapeToken the token representing the landscape of the trace
+   * @param traceId        the id of the trace
+   * @param local          only retrieve the trace if held by this instance
+   * @return the fragments of the trace, one per window, or none if the trace is not assembled
+   */
+  @GET
+  @Path("{token}/in-flight/{traceid}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public List<Trace> getTrace(@PathParam("token") final String landscapeToken,
+      @PathParam("traceid") final String traceId, @QueryParam("local") final boolean local) {
+    this.requireEnabled();
+
+    if (!local) {
+      final Optional<HostInfo> owner =
+          this.local(() -> this.query.remoteOwnerOf(landscapeToken, traceId));
+      if (owner.isPresent()) {
+        return this.remote(owner.get(),
+            "/v2/landscapes/" + landscapeToken + "/in-flight/" + traceId);
+      }
+    }
+    return toDao(this.local(() -> this.query.localTrace(landscapeToken, traceId)));
+  }
+
+  private void requireEnabled() {
+    if (!this.query.isEnabled()) {
+      throw new NotFoundException("In-flight traces are not queryable");
+    }
+  }
+
+  /**
+   * Runs a query against the local state, which is not available while Kafka Streams starts or
+   * rebalances.
+   */
+  private <T> T local(final Supplier<T> localQuery) {
+    try {
+      return localQuery.get();
+    } catch (final InvalidStateStoreException e) {
+      throw new ServiceUnavailableException(e.getMessage());
+    }
+  }
+
+  private static List<Trace> toDao(final List<net.explorviz.avro.Trace> traces) {
+    final List<Trace> daoTraces = new ArrayList<>(traces.size());
+    for (final net.explorviz.avro.Trace trace : traces) {
+      daoTraces.add(TraceResource.withHexHashCodes(TraceConverter.convertTraceToDao(trace)));
+    }
+    return daoTraces;
+  }
+
+  /**
+   * Retrieves the traces held by another instance from the same resource.
+   */
+  private List<Trace> remote(final HostInfo host, final String path) {
+    try {
+      return this.remoteAsync(host, path).join();
+    } catch (final CompletionException e) {
+      throw unavailable(host, e);
+    }
+  }
+
+  /**
+   * Requests the traces held by another instance without waiting for the response. The returned
+   * future fails with a {@link ServiceUnavailableException} if the instance responds with an
+   * error.
+   */
+  private CompletableFuture<List<Trace>> remoteAsync(final HostInfo host, final String path) {
+    final HttpRequest request;
+    try {
+      request = HttpRequest.newBuilder()
+          .uri(new URI("http", null, host.host(), host.port(), path, "local=true", null))
+          .timeout(Duration.ofMillis(this.timeoutInMs))
+          .header("Accept", MediaType.APPLICATION_JSON)
+          .GET().build();
+    } catch (final URISyntaxException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    return this.httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+        .thenApply(response -> this.parse(host, response));
+  }
+
+  private List<Trace> parse(final HostInfo host, final HttpResponse<byte[]> response) {
+    if (response.statusCode() != HTTP_OK) {
+      throw new ServiceUnavailableException(
+          "Instance " + host + " responded with " + response.statusCode());
+    }
+    try {
+      return new ArrayList<>(
+          Arrays.asList(this.objectMapper.readValue(response.body(), Trace[].class)));
+    } catch (final IOException e) {
+      throw new ServiceUnavailableException("Instance " + host + " responded with invalid traces");
+    }
+  }
+
+  /**
+   * Unwraps the failure of a request to another instance.
+   */
+  private static ServiceUnavailableException unavailable(final HostInfo host,
+      final CompletionException e) {
+    if (e.getCause() instanceof ServiceUnavailableException) {
+      return (ServiceUnavailableException) e.getCause();
+    }
+    return new ServiceUnavailableException("Instance " + host + " is not reachable");
+  }
+
+}
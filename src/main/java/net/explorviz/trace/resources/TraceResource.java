@@ -10,7 +10,9 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import net.explorviz.trace.persistence.ReactiveTraceService;
+import net.explorviz.trace.persistence.dao.SpanDynamic;
 import net.explorviz.trace.persistence.dao.Trace;
+import net.explorviz.trace.service.HashHelper;
 
 /**
  * HTTP resource for accessing traces.
@@ -32,7 +34,8 @@ public class TraceResource {
   @Produces(MediaType.APPLICATION_JSON)
   public Multi<Trace> getTrace(@PathParam("token") final String landscapeToken,
       @PathParam("traceid") final String traceId) {
-    return this.reactiveTraceService.getByTraceId(landscapeToken, traceId);
+    return this.reactiveTraceService.getByTraceId(landscapeToken, traceId)
+        .map(TraceResource::withHexHashCodes);
   }
 
   /**
@@ -70,7 +73,22 @@ public class TraceResource {
         break;
     }
 
-    return this.reactiveTraceService.getByStartTimeAndEndTime(landscapeToken, from, to);
+    return this.reactiveTraceService.getByStartTimeAndEndTime(landscapeToken, from, to)
+        .map(TraceResource::withHexHashCodes);
+  }
+
+  /**
+   * Renders binary hash codes as hex, such that clients always receive the hex hash code.
+   */
+  /* default */ static Trace withHexHashCodes(final Trace trace) {
+    if (trace.getSpanList() != null) {
+      for (final SpanDynamic span : trace.getSpanList()) {
+        if (span.getHashCode() == null && span.getHashCodeBinary() != null) {
+          span.setHashCode(HashHelper.toHex(span.getHashCodeBinary()));
+        }
+      }
+    }
+    return trace;
   }
 
 
@@ -0,0 +1,66 @@
+package net.explorviz.trace.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.enterprise.context.ApplicationScoped;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Estimate of the bytes held in open trace aggregates of all stream threads (see
+ * {@link TraceSizeEstimator}). The bytes are added by the holders of the aggregates, i.e., the
+ * suppression buffer of the windowed aggregation and the append-only assembly, which release
+ * exactly what they added once a trace is emitted or their task is closed. While the estimate
+ * exceeds the configured limit, the {@link TraceAggregator} sheds further spans instead of storing
+ * them. Processing itself continues, since only further spans advance stream time and thereby
+ * close the windows that release the aggregates.
+ */
+@ApplicationScoped
+public class AggregateMemory {
+
+  @ConfigProperty(name = "explorviz.kafka-streams.aggregation.shed-bytes")
+  /* default */ long shedBytes;
+
+  private final AtomicLong bytes = new AtomicLong(0);
+  private final LongAdder shed = new LongAdder();
+
+  public void add(final long delta) {
+    this.bytes.addAndGet(delta);
+  }
+
+  public void release(final long delta) {
+    this.bytes.addAndGet(-delta);
+  }
+
+  public long get() {
+    return this.bytes.get();
+  }
+
+  /**
+   * Returns whether spans are shed above a limit.
+   */
+  public boolean isLimited() {
+    return this.shedBytes > 0;
+  }
+
+  /**
+   * Returns whether the estimate exceeds the limit, i.e., spans must be shed.
+   */
+  public boolean isExhausted() {
+    return this.shedBytes > 0 && this.bytes.get() > this.shedBytes;
+  }
+
+  /**
+   * Counts a span that was shed since the estimate exceeded the limit.
+   */
+  public void shedSpan() {
+    this.shed.increment();
+  }
+
+  /**
+   * Returns the number of spans shed so far.
+   */
+  public double shedSpans() {
+    return this.shed.sum();
+  }
+
+}
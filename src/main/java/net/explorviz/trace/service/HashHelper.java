@@ -1,12 +1,7 @@
 package net.explorviz.trace.service;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.StringJoiner;
+import java.nio.ByteBuffer;
 import net.explorviz.avro.Span;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 
 /**
@@ -14,64 +9,104 @@ import org.slf4j.LoggerFactory;
  */
 public final class HashHelper {
 
-  private static final Logger LOGGER = LoggerFactory.getLogger(HashHelper.class);
-
-  private static final String DIGEST_ALGORITHM = "SHA3-256";
-
+  private static final int DEFAULT_CACHE_SIZE = 100_000;
   private static final int EIGHT_BIT_CAP = 0xff;
+  private static final int HEX_RADIX = 16;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  // SHA3-256 without trusting upstream hash codes, i.e., the hash codes as ever computed
+  private static final SpanHasher DEFAULT_HASHER =
+      new SpanHasher(SpanHashAlgorithm.SHA3_256, DEFAULT_CACHE_SIZE, false);
 
   private HashHelper() {
     // Helper
   }
 
   public static String createHash(final Span span) {
-    return createHash(span.getLandscapeToken(), span.getHostIpAddress(), span.getAppInstanceId(),
-        span.getFullyQualifiedOperationName());
+    return DEFAULT_HASHER.hash(span);
   }
 
-  private static String createHash(final String landscapeToken, final String hostIp,
-      final String appInstanceId, final String methodFqn) {
-
-    final StringJoiner joiner = new StringJoiner(";");
-
-    /*
-     * By definition getFullyQualifiedOperationName().split("."): Last entry is method name, next to
-     * last is class name, remaining elements form the package name
-     */
-    final String fullyQualifiedOperationName = methodFqn.replace(".", ";");
-
-    joiner.add(landscapeToken);
-    joiner.add(hostIp);
-    joiner.add(appInstanceId);
-    joiner.add(fullyQualifiedOperationName);
-
-    MessageDigest digest;
-    try {
-      digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
-    } catch (final NoSuchAlgorithmException e) {
-      if (LOGGER.isErrorEnabled()) {
-        LOGGER.error("Set digest algorithm is not available. Did you use 'SHA3-256'?", e);
-      }
-      throw new IllegalArgumentException("Not supported algorithm detected.", e);
+  /**
+   * Returns the hash code already computed for the span, e.g., in the topology, and only computes
+   * it if absent. Binary hash codes are rendered as hex.
+   *
+   * @param span the span
+   * @return the hash code of the span
+   */
+  public static String hashOf(final Span span) {
+    if (span.getHashCodeBinary() != null) {
+      return toHex(span.getHashCodeBinary());
     }
+    if (SpanHasher.hasHashCode(span)) {
+      return span.getHashCode();
+    }
+    return createHash(span);
+  }
 
-    final byte[] hashbytes = digest.digest(joiner.toString().getBytes(StandardCharsets.UTF_8));
+  /**
+   * Checks whether two spans have the same hash code. Binary hash codes are compared if both
+   * spans carry one, otherwise the hex representations.
+   *
+   * @param a the first span
+   * @param b the second span
+   * @return true iff both spans refer to the same method
+   */
+  public static boolean sameHash(final Span a, final Span b) {
+    if (a.getHashCodeBinary() != null && b.getHashCodeBinary() != null) {
+      return a.getHashCodeBinary().equals(b.getHashCodeBinary());
+    }
+    return hashOf(a).equals(hashOf(b));
+  }
 
-    return bytesToHex(hashbytes);
+  /**
+   * Renders the remaining bytes of a buffer as hex string, without changing its position.
+   *
+   * @param buffer the bytes
+   * @return lowercase hex string
+   */
+  public static String toHex(final ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return toHex(bytes);
+  }
 
+  /**
+   * Renders bytes as hex string.
+   *
+   * @param bytes the bytes
+   * @return lowercase hex string
+   */
+  public static String toHex(final byte[] bytes) {
+    final char[] hex = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      final int value = bytes[i] & EIGHT_BIT_CAP;
+      hex[i * 2] = HEX_DIGITS[value >>> 4];
+      hex[i * 2 + 1] = HEX_DIGITS[value & 0x0f];
+    }
+    return new String(hex);
   }
 
-  private static String bytesToHex(final byte[] hash) {
-    final StringBuilder hexString = new StringBuilder();
-    for (final byte element : hash) {
-      final String hex = Integer.toHexString(EIGHT_BIT_CAP & element);
-      if (hex.length() == 1) {
-        hexString.append('0');
+  /**
+   * Parses a hex string.
+   *
+   * @param hex the hex string of even length
+   * @return the bytes
+   * @throws IllegalArgumentException if the string is not valid hex
+   */
+  public static byte[] fromHex(final String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Hex string of odd length: " + hex);
+    }
+    final byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      final int high = Character.digit(hex.charAt(i * 2), HEX_RADIX);
+      final int low = Character.digit(hex.charAt(i * 2 + 1), HEX_RADIX);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Invalid hex string: " + hex);
       }
-      hexString.append(hex);
+      bytes[i] = (byte) (high << 4 | low);
     }
-    return hexString.toString();
+    return bytes;
   }
 
 }
-
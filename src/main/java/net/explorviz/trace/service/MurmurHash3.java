@@ -0,0 +1,99 @@
+package net.explorviz.trace.service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The 128-bit x64 variant of the MurmurHash3 function by Austin Appleby. A fast,
+ * non-cryptographic hash function with a good distribution.
+ */
+public final class MurmurHash3 {
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+  private static final int BLOCK_BYTES = 16;
+  private static final int EIGHT_BIT_CAP = 0xff;
+
+  private MurmurHash3() {
+    // Utility class
+  }
+
+  /**
+   * Computes the 128-bit hash of the given data with seed 0.
+   *
+   * @param data the data to hash
+   * @return the 16 byte hash, i.e., both 64-bit halves in little-endian order
+   */
+  public static byte[] hash128(final byte[] data) {
+    final ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    final int blocks = data.length / BLOCK_BYTES;
+
+    long h1 = 0;
+    long h2 = 0;
+
+    for (int i = 0; i < blocks; i++) {
+      final long k1 = buffer.getLong(i * BLOCK_BYTES);
+      final long k2 = buffer.getLong(i * BLOCK_BYTES + Long.BYTES);
+
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    // Remaining bytes
+    final int offset = blocks * BLOCK_BYTES;
+    final int tail = data.length - offset;
+    long k1 = 0;
+    long k2 = 0;
+    for (int i = tail - 1; i >= Long.BYTES; i--) {
+      k2 ^= (long) (data[offset + i] & EIGHT_BIT_CAP) << (i - Long.BYTES) * Byte.SIZE;
+    }
+    for (int i = Math.min(tail, Long.BYTES) - 1; i >= 0; i--) {
+      k1 ^= (long) (data[offset + i] & EIGHT_BIT_CAP) << i * Byte.SIZE;
+    }
+    if (tail > Long.BYTES) {
+      h2 ^= mixK2(k2);
+    }
+    if (tail > 0) {
+      h1 ^= mixK1(k1);
+    }
+
+    // Finalization
+    h1 ^= data.length;
+    h2 ^= data.length;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix64(h1);
+    h2 = fmix64(h2);
+    h1 += h2;
+    h2 += h1;
+
+    return ByteBuffer.allocate(BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(h1)
+        .putLong(h2).array();
+  }
+
+  private static long mixK1(final long k1) {
+    return Long.rotateLeft(k1 * C1, 31) * C2;
+  }
+
+  private static long mixK2(final long k2) {
+    return Long.rotateLeft(k2 * C2, 33) * C1;
+  }
+
+  private static long fmix64(final long k) {
+    long h = k;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+}
@@ -0,0 +1,146 @@
+package net.explorviz.trace.service;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+
+/**
+ * Detects spans that were delivered more than once, i.e., whose span id is already part of the
+ * trace under aggregation. The spans of small traces are scanned, while large traces are checked
+ * against a {@link SpanIdFilter} first, such that only the rare positives are scanned. Filters
+ * are kept on the heap for a bounded number of traces and rebuilt from the spans of a trace if
+ * they are missing or out of date, e.g., after a restart.
+ */
+public class SpanDeduplicator {
+
+  // Filters of the least recently aggregated traces are evicted beyond this number
+  private static final int MAX_FILTERS = 1024;
+
+  private final int exactLimit;
+  private final Map<String, Filter> filters;
+  private final LongAdder duplicates = new LongAdder();
+
+  /**
+   * Creates a new deduplicator.
+   *
+   * @param exactLimit number of spans up to which a trace is scanned without a filter
+   */
+  public SpanDeduplicator(final int exactLimit) {
+    this.exactLimit = exactLimit;
+    this.filters = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Filter> eldest) {
+        return this.size() > MAX_FILTERS;
+      }
+    });
+  }
+
+  /**
+   * Checks whether a span is already part of a trace. Duplicates are counted.
+   *
+   * @param aggregate the trace under aggregation
+   * @param span      the span to add
+   * @return true iff the trace already contains a span with the same id
+   */
+  public boolean isDuplicate(final Trace aggregate, final Span span) {
+    final List<Span> spans = aggregate.getSpanList();
+    if (spans == null || spans.isEmpty()) {
+      return false;
+    }
+    if (spans.size() > this.exactLimit
+        && !this.filterOf(aggregate).ids.mightContain(span.getSpanId())) {
+      return false;
+    }
+    for (final Span other : spans) {
+      if (other.getSpanId().equals(span.getSpanId())) {
+        this.duplicates.increment();
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Records that a span was added to a trace, such that its filter stays up to date.
+   *
+   * @param aggregate the trace the span was added to
+   * @param span      the added span
+   */
+  public void added(final Trace aggregate, final Span span) {
+    final List<Span> spans = aggregate.getSpanList();
+    if (spans.size() <= this.exactLimit) {
+      return;
+    }
+    final String key = keyOf(aggregate);
+    final Filter filter = this.filters.get(key);
+    if (filter == null || !filter.matches(spans, spans.size() - 1)) {
+      // Rebuilt once needed
+      return;
+    }
+    filter.ids.put(span.getSpanId());
+    if (filter.ids.isSaturated()) {
+      this.filters.remove(key);
+    }
+  }
+
+  /**
+   * Counts a duplicate that was detected elsewhere, e.g., by a lookup in a state store.
+   */
+  public void countDuplicate() {
+    this.duplicates.increment();
+  }
+
+  /**
+   * Returns the number of duplicates detected so far.
+   */
+  public long duplicates() {
+    return this.duplicates.sum();
+  }
+
+  private Filter filterOf(final Trace aggregate) {
+    final String key = keyOf(aggregate);
+    final List<Span> spans = aggregate.getSpanList();
+    final Filter filter = this.filters.get(key);
+    if (filter != null && filter.matches(spans, spans.size())) {
+      return filter;
+    }
+
+    // Leave room to grow, such that the filter is not rebuilt for each span
+    final Filter rebuilt = new Filter(spans.get(0).getSpanId(), new SpanIdFilter(spans.size() * 2));
+    for (final Span span : spans) {
+      rebuilt.ids.put(span.getSpanId());
+    }
+    this.filters.put(key, rebuilt);
+    return rebuilt;
+  }
+
+  private static String keyOf(final Trace aggregate) {
+    return aggregate.getLandscapeToken() + "::" + aggregate.getTraceId();
+  }
+
+  /**
+   * Filter of the span ids of a trace, identified by its first span, since the same trace id may
+   * be aggregated in several windows.
+   */
+  private static final class Filter {
+
+    private final String firstSpanId;
+    private final SpanIdFilter ids;
+
+    private Filter(final String firstSpanId, final SpanIdFilter ids) {
+      this.firstSpanId = firstSpanId;
+      this.ids = ids;
+    }
+
+    private boolean matches(final List<Span> spans, final int size) {
+      return this.ids.size() == size && this.firstSpanId.equals(spans.get(0).getSpanId());
+    }
+  }
+
+}
@@ -0,0 +1,69 @@
+package net.explorviz.trace.service;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash functions available to compute the hash code of a span.
+ */
+public enum SpanHashAlgorithm {
+
+  /**
+   * SHA3-256, compatible with hash codes of previously persisted spans.
+   */
+  SHA3_256("sha3-256") {
+    private final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+      try {
+        return MessageDigest.getInstance("SHA3-256");
+      } catch (final NoSuchAlgorithmException e) {
+        throw new IllegalArgumentException("Not supported algorithm detected.", e);
+      }
+    });
+
+    @Override
+    public byte[] digest(final byte[] input) {
+      return this.digest.get().digest(input);
+    }
+  },
+
+  /**
+   * 128-bit MurmurHash3, considerably faster but not cryptographic.
+   */
+  MURMUR3_128("murmur3-128") {
+    @Override
+    public byte[] digest(final byte[] input) {
+      return MurmurHash3.hash128(input);
+    }
+  };
+
+  private final String configName;
+
+  SpanHashAlgorithm(final String configName) {
+    this.configName = configName;
+  }
+
+  /**
+   * Computes the hash of the given input.
+   *
+   * @param input the bytes to hash
+   * @return the hash
+   */
+  public abstract byte[] digest(byte[] input);
+
+  /**
+   * Resolves an algorithm by its name as used in the configuration, e.g. {@code sha3-256}.
+   *
+   * @param configName the name of the algorithm
+   * @return the algorithm
+   * @throws IllegalArgumentException if there is no algorithm with the given name
+   */
+  public static SpanHashAlgorithm fromConfigName(final String configName) {
+    for (final SpanHashAlgorithm algorithm : values()) {
+      if (algorithm.configName.equalsIgnoreCase(configName)) {
+        return algorithm;
+      }
+    }
+    throw new IllegalArgumentException("Unknown hash algorithm: " + configName);
+  }
+
+}
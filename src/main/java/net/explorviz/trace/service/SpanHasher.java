@@ -0,0 +1,192 @@
+package net.explorviz.trace.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import net.explorviz.avro.Span;
+
+/**
+ * Computes the hash codes of spans. The hash of a span only depends on its landscape token, host
+ * IP address, application instance, and operation, which repeat for most spans. Thus, computed
+ * hashes are memoized in a bounded cache that is shared between threads. Once the cache is full,
+ * it is cleared.
+ */
+public class SpanHasher {
+
+  /**
+   * Default value of {@link Span#getHashCode()}, i.e., no hash code was computed upstream.
+   */
+  public static final String DEFAULT_HASHCODE = "default-hashcode";
+
+  private final SpanHashAlgorithm algorithm;
+  private final int cacheSize;
+  private final boolean trustUpstream;
+  private final Map<HashKey, Digest> cache;
+
+  /**
+   * Creates a new hasher.
+   *
+   * @param algorithm     the hash function to use
+   * @param cacheSize     maximum number of memoized hashes, 0 disables the cache
+   * @param trustUpstream whether hash codes already set in spans are kept
+   */
+  public SpanHasher(final SpanHashAlgorithm algorithm, final int cacheSize,
+      final boolean trustUpstream) {
+    this.algorithm = algorithm;
+    this.cacheSize = cacheSize;
+    this.trustUpstream = trustUpstream;
+    this.cache = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Returns the hash code of a span. If upstream hash codes are trusted, the hash code already set
+   * in the span is returned if present.
+   *
+   * @param span the span
+   * @return the hash code as hex string
+   */
+  public String hash(final Span span) {
+    if (this.trustUpstream && hasHashCode(span)) {
+      return span.getHashCode();
+    }
+    return this.hash(span.getLandscapeToken(), span.getHostIpAddress(), span.getAppInstanceId(),
+        span.getFullyQualifiedOperationName());
+  }
+
+  /**
+   * Returns the raw binary hash code of a span. If upstream hash codes are trusted, the binary or
+   * hex hash code already set in the span is used if present.
+   *
+   * @param span the span
+   * @return the hash code
+   */
+  public ByteBuffer hashBinary(final Span span) {
+    if (this.trustUpstream) {
+      if (span.getHashCodeBinary() != null) {
+        return span.getHashCodeBinary();
+      }
+      if (hasHashCode(span)) {
+        try {
+          return ByteBuffer.wrap(HashHelper.fromHex(span.getHashCode()));
+        } catch (final IllegalArgumentException e) {
+          // Not a hex hash code, compute it
+        }
+      }
+    }
+    return ByteBuffer.wrap(this.digest(span.getLandscapeToken(), span.getHostIpAddress(),
+        span.getAppInstanceId(), span.getFullyQualifiedOperationName()).bytes);
+  }
+
+  /**
+   * Returns the hash code of the given span components.
+   *
+   * @param landscapeToken the landscape token
+   * @param hostIp         the host IP address
+   * @param appInstanceId  the application instance
+   * @param methodFqn      the fully qualified operation name
+   * @return the hash code as hex string
+   */
+  public String hash(final String landscapeToken, final String hostIp, final String appInstanceId,
+      final String methodFqn) {
+    return this.digest(landscapeToken, hostIp, appInstanceId, methodFqn).hex;
+  }
+
+  private Digest digest(final String landscapeToken, final String hostIp,
+      final String appInstanceId, final String methodFqn) {
+    if (this.cacheSize <= 0) {
+      return this.compute(landscapeToken, hostIp, appInstanceId, methodFqn);
+    }
+
+    final HashKey key = new HashKey(landscapeToken, hostIp, appInstanceId, methodFqn);
+    final Digest cached = this.cache.get(key);
+    if (cached != null) {
+      return cached;
+    }
+
+    final Digest digest = this.compute(landscapeToken, hostIp, appInstanceId, methodFqn);
+    if (this.cache.size() >= this.cacheSize) {
+      this.cache.clear();
+    }
+    this.cache.put(key, digest);
+    return digest;
+  }
+
+  /**
+   * Checks whether a span carries a hash code, i.e., not the default value.
+   *
+   * @param span the span
+   * @return true iff the hash code of the span is set
+   */
+  public static boolean hasHashCode(final Span span) {
+    return span.getHashCode() != null && !DEFAULT_HASHCODE.equals(span.getHashCode());
+  }
+
+  private Digest compute(final String landscapeToken, final String hostIp,
+      final String appInstanceId, final String methodFqn) {
+    /*
+     * By definition getFullyQualifiedOperationName().split("."): Last entry is method name, next to
+     * last is class name, remaining elements form the package name
+     */
+    final String input = landscapeToken + ';' + hostIp + ';' + appInstanceId + ';'
+        + methodFqn.replace('.', ';');
+
+    return new Digest(this.algorithm.digest(input.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * A computed hash in both binary and hex representation.
+   */
+  private static final class Digest {
+
+    private final byte[] bytes;
+    private final String hex;
+
+    private Digest(final byte[] bytes) {
+      this.bytes = bytes;
+      this.hex = HashHelper.toHex(bytes);
+    }
+  }
+
+  /**
+   * Cache key of the components a hash is computed of.
+   */
+  private static final class HashKey {
+
+    private final String landscapeToken;
+    private final String hostIp;
+    private final String appInstanceId;
+    private final String methodFqn;
+    private final int hashCode;
+
+    private HashKey(final String landscapeToken, final String hostIp, final String appInstanceId,
+        final String methodFqn) {
+      this.landscapeToken = landscapeToken;
+      this.hostIp = hostIp;
+      this.appInstanceId = appInstanceId;
+      this.methodFqn = methodFqn;
+      this.hashCode = Objects.hash(landscapeToken, hostIp, appInstanceId, methodFqn);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof HashKey)) {
+        return false;
+      }
+      final HashKey other = (HashKey) o;
+      return this.hashCode == other.hashCode && this.methodFqn.equals(other.methodFqn)
+          && this.landscapeToken.equals(other.landscapeToken) && this.hostIp.equals(other.hostIp)
+          && this.appInstanceId.equals(other.appInstanceId);
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hashCode;
+    }
+  }
+
+}
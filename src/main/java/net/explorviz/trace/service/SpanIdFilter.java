@@ -0,0 +1,89 @@
+package net.explorviz.trace.service;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter over the span ids of a single trace. It never misses an added id, but may report
+ * ids that were not added with a false positive rate of about one percent, as long as no more ids
+ * than its capacity were added.
+ */
+public final class SpanIdFilter {
+
+  // About 1% false positives with 7 hash functions
+  private static final int BITS_PER_ID = 10;
+  private static final int HASH_FUNCTIONS = 7;
+
+  private final long[] bits;
+  private final int bitCount;
+  private final int capacity;
+  private int size;
+
+  /**
+   * Creates an empty filter.
+   *
+   * @param capacity the number of ids the false positive rate is designed for
+   */
+  public SpanIdFilter(final int capacity) {
+    this.capacity = Math.max(1, capacity);
+    this.bits = new long[(this.capacity * BITS_PER_ID + Long.SIZE - 1) / Long.SIZE];
+    this.bitCount = this.bits.length * Long.SIZE;
+  }
+
+  /**
+   * Adds a span id.
+   *
+   * @param spanId the id to add
+   */
+  public void put(final String spanId) {
+    final ByteBuffer hash = hash(spanId);
+    final long h1 = hash.getLong(0);
+    final long h2 = hash.getLong(Long.BYTES);
+    for (int i = 0; i < HASH_FUNCTIONS; i++) {
+      final int bit = (int) Math.floorMod(h1 + i * h2, (long) this.bitCount);
+      this.bits[bit / Long.SIZE] |= 1L << bit % Long.SIZE;
+    }
+    this.size++;
+  }
+
+  /**
+   * Checks whether a span id might have been added.
+   *
+   * @param spanId the id to check
+   * @return false if the id was definitely not added
+   */
+  public boolean mightContain(final String spanId) {
+    final ByteBuffer hash = hash(spanId);
+    final long h1 = hash.getLong(0);
+    final long h2 = hash.getLong(Long.BYTES);
+    for (int i = 0; i < HASH_FUNCTIONS; i++) {
+      final int bit = (int) Math.floorMod(h1 + i * h2, (long) this.bitCount);
+      if ((this.bits[bit / Long.SIZE] & 1L << bit % Long.SIZE) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of added ids.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Returns whether more ids than the capacity were added, i.e., the false positive rate
+   * exceeds the designed one.
+   */
+  public boolean isSaturated() {
+    return this.size > this.capacity;
+  }
+
+  private static ByteBuffer hash(final String spanId) {
+    return ByteBuffer.wrap(MurmurHash3.hash128(spanId.getBytes(StandardCharsets.UTF_8)))
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+}
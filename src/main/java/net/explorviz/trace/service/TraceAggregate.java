@@ -0,0 +1,46 @@
+package net.explorviz.trace.service;
+
+import net.explorviz.avro.Trace;
+
+/**
+ * A trace under aggregation together with the running estimate of its bytes (see
+ * {@link TraceSizeEstimator}), such that a byte limit per trace does not require estimating all
+ * spans again whenever a span is added. The estimate is internal to the aggregation and not part
+ * of the {@link Trace} record, it is only kept if the {@link TraceAggregator} limits the bytes.
+ */
+public class TraceAggregate {
+
+  private final Trace trace;
+  private long estimatedBytes;
+
+  /**
+   * Creates an empty aggregate.
+   */
+  public TraceAggregate() {
+    this(new Trace(), 0L);
+  }
+
+  /**
+   * Creates an aggregate of the given trace.
+   *
+   * @param trace          the trace under aggregation
+   * @param estimatedBytes the estimated bytes of the trace, 0 if not estimated
+   */
+  public TraceAggregate(final Trace trace, final long estimatedBytes) {
+    this.trace = trace;
+    this.estimatedBytes = estimatedBytes;
+  }
+
+  public Trace getTrace() {
+    return this.trace;
+  }
+
+  public long getEstimatedBytes() {
+    return this.estimatedBytes;
+  }
+
+  public void setEstimatedBytes(final long estimatedBytes) {
+    this.estimatedBytes = estimatedBytes;
+  }
+
+}
@@ -9,10 +9,59 @@ import net.explorviz.avro.Span;
 import net.explorviz.avro.Trace;
 
 /**
- * Contains methods that help to aggregate multiple span into a trace as they come in.
+ * Contains methods that help to aggregate multiple span into a trace as they come in. Optionally,
+ * the number of spans and the estimated bytes (see {@link TraceSizeEstimator}) per trace are
+ * limited. Spans beyond the limits still adjust the times of the trace, but are only counted in
+ * its {@code droppedSpanCount} instead of being stored. The estimated bytes are kept in a
+ * {@link TraceAggregate} as spans are added, such that they are not estimated again for every
+ * span. While the {@link AggregateMemory} is exhausted, spans are shed the same way, except
+ * for the first span of a trace. Spans that are delivered more than once are dropped if a
+ * {@link SpanDeduplicator} is given. The depth limit is not applied here, but by the append-only
+ * assembly, which keeps track of the levels of the spans.
  */
 public class TraceAggregator {
 
+  private final int maxSpans;
+  private final long maxBytes;
+  private final int maxDepth;
+  private final AggregateMemory memory;
+  private final SpanDeduplicator deduplicator;
+
+  /**
+   * Creates an aggregator without limits.
+   */
+  public TraceAggregator() {
+    this(0, 0L, null);
+  }
+
+  /**
+   * Creates an aggregator with limits per trace.
+   *
+   * @param maxSpans maximum number of spans per trace, non-positive for no limit
+   * @param maxBytes maximum estimated bytes per trace, non-positive for no limit
+   * @param memory   estimate of the bytes in open aggregates to shed spans by, or null
+   */
+  public TraceAggregator(final int maxSpans, final long maxBytes, final AggregateMemory memory) {
+    this(maxSpans, maxBytes, -1, memory, null);
+  }
+
+  /**
+   * Creates an aggregator with limits per trace that optionally drops duplicate spans.
+   *
+   * @param maxSpans     maximum number of spans per trace, non-positive for no limit
+   * @param maxBytes     maximum estimated bytes per trace, non-positive for no limit
+   * @param maxDepth     maximum level of spans (the root is on level 0), negative for no limit
+   * @param memory       estimate of the bytes in open aggregates to shed spans by, or null
+   * @param deduplicator detects duplicate spans, or null to keep them
+   */
+  public TraceAggregator(final int maxSpans, final long maxBytes, final int maxDepth,
+      final AggregateMemory memory, final SpanDeduplicator deduplicator) {
+    this.maxSpans = maxSpans;
+    this.maxBytes = maxBytes;
+    this.maxDepth = maxDepth;
+    this.memory = memory;
+    this.deduplicator = deduplicator;
+  }
 
   private Trace initTrace(final Trace freshTrace, final Span firstSpan) {
 
@@ -21,7 +70,6 @@ public class TraceAggregator {
     // Use linked list here to avoid costly reallocation of array lists
     // We don't need random access provided by array lists
     freshTrace.setSpanList(new LinkedList<>());
-    freshTrace.getSpanList().add(firstSpan);
 
     // Set start and end time to equal to the times of the only span
     freshTrace.setStartTimeEpochMilli(firstSpan.getStartTimeEpochMilli());
@@ -44,20 +92,167 @@ public class TraceAggregator {
   /**
    * Adds a {@link Span} to a given trace. Adjusts start and end times as well as requests counts of
    * the trace and takes care of new and empty traces. Additionally makes sure that spans are
-   * ordered by their respective start times.
+   * ordered by their respective start times. If the bytes are limited, the trace is estimated
+   * completely, see {@link #aggregate(TraceAggregate, Span)} to keep a running estimate instead.
    *
    * @param aggregate the trace to add the span to
    * @param newSpan   the span to add to the trace
    * @return the trace with the span included
    */
   public Trace aggregate(final Trace aggregate, final Span newSpan) {
+    final long bytes = this.limitsBytes() && !isEmpty(aggregate)
+        ? TraceSizeEstimator.estimate(aggregate) : 0L;
+    this.add(aggregate, newSpan, bytes);
+    return aggregate;
+  }
+
+  /**
+   * Adds a {@link Span} to a given aggregate like {@link #aggregate(Trace, Span)}, and updates the
+   * running estimate of its bytes if the bytes are limited.
+   *
+   * @param aggregate the aggregate to add the span to
+   * @param newSpan   the span to add to the aggregate
+   * @return the aggregate with the span included
+   */
+  public TraceAggregate aggregate(final TraceAggregate aggregate, final Span newSpan) {
+    aggregate.setEstimatedBytes(
+        this.add(aggregate.getTrace(), newSpan, aggregate.getEstimatedBytes()));
+    return aggregate;
+  }
+
+  /**
+   * Adds a span to a trace of the given estimated bytes.
+   *
+   * @return the estimated bytes of the trace afterwards, 0 if the bytes are not limited
+   */
+  private long add(final Trace aggregate, final Span newSpan, final long bytes) {
+    if (isEmpty(aggregate)) {
+      this.initTrace(aggregate, newSpan);
+      aggregate.getSpanList().add(newSpan);
+      return this.limitsBytes() ? TraceSizeEstimator.estimate(aggregate) : 0L;
+    }
+
+    if (this.deduplicator != null && this.deduplicator.isDuplicate(aggregate, newSpan)) {
+      // Same span as before, neither times nor counts change
+      return bytes;
+    }
 
-    if (aggregate.getSpanList() == null || aggregate.getSpanList().isEmpty()) {
-      return this.initTrace(aggregate, newSpan);
+    long updated = bytes;
+    if (this.drops(aggregate.getSpanList().size(), bytes, newSpan)) {
+      aggregate.setDroppedSpanCount(aggregate.getDroppedSpanCount() + 1);
+    } else {
+      // Add the span to the trace
+      aggregate.getSpanList().add(newSpan);
+      if (this.limitsBytes()) {
+        updated += TraceSizeEstimator.estimate(newSpan);
+      }
+      if (this.deduplicator != null) {
+        this.deduplicator.added(aggregate, newSpan);
+      }
     }
+    this.adjustTimes(aggregate, newSpan);
+    return updated;
+  }
+
+  private static boolean isEmpty(final Trace aggregate) {
+    return aggregate.getSpanList() == null || aggregate.getSpanList().isEmpty();
+  }
+
+  /**
+   * Returns whether duplicate spans are dropped.
+   */
+  public boolean dropsDuplicates() {
+    return this.deduplicator != null;
+  }
+
+  /**
+   * Counts a duplicate span that was detected outside of the aggregator, e.g., by a lookup of its
+   * span id in a state store.
+   */
+  public void countDuplicate() {
+    if (this.deduplicator != null) {
+      this.deduplicator.countDuplicate();
+    }
+  }
+
+  /**
+   * Checks whether a span is dropped instead of being added to a trace that is not empty, i.e.,
+   * whether spans are shed since the {@link AggregateMemory} is exhausted, or adding the span
+   * would exceed the limits. Shed spans are counted in the memory.
+   *
+   * @param spans   the number of spans of the trace
+   * @param bytes   the estimated bytes of the trace, only needed if the bytes are limited
+   * @param newSpan the span to add
+   * @return true iff the span must not be added
+   */
+  public boolean drops(final int spans, final long bytes, final Span newSpan) {
+    if (this.memory != null && this.memory.isExhausted()) {
+      this.memory.shedSpan();
+      return true;
+    }
+    return this.exceedsLimits(spans, bytes, newSpan);
+  }
+
+  /**
+   * Checks whether adding a span to a trace would exceed the limits.
+   *
+   * @param spans   the number of spans of the trace
+   * @param bytes   the estimated bytes of the trace, only needed if the bytes are limited
+   * @param newSpan the span to add
+   * @return true iff the span must not be added
+   */
+  public boolean exceedsLimits(final int spans, final long bytes, final Span newSpan) {
+    if (this.maxSpans > 0 && spans >= this.maxSpans) {
+      return true;
+    }
+    return this.maxBytes > 0 && bytes + TraceSizeEstimator.estimate(newSpan) > this.maxBytes;
+  }
+
+  /**
+   * Returns whether spans deeper than {@link #getMaxDepth()} are dropped.
+   */
+  public boolean limitsDepth() {
+    return this.maxDepth >= 0;
+  }
+
+  /**
+   * Returns the maximum level of spans, negative if the depth is not limited.
+   */
+  public int getMaxDepth() {
+    return this.maxDepth;
+  }
+
+  /**
+   * Returns the estimate of the bytes in open aggregates spans are shed by, or null.
+   */
+  public AggregateMemory getMemory() {
+    return this.memory;
+  }
+
+  /**
+   * Returns whether the bytes of traces are limited, i.e., need to be estimated.
+   */
+  public boolean limitsBytes() {
+    return this.maxBytes > 0;
+  }
+
+  /**
+   * Adjusts start and end times as well as request counts of a trace summary to include a
+   * {@link Span}, without adding the span to the summary's span list. Used if the spans of a trace
+   * are stored separately, such that the full trace is only materialized once.
+   *
+   * @param summary the trace summary, its span list stays empty
+   * @param newSpan the span to include
+   * @return the adjusted summary
+   */
+  public Trace summarize(final Trace summary, final Span newSpan) {
+    if (summary.getSpanList() == null) {
+      return this.initTrace(summary, newSpan);
+    }
+    return this.adjustTimes(summary, newSpan);
+  }
 
-    // Add the span to the trace
-    aggregate.getSpanList().add(newSpan);
+  private Trace adjustTimes(final Trace aggregate, final Span newSpan) {
     // Depending on the position the span was inserted, the start or end time must be adjusted
     if (isBefore(newSpan.getStartTimeEpochMilli(), aggregate.getStartTimeEpochMilli())) {
       // Span is the current earliest in the trace
@@ -0,0 +1,46 @@
+package net.explorviz.trace.service;
+
+import java.util.HashSet;
+import java.util.Set;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+
+/**
+ * Helper class to decide whether all spans of a {@link Trace} have arrived.
+ */
+public final class TraceCompleteness {
+
+  private TraceCompleteness() {
+    // Helper
+  }
+
+  /**
+   * Checks if a trace is structurally complete, i.e., its root span (empty parent span id) has
+   * arrived and the parent of every other span is part of the trace.
+   *
+   * @param trace the trace to check
+   * @return true iff the trace contains a root and no span references an unknown parent
+   */
+  public static boolean isComplete(final Trace trace) {
+    if (trace.getSpanList() == null || trace.getSpanList().isEmpty()) {
+      return false;
+    }
+
+    final Set<String> spanIds = new HashSet<>(trace.getSpanList().size() * 2);
+    for (final Span span : trace.getSpanList()) {
+      spanIds.add(span.getSpanId());
+    }
+
+    boolean hasRoot = false;
+    for (final Span span : trace.getSpanList()) {
+      final String parentSpanId = span.getParentSpanId();
+      if (parentSpanId.isEmpty()) {
+        hasRoot = true;
+      } else if (!spanIds.contains(parentSpanId)) {
+        return false;
+      }
+    }
+    return hasRoot;
+  }
+
+}
@@ -7,7 +7,8 @@ import net.explorviz.trace.persistence.dao.SpanDynamic;
 import net.explorviz.trace.persistence.dao.Trace;
 
 /**
- * Utility class which converts {@link net.explorviz.avro.Trace} into {@link Trace} objects.
+ * Utility class which converts {@link net.explorviz.avro.Trace} into {@link Trace} objects and
+ * vice versa.
  */
 public final class TraceConverter {
 
@@ -31,9 +32,18 @@ public final class TraceConverter {
       final long startTime = span.getStartTimeEpochMilli();
       final long endTime = span.getEndTimeEpochMilli();
 
-      final SpanDynamic spanDynamicEntity =
-          new SpanDynamic(span.getLandscapeToken(), span.getSpanId(), span.getParentSpanId(),
-              span.getTraceId(), startTime, endTime, HashHelper.createHash(span));
+      final SpanDynamic spanDynamicEntity;
+      if (span.getHashCodeBinary() == null) {
+        spanDynamicEntity =
+            new SpanDynamic(span.getLandscapeToken(), span.getSpanId(), span.getParentSpanId(),
+                span.getTraceId(), startTime, endTime, HashHelper.hashOf(span));
+      } else {
+        // Only store the binary hash code
+        spanDynamicEntity =
+            new SpanDynamic(span.getLandscapeToken(), span.getSpanId(), span.getParentSpanId(),
+                span.getTraceId(), startTime, endTime, null);
+        spanDynamicEntity.setHashCodeBinary(span.getHashCodeBinary());
+      }
 
       daoSpanList.add(spanDynamicEntity);
     }
@@ -43,8 +53,60 @@ public final class TraceConverter {
     final long startTime = t.getStartTimeEpochMilli();
     final long endTime = t.getEndTimeEpochMilli();
 
-    return new Trace(t.getLandscapeToken(), t.getTraceId(), startTime, endTime, t.getDuration(),
-        t.getOverallRequestCount(), t.getTraceCount(), daoSpanList);
+    final Trace daoTrace = new Trace(t.getLandscapeToken(), t.getTraceId(), startTime, endTime,
+        t.getDuration(), t.getOverallRequestCount(), t.getTraceCount(), daoSpanList);
+
+    // 0 if the trace was not deduplicated, i.e., only represents itself
+    daoTrace.setMinDuration(t.getMinDuration());
+    daoTrace.setAvgDuration(t.getAvgDuration());
+    daoTrace.setMaxDuration(t.getMaxDuration());
+    return daoTrace;
+  }
+
+  /**
+   * Converts a DAO Trace object to an Avro Trace object. Attributes of spans that are not
+   * persisted, e.g., the operation name and host, are empty.
+   *
+   * @param t the DAO Trace object to convert
+   * @return the corresponding Avro Trace object
+   */
+  public static net.explorviz.avro.Trace convertDaoToTrace(final Trace t) {
+    final List<Span> spanList = new ArrayList<>();
+
+    if (t.getSpanList() != null) {
+      for (final SpanDynamic spanDynamic : t.getSpanList()) {
+        spanList.add(Span.newBuilder()
+            .setLandscapeToken(spanDynamic.getLandscapeToken())
+            .setSpanId(spanDynamic.getSpanId())
+            .setParentSpanId(spanDynamic.getParentSpanId())
+            .setTraceId(spanDynamic.getTraceId())
+            .setStartTimeEpochMilli(spanDynamic.getStartTime())
+            .setEndTimeEpochMilli(spanDynamic.getEndTime())
+            .setFullyQualifiedOperationName("")
+            .setHostname("")
+            .setHostIpAddress("")
+            .setAppName("")
+            .setAppInstanceId("")
+            .setAppLanguage("")
+            .setHashCode(spanDynamic.getHashCode() == null ? "" : spanDynamic.getHashCode())
+            .setHashCodeBinary(spanDynamic.getHashCodeBinary())
+            .build());
+      }
+    }
+
+    return net.explorviz.avro.Trace.newBuilder()
+        .setLandscapeToken(t.getLandscapeToken())
+        .setTraceId(t.getTraceId())
+        .setStartTimeEpochMilli(t.getStartTime())
+        .setEndTimeEpochMilli(t.getEndTime())
+        .setDuration(t.getDuration())
+        .setOverallRequestCount(t.getOverallRequestCount())
+        .setTraceCount(t.getTraceCount())
+        .setMinDuration(t.getMinDuration())
+        .setAvgDuration(t.getAvgDuration())
+        .setMaxDuration(t.getMaxDuration())
+        .setSpanList(spanList)
+        .build();
   }
 
 }
@@ -0,0 +1,57 @@
+package net.explorviz.trace.service;
+
+import net.explorviz.avro.Trace;
+
+/**
+ * Merges structurally identical traces (see {@link TraceShape#callTreeFingerprint(Trace)}) into a
+ * single representative. The representative keeps the spans and timestamps of the first trace and
+ * accumulates the counts and the minimum, average, and maximum duration of all merged traces.
+ */
+public final class TraceDeduplicator {
+
+  private TraceDeduplicator() {
+    // Utility class
+  }
+
+  /**
+   * Creates the representative of a group of identical traces.
+   *
+   * @param trace the first trace of the group, not modified
+   * @return a copy of the trace with its duration statistics set
+   */
+  public static Trace represent(final Trace trace) {
+    final Trace representative = Trace.newBuilder(trace).build();
+    if (representative.getMaxDuration() == 0) {
+      representative.setMinDuration(trace.getDuration());
+      representative.setAvgDuration(trace.getDuration());
+      representative.setMaxDuration(trace.getDuration());
+    }
+    return representative;
+  }
+
+  /**
+   * Merges a trace into the representative of its group.
+   *
+   * @param representative the representative, modified in place
+   * @param trace          the identical trace to merge
+   */
+  public static void merge(final Trace representative, final Trace trace) {
+    final boolean deduplicated = trace.getMaxDuration() != 0;
+    final long min = deduplicated ? trace.getMinDuration() : trace.getDuration();
+    final long avg = deduplicated ? trace.getAvgDuration() : trace.getDuration();
+    final long max = deduplicated ? trace.getMaxDuration() : trace.getDuration();
+
+    final long count = Math.max(1, representative.getTraceCount());
+    final long added = Math.max(1, trace.getTraceCount());
+
+    representative.setMinDuration(Math.min(representative.getMinDuration(), min));
+    representative.setMaxDuration(Math.max(representative.getMaxDuration(), max));
+    // Weighted by the number of traces on both sides
+    representative.setAvgDuration(
+        (representative.getAvgDuration() * count + avg * added) / (count + added));
+    representative.setTraceCount((int) (count + added));
+    representative.setOverallRequestCount(
+        representative.getOverallRequestCount() + trace.getOverallRequestCount());
+  }
+
+}
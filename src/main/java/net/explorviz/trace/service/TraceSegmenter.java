@@ -0,0 +1,76 @@
+package net.explorviz.trace.service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import net.explorviz.trace.persistence.dao.SpanDynamic;
+import net.explorviz.trace.persistence.dao.Trace;
+import net.explorviz.trace.persistence.dao.TraceSegment;
+
+/**
+ * Splits the spans of persisted traces into bounded segments and reassembles them, such that
+ * traces with very many spans do not exceed the size limits of a single row.
+ */
+public final class TraceSegmenter {
+
+  private TraceSegmenter() {
+    // Utility class
+  }
+
+  /**
+   * Splits the spans of a trace into segments of at most {@code maxSpans} spans. The trace keeps
+   * the first segment and the number of segments, the further segments are returned. Traces that
+   * fit into a single segment are not changed, except that their segment count is reset.
+   *
+   * @param trace    the trace to split, modified in place
+   * @param maxSpans the maximum number of spans per segment, non-positive to disable segmentation
+   * @return the segments after the first one, empty if the trace is not segmented
+   */
+  public static List<TraceSegment> split(final Trace trace, final int maxSpans) {
+    final List<SpanDynamic> spans = trace.getSpanList();
+    if (maxSpans <= 0 || spans == null || spans.size() <= maxSpans) {
+      trace.setSegmentCount(0);
+      return List.of();
+    }
+
+    final int segmentCount = (spans.size() + maxSpans - 1) / maxSpans;
+    final List<TraceSegment> segments = new ArrayList<>(segmentCount - 1);
+    for (int i = 1; i < segmentCount; i++) {
+      final List<SpanDynamic> segmentSpans =
+          new ArrayList<>(spans.subList(i * maxSpans, Math.min(spans.size(), (i + 1) * maxSpans)));
+      segments.add(new TraceSegment(trace.getLandscapeToken(), trace.getTraceId(),
+          trace.getStartTime(), i, segmentSpans));
+    }
+    trace.setSpanList(new ArrayList<>(spans.subList(0, maxSpans)));
+    trace.setSegmentCount(segmentCount);
+    return segments;
+  }
+
+  /**
+   * Appends the spans of the segments to the first segment, i.e., the trace, in the order of the
+   * segments. The segment count of the trace is kept, such that deleting the trace also deletes
+   * its segments. Segments beyond the segment count are ignored, i.e., stale segments of a
+   * previous version of the trace that was split into more segments.
+   *
+   * @param trace    the trace holding the first segment, modified in place
+   * @param segments the further segments of the trace in any order
+   * @return the given trace with all spans
+   */
+  public static Trace merge(final Trace trace, final List<TraceSegment> segments) {
+    final List<TraceSegment> ordered = new ArrayList<>(segments);
+    ordered.sort(Comparator.comparingInt(TraceSegment::getSegment));
+
+    final List<SpanDynamic> spans = new ArrayList<>();
+    if (trace.getSpanList() != null) {
+      spans.addAll(trace.getSpanList());
+    }
+    for (final TraceSegment segment : ordered) {
+      if (segment.getSegment() < trace.getSegmentCount() && segment.getSpanList() != null) {
+        spans.addAll(segment.getSpanList());
+      }
+    }
+    trace.setSpanList(spans);
+    return trace;
+  }
+
+}
@@ -0,0 +1,138 @@
+package net.explorviz.trace.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+
+/**
+ * Structural fingerprints of a trace. Two traces have the same shape iff they contain the same
+ * distinct caller-callee pairs of methods (identified by the span hash codes). Timing, ids, the
+ * order of calls, and the number of loop iterations are ignored, such that the near-identical
+ * traces of recurring requests share their shape. The stricter call-tree fingerprint only matches
+ * traces with identical call trees, apart from the order of sibling calls.
+ */
+public final class TraceShape {
+
+  private static final String ROOT = "";
+  private static final char EDGE_SEPARATOR = '>';
+  private static final char LINE_SEPARATOR = '\n';
+
+  private TraceShape() {
+    // Utility class
+  }
+
+  /**
+   * Computes the fingerprint of a trace.
+   *
+   * @param trace the trace
+   * @return the fingerprint of the trace's shape
+   */
+  public static long fingerprint(final Trace trace) {
+    final Map<String, String> hashes = new HashMap<>(trace.getSpanList().size());
+    for (final Span span : trace.getSpanList()) {
+      hashes.put(span.getSpanId(), HashHelper.hashOf(span));
+    }
+
+    final SortedSet<String> edges = new TreeSet<>();
+    for (final Span span : trace.getSpanList()) {
+      final String parent = hashes.getOrDefault(span.getParentSpanId(), ROOT);
+      edges.add(parent + EDGE_SEPARATOR + hashes.get(span.getSpanId()));
+    }
+
+    final StringBuilder canonical = new StringBuilder();
+    for (final String edge : edges) {
+      canonical.append(edge).append(LINE_SEPARATOR);
+    }
+    final byte[] hash =
+        MurmurHash3.hash128(canonical.toString().getBytes(StandardCharsets.UTF_8));
+    return ByteBuffer.wrap(hash).getLong();
+  }
+
+  /**
+   * Computes the fingerprint of the call tree of a trace, i.e., of the span hash codes and the
+   * parent structure. Spans whose parent is not part of the trace are roots. Spans delivered more
+   * than once are only counted once, and spans that are only reachable through a cycle of parents
+   * are ignored.
+   *
+   * @param trace the trace
+   * @return the fingerprint of the call tree
+   */
+  public static long callTreeFingerprint(final Trace trace) {
+    // Keep the first of spans with the same id
+    final Map<String, Span> spans = new LinkedHashMap<>(trace.getSpanList().size());
+    for (final Span span : trace.getSpanList()) {
+      spans.putIfAbsent(span.getSpanId(), span);
+    }
+    final Map<String, List<Span>> byParent = new HashMap<>();
+    final List<Span> roots = new ArrayList<>();
+    for (final Span span : spans.values()) {
+      if (spans.containsKey(span.getParentSpanId())) {
+        byParent.computeIfAbsent(span.getParentSpanId(), p -> new ArrayList<>()).add(span);
+      } else {
+        roots.add(span);
+      }
+    }
+
+    // Breadth-first order, such that children are hashed before their parents in reverse. Each
+    // span is visited once, even if its parents form a cycle.
+    final Set<String> visited = new HashSet<>(spans.size());
+    final Map<String, List<Span>> children = new HashMap<>();
+    final List<Span> order = new ArrayList<>(roots);
+    for (final Span root : roots) {
+      visited.add(root.getSpanId());
+    }
+    for (int i = 0; i < order.size(); i++) {
+      final String spanId = order.get(i).getSpanId();
+      for (final Span call : byParent.getOrDefault(spanId, List.of())) {
+        if (visited.add(call.getSpanId())) {
+          order.add(call);
+          children.computeIfAbsent(spanId, p -> new ArrayList<>()).add(call);
+        }
+      }
+    }
+
+    final Map<String, Long> fingerprints = new HashMap<>(order.size());
+    final Deque<Span> reverse = new ArrayDeque<>(order);
+    while (!reverse.isEmpty()) {
+      final Span span = reverse.pollLast();
+      final List<Span> calls = children.getOrDefault(span.getSpanId(), List.of());
+      final long[] callFingerprints = new long[calls.size()];
+      for (int i = 0; i < calls.size(); i++) {
+        callFingerprints[i] = fingerprints.get(calls.get(i).getSpanId());
+      }
+      fingerprints.put(span.getSpanId(), combine(HashHelper.hashOf(span), callFingerprints));
+    }
+
+    final long[] rootFingerprints = new long[roots.size()];
+    for (int i = 0; i < roots.size(); i++) {
+      rootFingerprints[i] = fingerprints.get(roots.get(i).getSpanId());
+    }
+    return combine(ROOT, rootFingerprints);
+  }
+
+  private static long combine(final String hash, final long[] children) {
+    // Sibling calls are unordered
+    Arrays.sort(children);
+    final byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer buffer = ByteBuffer.allocate(hashBytes.length + children.length * Long.BYTES);
+    buffer.put(hashBytes);
+    for (final long child : children) {
+      buffer.putLong(child);
+    }
+    return ByteBuffer.wrap(MurmurHash3.hash128(buffer.array())).getLong();
+  }
+
+}
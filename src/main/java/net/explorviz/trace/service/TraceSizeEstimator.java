@@ -0,0 +1,75 @@
+package net.explorviz.trace.service;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+
+/**
+ * Estimates the heap bytes of spans and traces, i.e., their strings, object headers and the list
+ * nodes holding them. Only meant to bound and compare sizes, not as an exact measure.
+ */
+public final class TraceSizeEstimator {
+
+  // Header and fields of an Avro span and the linked list node referencing it
+  private static final long SPAN_OVERHEAD = 112;
+  // Header and fields of an Avro trace and its span list
+  private static final long TRACE_OVERHEAD = 96;
+  // Header, fields, and array header of a string
+  private static final long STRING_OVERHEAD = 40;
+  // Header and fields of a byte buffer and its array
+  private static final long BUFFER_OVERHEAD = 64;
+
+  private TraceSizeEstimator() {
+    // Utility class
+  }
+
+  /**
+   * Estimates the bytes of a span.
+   *
+   * @param span the span
+   * @return the estimated bytes
+   */
+  public static long estimate(final Span span) {
+    long bytes = SPAN_OVERHEAD;
+    bytes += estimate(span.getLandscapeToken());
+    bytes += estimate(span.getSpanId());
+    bytes += estimate(span.getParentSpanId());
+    bytes += estimate(span.getTraceId());
+    bytes += estimate(span.getFullyQualifiedOperationName());
+    bytes += estimate(span.getHostname());
+    bytes += estimate(span.getHostIpAddress());
+    bytes += estimate(span.getAppName());
+    bytes += estimate(span.getAppInstanceId());
+    bytes += estimate(span.getAppLanguage());
+    bytes += estimate(span.getHashCode());
+    final ByteBuffer binary = span.getHashCodeBinary();
+    if (binary != null) {
+      bytes += BUFFER_OVERHEAD + binary.capacity();
+    }
+    return bytes;
+  }
+
+  /**
+   * Estimates the bytes of a trace including all its spans.
+   *
+   * @param trace the trace
+   * @return the estimated bytes
+   */
+  public static long estimate(final Trace trace) {
+    long bytes = TRACE_OVERHEAD + estimate(trace.getLandscapeToken())
+        + estimate(trace.getTraceId());
+    final List<Span> spans = trace.getSpanList();
+    if (spans != null) {
+      for (final Span span : spans) {
+        bytes += estimate(span);
+      }
+    }
+    return bytes;
+  }
+
+  private static long estimate(final CharSequence value) {
+    return value == null ? 0L : STRING_OVERHEAD + value.length();
+  }
+
+}
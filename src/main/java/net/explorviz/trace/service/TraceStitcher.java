@@ -0,0 +1,66 @@
+package net.explorviz.trace.service;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+
+/**
+ * Merges spans that arrived after the window of their trace was closed into the fragments of the
+ * trace that were already emitted, e.g., one per window the trace spans.
+ *
+ * <p>Fragments may represent further traces, i.e., if they were merged with identical traces
+ * (see {@link TraceDeduplicator}) or kept for dropped traces by tail-based sampling. The merged
+ * trace keeps the counts and durations of the fragment that represents the most traces. These
+ * still describe the represented traces, even though the late spans were only part of this one.
+ */
+public final class TraceStitcher {
+
+  private TraceStitcher() {
+    // Utility class
+  }
+
+  /**
+   * Merges the fragments of a trace and late spans into a single trace. Start time, end time, and
+   * duration are recomputed, and spans that occur multiple times (by span id) are only kept once.
+   * Trace and request counts as well as the durations of represented traces are carried over from
+   * the fragment with the highest trace count.
+   *
+   * @param fragments the already emitted fragments of the trace
+   * @param lateSpans the late spans of the trace
+   * @return the merged trace, with the spans of the fragments in front of the late spans
+   */
+  public static Trace stitch(final List<Trace> fragments, final List<Span> lateSpans) {
+    final TraceAggregator aggregator = new TraceAggregator();
+    final Set<String> spanIds = new HashSet<>();
+    final Trace merged = new Trace();
+    Trace representative = null;
+
+    for (final Trace fragment : fragments) {
+      if (representative == null || fragment.getTraceCount() > representative.getTraceCount()) {
+        representative = fragment;
+      }
+      for (final Span span : fragment.getSpanList()) {
+        if (spanIds.add(span.getSpanId())) {
+          aggregator.aggregate(merged, span);
+        }
+      }
+    }
+    for (final Span span : lateSpans) {
+      if (spanIds.add(span.getSpanId())) {
+        aggregator.aggregate(merged, span);
+      }
+    }
+
+    if (representative != null) {
+      merged.setTraceCount(representative.getTraceCount());
+      merged.setOverallRequestCount(representative.getOverallRequestCount());
+      merged.setMinDuration(representative.getMinDuration());
+      merged.setAvgDuration(representative.getAvgDuration());
+      merged.setMaxDuration(representative.getMaxDuration());
+    }
+    return merged;
+  }
+
+}
@@ -5,6 +5,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.enterprise.context.ApplicationScoped;
+import net.explorviz.trace.service.HashHelper;
 
 /**
  * {@link SpanReducer} implementation that reduces spans of a {@link CallTree}.
@@ -102,8 +103,8 @@ public class SimpleLoopReducer implements SpanReducer {
           // Check if both paths are equal w.r.t. the hash codes of referenced methods
           boolean isEqualPath = true;
           for (int k = 0; k < uToLca.size() && isEqualPath; k++) {
-            isEqualPath = vToLca.get(k).getSpanDynamic().getHashCode()
-                .equals(uToLca.get(k).getSpanDynamic().getHashCode());
+            isEqualPath = HashHelper.sameHash(vToLca.get(k).getSpanDynamic(),
+                uToLca.get(k).getSpanDynamic());
           }
 
           // v can be reduced
@@ -0,0 +1,57 @@
+package net.explorviz.trace.service.reduction;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import net.explorviz.avro.Trace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the {@link DepthReducer} and the {@link SimpleLoopReducer} to a trace. The trace,
+ * request, and dropped span counts are kept. Traces that can not be converted to a
+ * {@link CallTree} are returned unchanged.
+ */
+@ApplicationScoped
+public class TraceReduction {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TraceReduction.class);
+
+  @Inject
+  /* default */ DepthReducer depthReducer;
+  @Inject
+  /* default */ SimpleLoopReducer loopReducer;
+
+  /**
+   * Reduces the spans of a trace.
+   *
+   * @param trace the trace to reduce
+   * @return the reduced trace, or the given trace if it is not a valid call tree
+   */
+  public Trace reduce(final Trace trace) {
+    final int tracesOriginal = trace.getSpanList().size();
+    try {
+      final CallTree tree = CallTreeConverter.toTree(trace);
+      CallTree reduced = this.depthReducer.reduce(tree);
+      reduced = this.loopReducer.reduce(reduced);
+      final Trace reducedTrace = CallTreeConverter.toTrace(reduced);
+      // Counts of sampled or merged traces
+      reducedTrace.setTraceCount(trace.getTraceCount());
+      reducedTrace.setOverallRequestCount(trace.getOverallRequestCount());
+      reducedTrace.setDroppedSpanCount(trace.getDroppedSpanCount());
+      reducedTrace.setMinDuration(trace.getMinDuration());
+      reducedTrace.setAvgDuration(trace.getAvgDuration());
+      reducedTrace.setMaxDuration(trace.getMaxDuration());
+      if (LOGGER.isTraceEnabled()) {
+        LOGGER.trace("Reduced trace with {} original spans to {} spans.", tracesOriginal,
+            reducedTrace.getSpanList().size());
+      }
+      return reducedTrace;
+    } catch (final IllegalArgumentException e) {
+      if (LOGGER.isWarnEnabled()) {
+        LOGGER.warn("Could not perform reduction: {}", e.getMessage());
+      }
+      return trace;
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+package net.explorviz.trace.kafka;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AdaptiveWindowPolicyTest {
+
+  private static final long SIZE = 10_000;
+  private static final long GRACE = 2000;
+  private static final long MIN_SIZE = 1000;
+  private static final long MAX_SIZE = 60_000;
+  private static final long MIN_GRACE = 500;
+  private static final long MAX_GRACE = 10_000;
+  private static final int SAMPLES = 100;
+
+  private AdaptiveWindowPolicy policy;
+
+  @BeforeEach
+  void setUp() {
+    this.policy =
+        new AdaptiveWindowPolicy(SIZE, GRACE, MIN_SIZE, MAX_SIZE, MIN_GRACE, MAX_GRACE, 0.99);
+  }
+
+  @Test
+  void usesDefaultsWithoutSamples() {
+    for (int i = 0; i < SAMPLES - 1; i++) {
+      this.policy.recordDuration("a", 5);
+    }
+    Assertions.assertEquals(SIZE, this.policy.windowSize("a"));
+    Assertions.assertEquals(GRACE, this.policy.grace("a"));
+    Assertions.assertEquals(SIZE, this.policy.windowSize("unknown"));
+  }
+
+  @Test
+  void shrinksWindowOfFastLandscape() {
+    for (int i = 0; i < SAMPLES; i++) {
+      this.policy.recordDuration("fast", 5);
+      this.policy.recordDelay("fast", 300);
+    }
+    Assertions.assertEquals(MIN_SIZE, this.policy.windowSize("fast"));
+    // Upper bound of the histogram bucket of 300 ms
+    Assertions.assertEquals(511, this.policy.grace("fast"));
+    Assertions.assertEquals(SIZE, this.policy.windowSize("other"));
+  }
+
+  @Test
+  void growsWindowOfSlowLandscapeUpToLimit() {
+    for (int i = 0; i < SAMPLES; i++) {
+      this.policy.recordDuration("slow", 20_000);
+      this.policy.recordDelay("slow", 60_000);
+    }
+    Assertions.assertEquals(MAX_SIZE, this.policy.windowSize("slow"));
+    Assertions.assertEquals(MAX_GRACE, this.policy.grace("slow"));
+  }
+
+  @Test
+  void fixedPolicyIgnoresSamples() {
+    final AdaptiveWindowPolicy fixed = AdaptiveWindowPolicy.fixed(SIZE, GRACE);
+    for (int i = 0; i < SAMPLES; i++) {
+      fixed.recordDuration("a", 5);
+      fixed.recordDelay("a", 5);
+    }
+    Assertions.assertEquals(SIZE, fixed.windowSize("a"));
+    Assertions.assertEquals(GRACE, fixed.grace("a"));
+  }
+
+}
@@ -0,0 +1,61 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.Map;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.Cache;
+import org.rocksdb.CompressionType;
+import org.rocksdb.Options;
+
+class BoundedMemoryRocksDbConfigTest {
+
+  @Test
+  void appliesSharedCacheAndCompression() {
+    final Map<String, Object> configs = Map.of(BoundedMemoryRocksDbConfig.CACHE_BYTES_CONFIG,
+        "1048576", BoundedMemoryRocksDbConfig.COMPRESSION_CONFIG, "snappy");
+
+    final BoundedMemoryRocksDbConfig first = new BoundedMemoryRocksDbConfig();
+    final BoundedMemoryRocksDbConfig second = new BoundedMemoryRocksDbConfig();
+    try (Options firstOptions = new Options(); Options secondOptions = new Options()) {
+      first.setConfig("a", firstOptions, configs);
+      final Cache cache = BoundedMemoryRocksDbConfig.sharedCache();
+      second.setConfig("b", secondOptions, configs);
+
+      // Created once and shared by all stores
+      Assertions.assertNotNull(cache);
+      Assertions.assertSame(cache, BoundedMemoryRocksDbConfig.sharedCache());
+      Assertions.assertNotNull(firstOptions.writeBufferManager());
+      Assertions.assertSame(BoundedMemoryRocksDbConfig.sharedWriteBufferManager(),
+          firstOptions.writeBufferManager());
+      Assertions.assertSame(firstOptions.writeBufferManager(),
+          secondOptions.writeBufferManager());
+
+      Assertions.assertEquals(CompressionType.SNAPPY_COMPRESSION, firstOptions.compressionType());
+      Assertions.assertEquals(CompressionType.ZSTD_COMPRESSION,
+          firstOptions.bottommostCompressionType());
+      Assertions.assertTrue(
+          ((BlockBasedTableConfig) firstOptions.tableFormatConfig()).cacheIndexAndFilterBlocks());
+      Assertions.assertNotNull(firstOptions.statistics());
+
+      first.close("a", firstOptions);
+      second.close("b", secondOptions);
+    }
+  }
+
+  @Test
+  void registersStatistics() {
+    final MeterRegistry registry = new SimpleMeterRegistry();
+    RocksDbStatistics.bindTo(registry);
+
+    for (final String name : new String[] {"explorviz.trace.rocksdb.stall",
+        "explorviz.trace.rocksdb.compaction.read", "explorviz.trace.rocksdb.compaction.written",
+        "explorviz.trace.rocksdb.flush.written", "explorviz.trace.rocksdb.block-cache.hits",
+        "explorviz.trace.rocksdb.block-cache.misses"}) {
+      Assertions.assertNotNull(registry.find(name).functionCounter(), name);
+    }
+  }
+
+}
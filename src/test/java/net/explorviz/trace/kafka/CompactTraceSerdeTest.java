@@ -0,0 +1,128 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.service.TraceAggregate;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class CompactTraceSerdeTest {
+
+  private final CompactTraceSerde serde = new CompactTraceSerde();
+
+  private Trace roundTrip(final Trace trace) {
+    final byte[] bytes = this.serde.serializer().serialize("topic", trace);
+    return this.serde.deserializer().deserialize("topic", bytes);
+  }
+
+  @Test
+  void roundTrip() {
+    final Trace trace = TraceHelper.linearTrace(50);
+    Assertions.assertEquals(trace, this.roundTrip(trace));
+  }
+
+  @Test
+  void roundTripNullAndBinary() {
+    final Trace trace = TraceHelper.randomTrace(3);
+    trace.getSpanList().get(0).setHashCodeBinary(ByteBuffer.wrap(new byte[] {1, -2, 3}));
+    trace.getSpanList().get(1).setHostname(null);
+    // Span that starts before the trace
+    trace.getSpanList().get(2).setStartTimeEpochMilli(trace.getStartTimeEpochMilli() - 1000);
+
+    Assertions.assertEquals(trace, this.roundTrip(trace));
+    Assertions.assertNull(this.serde.serializer().serialize("topic", null));
+    Assertions.assertNull(this.serde.deserializer().deserialize("topic", null));
+  }
+
+  @Test
+  void roundTripDroppedSpans() {
+    final Trace trace = TraceHelper.randomTrace(3);
+    trace.setDroppedSpanCount(42);
+    Assertions.assertEquals(trace, this.roundTrip(trace));
+  }
+
+  @Test
+  void roundTripAggregate() {
+    final TraceAggregateSerde aggregateSerde = new TraceAggregateSerde(this.serde);
+    final Trace trace = TraceHelper.randomTrace(3);
+    final TraceAggregate aggregate = aggregateSerde.deserializer().deserialize("t",
+        aggregateSerde.serializer().serialize("t", new TraceAggregate(trace, 1234L)));
+    Assertions.assertEquals(trace, aggregate.getTrace());
+    Assertions.assertEquals(1234L, aggregate.getEstimatedBytes());
+  }
+
+  @Test
+  void roundTripSpan() {
+    final CompactSpanSerde spanSerde = new CompactSpanSerde();
+    final Span span = TraceHelper.randomSpan();
+    Assertions.assertEquals(span,
+        spanSerde.deserializer().deserialize("t", spanSerde.serializer().serialize("t", span)));
+  }
+
+  @Test
+  void smallerThanAvro() throws IOException {
+    // Many spans of the same landscape, host and app, calling a few methods
+    final Trace trace = TraceHelper.uniformLoop(100, 5);
+    for (final Span span : trace.getSpanList()) {
+      span.setHostname("host");
+      span.setHostIpAddress("10.0.0.1");
+      span.setAppName("app");
+      span.setAppInstanceId("1");
+      span.setAppLanguage("java");
+    }
+
+    final int avroSize = trace.toByteBuffer().remaining();
+    final int compactSize = CompactTraceSerde.encode(trace).length;
+    Assertions.assertTrue(compactSize < avroSize / 2,
+        "Compact: " + compactSize + " bytes, Avro: " + avroSize + " bytes");
+  }
+
+  @Test
+  void smallerThanAvroSerde() {
+    // The serde used for internal topics and stores unless the compact encoding is configured
+    final SpecificAvroSerde<Trace> avroSerde =
+        new SpecificAvroSerde<>(new MockSchemaRegistryClient());
+    avroSerde.configure(
+        Map.of(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234"),
+        false);
+
+    for (final int spans : new int[] {1, 10, 100, 1000}) {
+      final Trace trace = TraceHelper.randomTrace(spans);
+      final int avroSize = avroSerde.serializer().serialize("topic", trace).length;
+      final int compactSize = this.serde.serializer().serialize("topic", trace).length;
+      Assertions.assertTrue(compactSize < avroSize,
+          spans + " spans, compact: " + compactSize + " bytes, Avro: " + avroSize + " bytes");
+    }
+  }
+
+  @Test
+  void rejectsCorruptRecords() {
+    final byte[] encoded = CompactTraceSerde.encode(TraceHelper.linearTrace(5));
+    final byte[] truncated = Arrays.copyOf(encoded, encoded.length / 2);
+    // Version, reference to the (empty) dictionary
+    final byte[] unknownReference = {1, 10};
+    // Version, new string of about 1 GB
+    final byte[] hugeLength = {1, 2, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08};
+    // Version, varint that never ends
+    final byte[] endlessVarint = new byte[16];
+    Arrays.fill(endlessVarint, (byte) 0xff);
+    endlessVarint[0] = 1;
+
+    for (final byte[] corrupt : List.of(truncated, unknownReference, hugeLength,
+        endlessVarint)) {
+      Assertions.assertThrows(SerializationException.class,
+          () -> this.serde.deserializer().deserialize("topic", corrupt));
+    }
+  }
+
+}
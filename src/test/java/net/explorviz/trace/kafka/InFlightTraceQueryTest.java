@@ -0,0 +1,139 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.service.TraceAggregate;
+import net.explorviz.trace.service.TraceAggregator;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.utils.Bytes;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Grouped;
+import org.apache.kafka.streams.kstream.Materialized;
+import org.apache.kafka.streams.kstream.TimeWindows;
+import org.apache.kafka.streams.state.ReadOnlyWindowStore;
+import org.apache.kafka.streams.state.WindowStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class InFlightTraceQueryTest {
+
+  private static final long WINDOW = 10_000;
+  private static final long GRACE = 2000;
+
+  private TopologyTestDriver testDriver;
+  private TestInputTopic<String, Span> inputTopic;
+
+  @BeforeEach
+  void setUp() {
+    final SpecificAvroSerde<Span> spanSerde =
+        new SpecificAvroSerde<>(new MockSchemaRegistryClient());
+    spanSerde.configure(
+        Map.of(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234"),
+        false);
+
+    final TraceAggregator aggregator = new TraceAggregator();
+    final StreamsBuilder builder = new StreamsBuilder();
+    builder.stream("in", Consumed.with(Serdes.String(), spanSerde))
+        .groupByKey(Grouped.with(Serdes.String(), spanSerde))
+        .windowedBy(TimeWindows.ofSizeAndGrace(Duration.ofMillis(WINDOW),
+            Duration.ofMillis(GRACE)))
+        .aggregate(TraceAggregate::new,
+            (key, span, aggregate) -> aggregator.aggregate(aggregate, span),
+            Materialized.<String, TraceAggregate, WindowStore<Bytes, byte[]>>as(
+                    InFlightTraceQuery.AGGREGATE_STORE).withKeySerde(Serdes.String())
+                .withValueSerde(new TraceAggregateSerde(new CompactTraceSerde())));
+
+    final Properties config = new Properties();
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "test");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:1234");
+
+    this.testDriver = new TopologyTestDriver(builder.build(), config);
+    this.inputTopic = this.testDriver.createInputTopic("in", Serdes.String().serializer(),
+        spanSerde.serializer());
+  }
+
+  @AfterEach
+  void afterEach() {
+    this.testDriver.close();
+  }
+
+  @Test
+  void findsTracesOfLandscapeInOpenWindows() {
+    this.inputTopic.pipeInput("a::1", TraceHelper.randomSpan("1", "a"), 1);
+    this.inputTopic.pipeInput("a::1", TraceHelper.randomSpan("1", "a"), 2);
+    this.inputTopic.pipeInput("b::2", TraceHelper.randomSpan("2", "b"), 3);
+    // Token that starts with another token
+    this.inputTopic.pipeInput("ab::3", TraceHelper.randomSpan("3", "ab"), 4);
+    this.inputTopic.pipeInput("a::1", TraceHelper.randomSpan("1", "a"), WINDOW + 1);
+
+    final ReadOnlyWindowStore<String, TraceAggregate> store =
+        this.testDriver.getWindowStore(InFlightTraceQuery.AGGREGATE_STORE);
+
+    Assertions.assertEquals(2,
+        InFlightTraceQuery.ofLandscape(store, "a", Instant.ofEpochMilli(0), false).size());
+    Assertions.assertEquals(1,
+        InFlightTraceQuery.ofLandscape(store, "b", Instant.ofEpochMilli(0), false).size());
+    Assertions.assertEquals(1,
+        InFlightTraceQuery.ofLandscape(store, "ab", Instant.ofEpochMilli(0), false).size());
+
+    // Windows that started before are skipped
+    final List<Trace> open =
+        InFlightTraceQuery.ofLandscape(store, "a", Instant.ofEpochMilli(1), false);
+    Assertions.assertEquals(1, open.size());
+    Assertions.assertEquals(1, open.get(0).getSpanList().size());
+  }
+
+  @Test
+  void findsTracesOfLandscapeKeyedByTraceId() {
+    this.inputTopic.pipeInput("1", TraceHelper.randomSpan("1", "a"), 1);
+    this.inputTopic.pipeInput("2", TraceHelper.randomSpan("2", "b"), 2);
+    this.inputTopic.pipeInput("3", TraceHelper.randomSpan("3", "a"), 3);
+
+    final ReadOnlyWindowStore<String, TraceAggregate> store =
+        this.testDriver.getWindowStore(InFlightTraceQuery.AGGREGATE_STORE);
+
+    // The keys do not contain the token, hence all aggregates are scanned
+    Assertions.assertEquals(2,
+        InFlightTraceQuery.ofLandscape(store, "a", Instant.ofEpochMilli(0), true).size());
+    Assertions.assertTrue(
+        InFlightTraceQuery.ofLandscape(store, "a", Instant.ofEpochMilli(0), false).isEmpty());
+  }
+
+  @Test
+  void findsFragmentsOfTrace() {
+    this.inputTopic.pipeInput("a::1", TraceHelper.randomSpan("1", "a"), 1);
+    this.inputTopic.pipeInput("a::1", TraceHelper.randomSpan("1", "a"), 2);
+    this.inputTopic.pipeInput("a::1", TraceHelper.randomSpan("1", "a"), WINDOW + 1);
+
+    final ReadOnlyWindowStore<String, TraceAggregate> store =
+        this.testDriver.getWindowStore(InFlightTraceQuery.AGGREGATE_STORE);
+
+    final List<Trace> fragments =
+        InFlightTraceQuery.ofTrace(store, "a::1", "a", Instant.ofEpochMilli(0));
+    Assertions.assertEquals(2, fragments.size());
+    Assertions.assertEquals(2, fragments.get(0).getSpanList().size());
+    Assertions.assertEquals(1, fragments.get(1).getSpanList().size());
+
+    // The token must match, e.g., if keyed by trace id only
+    Assertions.assertTrue(
+        InFlightTraceQuery.ofTrace(store, "a::1", "b", Instant.ofEpochMilli(0)).isEmpty());
+    Assertions.assertTrue(
+        InFlightTraceQuery.ofTrace(store, "a::2", "a", Instant.ofEpochMilli(0)).isEmpty());
+  }
+
+}
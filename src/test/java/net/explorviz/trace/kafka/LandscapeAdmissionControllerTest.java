@@ -0,0 +1,97 @@
+package net.explorviz.trace.kafka;
+
+import net.explorviz.trace.kafka.LandscapeAdmissionController.Decision;
+import net.explorviz.trace.kafka.LandscapeAdmissionController.SheddingPolicy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class LandscapeAdmissionControllerTest {
+
+  private static final long TIMEOUT = 10_000;
+
+  @Test
+  void limitsRatePerLandscape() {
+    final LandscapeAdmissionController controller =
+        new LandscapeAdmissionController(1000, 10, 100, TIMEOUT, SheddingPolicy.DROP_NEWEST, 0);
+
+    for (int i = 0; i < 10; i++) {
+      Assertions.assertEquals(Decision.ACCEPTED, controller.admit("noisy", "t" + i, 0));
+    }
+    Assertions.assertEquals(Decision.RATE_LIMITED, controller.admit("noisy", "new", 0));
+    // Other landscapes are not affected
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("quiet", "t", 0));
+    // One span per ms is refilled
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("noisy", "new", 1));
+    Assertions.assertEquals(Decision.RATE_LIMITED, controller.admit("noisy", "other", 1));
+  }
+
+  @Test
+  void admitsSpansOfOpenTracesBeyondRate() {
+    final LandscapeAdmissionController controller =
+        new LandscapeAdmissionController(1000, 2, 100, TIMEOUT, SheddingPolicy.DROP_NEWEST, 0);
+
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("l", "open", 0));
+    // The bucket is exhausted, but the trace stays complete
+    for (int i = 0; i < 5; i++) {
+      Assertions.assertEquals(Decision.ACCEPTED, controller.admit("l", "open", 0));
+    }
+    Assertions.assertEquals(Decision.RATE_LIMITED, controller.admit("l", "new", 0));
+
+    // The spans of the open trace were charged, i.e., a debt of one burst is paid back first
+    Assertions.assertEquals(Decision.RATE_LIMITED, controller.admit("l", "new", 2));
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("l", "new", 3));
+  }
+
+  @Test
+  void forgetsIdleLandscapes() {
+    final LandscapeAdmissionController controller =
+        new LandscapeAdmissionController(1000, 10, 100, TIMEOUT, SheddingPolicy.DROP_NEWEST, 0);
+
+    controller.admit("a", "t", 0);
+    controller.admit("b", "t", TIMEOUT);
+    Assertions.assertEquals(2, controller.landscapeCount());
+
+    // a has no open traces and a full bucket
+    controller.admit("b", "t", TIMEOUT + 100);
+    Assertions.assertEquals(1, controller.landscapeCount());
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("a", "t", TIMEOUT + 100));
+  }
+
+  @Test
+  void limitsOpenTraces() {
+    final LandscapeAdmissionController controller =
+        new LandscapeAdmissionController(1000, 100, 2, TIMEOUT, SheddingPolicy.DROP_NEWEST, 0);
+
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("l", "a", 0));
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("l", "b", 0));
+    Assertions.assertEquals(Decision.TRACE_LIMITED, controller.admit("l", "c", 0));
+    // Open traces continue
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("l", "a", 5000));
+    // b times out, a is still open
+    Assertions.assertEquals(Decision.ACCEPTED, controller.admit("l", "c", TIMEOUT + 1));
+    Assertions.assertEquals(Decision.TRACE_LIMITED, controller.admit("l", "d", TIMEOUT + 1));
+  }
+
+  @Test
+  void samplesTracesBeyondLimits() {
+    final LandscapeAdmissionController all =
+        new LandscapeAdmissionController(1000, 1, 100, TIMEOUT, SheddingPolicy.SAMPLE, 1.0);
+    all.admit("l", "a", 0);
+    Assertions.assertEquals(Decision.SAMPLED, all.admit("l", "b", 0));
+
+    final LandscapeAdmissionController none =
+        new LandscapeAdmissionController(1000, 1, 100, TIMEOUT, SheddingPolicy.SAMPLE, 0.0);
+    none.admit("l", "a", 0);
+    Assertions.assertEquals(Decision.RATE_LIMITED, none.admit("l", "b", 0));
+  }
+
+  @Test
+  void resolvesPolicyByConfigName() {
+    Assertions.assertEquals(SheddingPolicy.DROP_NEWEST,
+        SheddingPolicy.fromConfigName("drop-newest"));
+    Assertions.assertEquals(SheddingPolicy.SAMPLE, SheddingPolicy.fromConfigName("sample"));
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> SheddingPolicy.fromConfigName("unknown"));
+  }
+
+}
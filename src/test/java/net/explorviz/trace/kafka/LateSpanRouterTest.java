@@ -0,0 +1,79 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import net.explorviz.avro.Span;
+import net.explorviz.trace.helper.TraceHelper;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Produced;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LateSpanRouterTest {
+
+  private static final long WINDOW = 10_000;
+  private static final long GRACE = 2000;
+
+  private TopologyTestDriver testDriver;
+  private TestInputTopic<String, Span> inputTopic;
+  private TestOutputTopic<String, Boolean> outputTopic;
+
+  @BeforeEach
+  void setUp() {
+    final SchemaRegistryClient registry = new MockSchemaRegistryClient();
+    final SpecificAvroSerde<Span> spanSerde = new SpecificAvroSerde<>(registry);
+    spanSerde.configure(
+        Map.of(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234"),
+        false);
+
+    final StreamsBuilder builder = new StreamsBuilder();
+    builder.stream("in", Consumed.with(Serdes.String(), new LazySpanSerde(spanSerde, registry)))
+        .processValues(() -> new LateSpanRouter(AdaptiveWindowPolicy.fixed(WINDOW, GRACE),
+            IdleAdvancement.DISABLED))
+        .mapValues(LazySpan::isLate)
+        .to("out", Produced.with(Serdes.String(), Serdes.Boolean()));
+
+    final Properties config = new Properties();
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "test");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:1234");
+
+    this.testDriver = new TopologyTestDriver(builder.build(), config);
+    this.inputTopic = this.testDriver.createInputTopic("in", Serdes.String().serializer(),
+        spanSerde.serializer());
+    this.outputTopic = this.testDriver.createOutputTopic("out", Serdes.String().deserializer(),
+        Serdes.Boolean().deserializer());
+  }
+
+  @AfterEach
+  void afterEach() {
+    this.testDriver.close();
+  }
+
+  @Test
+  void marksSpansOfClosedWindows() {
+    this.inputTopic.pipeInput("a", TraceHelper.randomSpan(), 1);
+    this.inputTopic.pipeInput("b", TraceHelper.randomSpan(), WINDOW + GRACE - 1);
+    // Within grace
+    this.inputTopic.pipeInput("a", TraceHelper.randomSpan(), 2);
+    this.inputTopic.pipeInput("b", TraceHelper.randomSpan(), WINDOW + GRACE);
+    // Window of "a" is closed
+    this.inputTopic.pipeInput("a", TraceHelper.randomSpan(), 3);
+
+    Assertions.assertEquals(List.of(false, false, false, false, true),
+        this.outputTopic.readValuesToList());
+  }
+
+}
@@ -0,0 +1,112 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
+import io.confluent.kafka.serializers.KafkaAvroSerializer;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.avro.Span;
+import net.explorviz.trace.helper.TraceHelper;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class LazySpanSerdeTest {
+
+  private static final String TOPIC = "spans";
+
+  private static final Map<String, String> CONFIG =
+      Map.of(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234");
+
+  private SchemaRegistryClient registry;
+  private SpecificAvroSerde<Span> avroSerde;
+  private LazySpanSerde lazySerde;
+
+  @BeforeEach
+  void setUp() {
+    this.registry = new MockSchemaRegistryClient();
+    this.avroSerde = new SpecificAvroSerde<>(this.registry);
+    this.avroSerde.configure(CONFIG, false);
+    this.lazySerde = new LazySpanSerde(this.avroSerde, this.registry);
+  }
+
+  @Test
+  void decodesKeyFieldsOnly() {
+    final Span span = TraceHelper.randomSpan();
+    final byte[] data = this.avroSerde.serializer().serialize(TOPIC, span);
+
+    final LazySpan lazy = this.lazySerde.deserializer().deserialize(TOPIC, data);
+
+    Assertions.assertEquals(span.getLandscapeToken(), lazy.getLandscapeToken());
+    Assertions.assertEquals(span.getTraceId(), lazy.getTraceId());
+    Assertions.assertEquals(span.getStartTimeEpochMilli(), lazy.getStartTimeEpochMilli());
+    Assertions.assertFalse(lazy.isDecoded());
+
+    // Passed through without decoding
+    Assertions.assertSame(data, this.lazySerde.serializer().serialize(TOPIC, lazy));
+    Assertions.assertFalse(lazy.isDecoded());
+
+    Assertions.assertEquals(span, lazy.span());
+    Assertions.assertTrue(lazy.isDecoded());
+  }
+
+  @Test
+  void serializesModifiedSpan() {
+    final Span span = TraceHelper.randomSpan();
+    final LazySpan lazy = this.lazySerde.deserializer()
+        .deserialize(TOPIC, this.avroSerde.serializer().serialize(TOPIC, span));
+
+    lazy.span().setHashCode("modified");
+    final byte[] data = this.lazySerde.serializer().serialize(TOPIC, lazy);
+
+    Assertions.assertEquals("modified",
+        this.avroSerde.deserializer().deserialize(TOPIC, data).getHashCode());
+  }
+
+  @Test
+  void decodesOtherWriterSchemaCompletely() {
+    // Writer schema with the trace id moved to the front
+    final List<Schema.Field> fields = new ArrayList<>();
+    for (final Schema.Field field : Span.SCHEMA$.getFields()) {
+      final Schema.Field copy = new Schema.Field(field, field.schema());
+      if ("traceId".equals(field.name())) {
+        fields.add(0, copy);
+      } else {
+        fields.add(copy);
+      }
+    }
+    final Schema writerSchema = Schema.createRecord(Span.SCHEMA$.getName(), null,
+        Span.SCHEMA$.getNamespace(), false, fields);
+
+    final Span span = TraceHelper.randomSpan();
+    final GenericRecord record = new GenericData.Record(writerSchema);
+    for (final Schema.Field field : Span.SCHEMA$.getFields()) {
+      record.put(field.name(), span.get(field.pos()));
+    }
+
+    try (KafkaAvroSerializer serializer = new KafkaAvroSerializer(this.registry)) {
+      serializer.configure(CONFIG, false);
+      final LazySpan lazy =
+          this.lazySerde.deserializer().deserialize(TOPIC, serializer.serialize(TOPIC, record));
+
+      Assertions.assertTrue(lazy.isDecoded());
+      Assertions.assertEquals(span.getLandscapeToken(), lazy.getLandscapeToken());
+      Assertions.assertEquals(span.getTraceId(), lazy.getTraceId());
+      Assertions.assertEquals(span.getStartTimeEpochMilli(), lazy.getStartTimeEpochMilli());
+      Assertions.assertEquals(span, lazy.span());
+    }
+  }
+
+  @Test
+  void handlesNull() {
+    Assertions.assertNull(this.lazySerde.deserializer().deserialize(TOPIC, null));
+    Assertions.assertNull(this.lazySerde.serializer().serialize(TOPIC, null));
+  }
+
+}
@@ -5,11 +5,14 @@ import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
 import io.quarkus.arc.profile.IfBuildProfile;
 import javax.enterprise.context.Dependent;
 import javax.enterprise.inject.Produces;
+import javax.inject.Singleton;
 
 @Dependent
 public class MockSchemaRegistryClientProducer {
 
+  // Shared by the serdes and the topology, as the ids of a mock registry are not global
   @Produces
+  @Singleton
   @IfBuildProfile("test")
   public SchemaRegistryClient produceMockSchemaRegistry() {
     return new MockSchemaRegistryClient();
@@ -0,0 +1,59 @@
+package net.explorviz.trace.kafka;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
+import org.apache.kafka.streams.kstream.ValueMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class StageMetricsTest {
+
+  @Test
+  void measuresTimedAndCountedStages() {
+    final MeterRegistry registry = new SimpleMeterRegistry();
+    final StageMetrics metrics = new StageMetrics(registry, true);
+    final ValueMapper<String, Integer> length =
+        metrics.timed(BenchmarkStage.REDUCTION, String::length);
+
+    Assertions.assertEquals(3, length.apply("abc"));
+    Assertions.assertEquals(1, length.apply("a"));
+    metrics.count(BenchmarkStage.SUPPRESSION);
+
+    Assertions.assertEquals(2, registry.get("explorviz.trace.stage.latency")
+        .tag("stage", "reduction").timer().count());
+    Assertions.assertEquals(1.0, registry.get("explorviz.trace.stage.records")
+        .tag("stage", "suppression").counter().count());
+
+    final List<String> report = metrics.report();
+    Assertions.assertEquals(2, report.size());
+    Assertions.assertTrue(report.get(0).startsWith("Stage suppression: "));
+    Assertions.assertTrue(report.get(1).startsWith("Stage reduction: "));
+    Assertions.assertTrue(report.get(1).contains("p99"));
+
+    // Reported per interval
+    Assertions.assertTrue(metrics.report().isEmpty());
+  }
+
+  @Test
+  void passesThroughIfDisabled() {
+    final MeterRegistry registry = new SimpleMeterRegistry();
+    final StageMetrics metrics = new StageMetrics(registry, false);
+    final ValueMapper<String, Integer> length = String::length;
+
+    Assertions.assertSame(length, metrics.timed(BenchmarkStage.REDUCTION, length));
+    metrics.count(BenchmarkStage.SUPPRESSION);
+    Assertions.assertTrue(registry.getMeters().isEmpty());
+    Assertions.assertTrue(metrics.report().isEmpty());
+  }
+
+  @Test
+  void resolvesStagesByConfigName() {
+    Assertions.assertEquals(BenchmarkStage.PERSISTENCE_STUB,
+        BenchmarkStage.fromConfigName("persistence-stub"));
+    Assertions.assertFalse(BenchmarkStage.fromConfigName("none").isBenchmark());
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> BenchmarkStage.fromConfigName("cassandra"));
+  }
+
+}
@@ -0,0 +1,189 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.service.AggregateMemory;
+import net.explorviz.trace.service.TraceSizeEstimator;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.kstream.Windowed;
+import org.apache.kafka.streams.kstream.WindowedSerdes;
+import org.apache.kafka.streams.kstream.internals.TimeWindow;
+import org.apache.kafka.streams.processor.api.ProcessorSupplier;
+import org.apache.kafka.streams.state.Stores;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SuppressionBufferProcessorTest {
+
+  private static final long WINDOW = 10_000;
+  private static final long GRACE = 2000;
+  // Small enough to force spilling of all but one trace
+  private static final long MEMORY_BYTES = 64;
+  private static final long IDLE_TIMEOUT = 1000;
+
+  private TopologyTestDriver testDriver;
+  private MeterRegistry registry;
+  private AggregateMemory memory;
+  private TestInputTopic<Windowed<String>, Trace> inputTopic;
+  private TestOutputTopic<String, Trace> outputTopic;
+
+  @BeforeEach
+  void setUp() {
+    this.createDriver(IdleAdvancement.DISABLED);
+  }
+
+  private void createDriver(final IdleAdvancement idleAdvancement) {
+    final SpecificAvroSerde<Trace> traceSerde =
+        new SpecificAvroSerde<>(new MockSchemaRegistryClient());
+    traceSerde.configure(
+        Map.of(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234"),
+        false);
+    final Serde<Windowed<String>> windowedSerde =
+        WindowedSerdes.timeWindowedSerdeFrom(String.class, WINDOW);
+
+    if (this.testDriver != null) {
+      this.testDriver.close();
+    }
+    this.registry = new SimpleMeterRegistry();
+    final SuppressionBufferMetrics metrics = new SuppressionBufferMetrics(this.registry);
+    final AggregateMemory memory = new AggregateMemory();
+    this.memory = memory;
+
+    final StreamsBuilder builder = new StreamsBuilder();
+    builder.addStateStore(
+        Stores.keyValueStoreBuilder(Stores.inMemoryKeyValueStore("mem"), Serdes.Bytes(),
+            Serdes.ByteArray()));
+    builder.addStateStore(
+        Stores.keyValueStoreBuilder(Stores.inMemoryKeyValueStore("disk"), Serdes.Bytes(),
+            Serdes.ByteArray()));
+
+    final ProcessorSupplier<Windowed<String>, Trace, String, Trace> supplier =
+        () -> new SuppressionBufferProcessor("mem", "disk", GRACE, MEMORY_BYTES, traceSerde,
+            metrics, memory, idleAdvancement);
+    builder.stream("in", Consumed.with(windowedSerde, traceSerde)).process(supplier, "mem", "disk")
+        .to("out", Produced.with(Serdes.String(), traceSerde));
+
+    final Properties config = new Properties();
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "test");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:1234");
+
+    this.testDriver = new TopologyTestDriver(builder.build(), config);
+    this.inputTopic = this.testDriver.createInputTopic("in", windowedSerde.serializer(),
+        traceSerde.serializer());
+    this.outputTopic = this.testDriver.createOutputTopic("out", Serdes.String().deserializer(),
+        traceSerde.deserializer());
+  }
+
+  @AfterEach
+  void afterEach() {
+    this.testDriver.close();
+  }
+
+  private static Windowed<String> key(final String key, final long windowStart) {
+    return new Windowed<>(key, new TimeWindow(windowStart, windowStart + WINDOW));
+  }
+
+  @Test
+  void emitsOnlyClosedWindowsInOrder() {
+    this.inputTopic.pipeInput(key("b", WINDOW), TraceHelper.randomTrace(3), WINDOW + 1);
+    this.inputTopic.pipeInput(key("a", 0), TraceHelper.randomTrace(3), 5);
+
+    // Neither window is closed (end + grace > stream time)
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    // Closes first and second window
+    this.inputTopic.pipeInput(key("d", 3 * WINDOW), TraceHelper.randomTrace(1),
+        2 * WINDOW + GRACE);
+    final List<KeyValue<String, Trace>> emitted = this.outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(2, emitted.size());
+    Assertions.assertEquals("a", emitted.get(0).key);
+    Assertions.assertEquals("b", emitted.get(1).key);
+  }
+
+  @Test
+  void emitsLatestUpdateOfSpilledTrace() {
+    this.inputTopic.pipeInput(key("a", 0), TraceHelper.randomTrace(1), 1);
+    this.inputTopic.pipeInput(key("b", WINDOW), TraceHelper.randomTrace(1), WINDOW + 1);
+    // b is spilled, update it
+    this.inputTopic.pipeInput(key("b", WINDOW), TraceHelper.randomTrace(7), WINDOW + 2);
+
+    Assertions.assertTrue(this.registry.get("explorviz.trace.suppression.spills").counter()
+        .count() >= 1);
+
+    final Trace open = TraceHelper.randomTrace(1);
+    this.inputTopic.pipeInput(key("z", 5 * WINDOW), open, 5 * WINDOW);
+    final List<KeyValue<String, Trace>> emitted = this.outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(2, emitted.size());
+    Assertions.assertEquals(7, emitted.get(1).value.getSpanList().size());
+    Assertions.assertEquals(1.0,
+        this.registry.get("explorviz.trace.suppression.buffered.traces").gauge().value());
+    // Exactly the bytes of the emitted traces are released, including the spilled update
+    Assertions.assertEquals(TraceSizeEstimator.estimate(open), this.memory.get());
+  }
+
+  @Test
+  void dropsUpdatesOfFlushedWindows() {
+    this.createDriver(new IdleAdvancement(IDLE_TIMEOUT, Duration.ofMillis(IDLE_TIMEOUT), null));
+
+    this.inputTopic.pipeInput(key("a", 0), TraceHelper.randomTrace(1), 1);
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    // Idle long enough for the window to close
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(WINDOW + GRACE));
+    Assertions.assertEquals(1, this.outputTopic.readKeyValuesToList().size());
+
+    // A late span updated the upstream aggregate of the flushed window
+    this.inputTopic.pipeInput(key("a", 0), TraceHelper.randomTrace(2), 2);
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+    Assertions.assertEquals(0, this.memory.get());
+    Assertions.assertEquals(1.0,
+        this.registry.get("explorviz.trace.suppression.dropped.updates").counter().count());
+    Assertions.assertEquals(0.0,
+        this.registry.get("explorviz.trace.suppression.buffered.traces").gauge().value());
+
+    // Open windows are still buffered
+    final Trace open = TraceHelper.randomTrace(1);
+    this.inputTopic.pipeInput(key("b", 2 * WINDOW), open, 2 * WINDOW);
+    Assertions.assertEquals(1.0,
+        this.registry.get("explorviz.trace.suppression.buffered.traces").gauge().value());
+    Assertions.assertEquals(TraceSizeEstimator.estimate(open), this.memory.get());
+  }
+
+  @Test
+  void releasesTracesOfClosedTask() {
+    final Trace first = TraceHelper.randomTrace(3);
+    final Trace second = TraceHelper.randomTrace(5);
+    this.inputTopic.pipeInput(key("a", 0), TraceHelper.randomTrace(1), 1);
+    this.inputTopic.pipeInput(key("a", 0), first, 2);
+    // Spilled
+    this.inputTopic.pipeInput(key("b", WINDOW), second, WINDOW + 1);
+    final AggregateMemory memory = this.memory;
+    final long held = TraceSizeEstimator.estimate(first) + TraceSizeEstimator.estimate(second);
+    Assertions.assertEquals(held, memory.get());
+
+    // Closes the task as if it was revoked
+    this.createDriver(IdleAdvancement.DISABLED);
+    Assertions.assertEquals(0, memory.get());
+  }
+
+}
@@ -0,0 +1,126 @@
+package net.explorviz.trace.kafka;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.kafka.TailSampler.Decision;
+import org.apache.kafka.streams.KeyValue;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TailSamplerTest {
+
+  private static final String TOKEN = "token";
+
+  private static Trace sameShape(final Trace template, final String traceId,
+      final long duration) {
+    return Trace.newBuilder(template).setTraceId(traceId).setDuration(duration).build();
+  }
+
+  private static TailSampler sampler(final TailSampler.Policy policy) {
+    return new TailSampler(policy, Map.of(), new Random(0));
+  }
+
+  @Test
+  void dropsRecurringShapesIntoRepresentative() {
+    final TailSampler sampler = sampler(new TailSampler.Policy(0.99, 2, 0.0));
+    final Trace template = TraceHelper.randomTrace(5, TOKEN);
+
+    Assertions.assertEquals(Decision.SHAPE, sampler.sample("k0", sameShape(template, "t0", 10)));
+    Assertions.assertEquals(Decision.SHAPE, sampler.sample("k1", sameShape(template, "t1", 10)));
+    for (int i = 2; i < 5; i++) {
+      Assertions.assertEquals(Decision.DROPPED,
+          sampler.sample("k" + i, sameShape(template, "t" + i, 10)));
+    }
+
+    final List<KeyValue<String, Trace>> updated = sampler.endInterval();
+    Assertions.assertEquals(1, updated.size());
+    Assertions.assertEquals("k0", updated.get(0).key);
+    Assertions.assertEquals("t0", updated.get(0).value.getTraceId());
+    Assertions.assertEquals(4, updated.get(0).value.getTraceCount());
+    Assertions.assertEquals(4, updated.get(0).value.getOverallRequestCount());
+  }
+
+  @Test
+  void keepsDistinctShapes() {
+    final TailSampler sampler = sampler(new TailSampler.Policy(0.99, 1, 0.0));
+    Assertions.assertEquals(Decision.SHAPE, sampler.sample("a", TraceHelper.randomTrace(5, TOKEN)));
+    Assertions.assertEquals(Decision.SHAPE, sampler.sample("b", TraceHelper.randomTrace(5, TOKEN)));
+    Assertions.assertTrue(sampler.endInterval().isEmpty());
+  }
+
+  @Test
+  void resetsShapesEachInterval() {
+    final TailSampler sampler = sampler(new TailSampler.Policy(0.99, 1, 0.0));
+    final Trace template = TraceHelper.randomTrace(5, TOKEN);
+
+    sampler.sample("k0", sameShape(template, "t0", 10));
+    Assertions.assertEquals(Decision.DROPPED, sampler.sample("k1", sameShape(template, "t1", 10)));
+    Assertions.assertEquals(1, sampler.endInterval().size());
+
+    Assertions.assertEquals(Decision.SHAPE, sampler.sample("k2", sameShape(template, "t2", 10)));
+    Assertions.assertTrue(sampler.endInterval().isEmpty());
+  }
+
+  @Test
+  void keepsSlowTraces() {
+    final TailSampler sampler = sampler(new TailSampler.Policy(0.99, 1, 0.0));
+    final Trace template = TraceHelper.randomTrace(5, TOKEN);
+    for (int i = 0; i < 200; i++) {
+      sampler.sample("k" + i, sameShape(template, "t" + i, 10));
+    }
+
+    Assertions.assertEquals(Decision.SLOW, sampler.sample("slow", sameShape(template, "s", 5000)));
+    Assertions.assertEquals(Decision.DROPPED, sampler.sample("fast", sameShape(template, "f", 10)));
+  }
+
+  @Test
+  void slowTracesDoNotUseShapeLimit() {
+    final TailSampler sampler = sampler(new TailSampler.Policy(0.99, 1, 0.0));
+    final Trace other = TraceHelper.randomTrace(5, TOKEN);
+    for (int i = 0; i < 200; i++) {
+      sampler.sample("k" + i, sameShape(other, "t" + i, 10));
+    }
+    sampler.endInterval();
+
+    final Trace template = TraceHelper.randomTrace(5, TOKEN);
+    Assertions.assertEquals(Decision.SLOW, sampler.sample("s0", sameShape(template, "s0", 5000)));
+    Assertions.assertEquals(Decision.SLOW, sampler.sample("s1", sameShape(template, "s1", 5000)));
+    Assertions.assertEquals(Decision.SHAPE, sampler.sample("f0", sameShape(template, "f0", 10)));
+    Assertions.assertEquals(Decision.DROPPED, sampler.sample("f1", sameShape(template, "f1", 10)));
+  }
+
+  @Test
+  void keepsRandomFraction() {
+    final TailSampler sampler = sampler(new TailSampler.Policy(0.99, 1, 1.0));
+    final Trace template = TraceHelper.randomTrace(5, TOKEN);
+
+    sampler.sample("k0", sameShape(template, "t0", 10));
+    Assertions.assertEquals(Decision.RANDOM, sampler.sample("k1", sameShape(template, "t1", 10)));
+  }
+
+  @Test
+  void appliesPolicyOfLandscape() {
+    final Map<String, TailSampler.Policy> policies =
+        TailSampler.Policy.parse(List.of(TOKEN + ":0.99:1:1.0"));
+    final TailSampler sampler =
+        new TailSampler(new TailSampler.Policy(0.99, 1, 0.0), policies, new Random(0));
+
+    final Trace own = TraceHelper.randomTrace(5, TOKEN);
+    sampler.sample("k0", sameShape(own, "t0", 10));
+    Assertions.assertEquals(Decision.RANDOM, sampler.sample("k1", sameShape(own, "t1", 10)));
+
+    final Trace other = TraceHelper.randomTrace(5, "other");
+    sampler.sample("k2", sameShape(other, "t2", 10));
+    Assertions.assertEquals(Decision.DROPPED, sampler.sample("k3", sameShape(other, "t3", 10)));
+  }
+
+  @Test
+  void rejectsInvalidPolicy() {
+    Assertions.assertThrows(IllegalArgumentException.class,
+        () -> TailSampler.Policy.parse(List.of(TOKEN + ":0.99")));
+  }
+
+}
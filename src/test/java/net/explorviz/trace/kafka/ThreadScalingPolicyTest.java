@@ -0,0 +1,53 @@
+package net.explorviz.trace.kafka;
+
+import net.explorviz.trace.kafka.ThreadScalingPolicy.Decision;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ThreadScalingPolicyTest {
+
+  private static final long UP = 10_000;
+  private static final long DOWN = 100;
+  private static final long COOLDOWN = 60_000;
+
+  private ThreadScalingPolicy policy;
+
+  @BeforeEach
+  void setUp() {
+    this.policy = new ThreadScalingPolicy(1, 3, UP, DOWN, 0.5, COOLDOWN);
+  }
+
+  @Test
+  void addsThreadIfLaggingAndBusy() {
+    Assertions.assertEquals(Decision.ADD, this.policy.decide(1, UP + 1, 0.9, 0));
+  }
+
+  @Test
+  void keepsThreadsIfNotBusy() {
+    // More threads would not help, e.g., if the bottleneck is elsewhere
+    Assertions.assertEquals(Decision.KEEP, this.policy.decide(1, UP + 1, 0.1, 0));
+  }
+
+  @Test
+  void respectsBounds() {
+    Assertions.assertEquals(Decision.KEEP, this.policy.decide(3, UP + 1, 0.9, 0));
+    Assertions.assertEquals(Decision.KEEP, this.policy.decide(1, 0, 0.0, 0));
+    Assertions.assertEquals(Decision.REMOVE, this.policy.decide(4, UP + 1, 0.9, 0));
+    Assertions.assertEquals(Decision.ADD, this.policy.decide(0, 0, 0.0, 0));
+  }
+
+  @Test
+  void removesThreadIfLagIsLow() {
+    Assertions.assertEquals(Decision.REMOVE, this.policy.decide(2, DOWN - 1, 0.9, 0));
+    Assertions.assertEquals(Decision.KEEP, this.policy.decide(2, DOWN + 1, 0.9, 0));
+  }
+
+  @Test
+  void waitsForCooldown() {
+    this.policy.changed(1000);
+    Assertions.assertEquals(Decision.KEEP, this.policy.decide(1, UP + 1, 0.9, 1000 + COOLDOWN - 1));
+    Assertions.assertEquals(Decision.ADD, this.policy.decide(1, UP + 1, 0.9, 1000 + COOLDOWN));
+  }
+
+}
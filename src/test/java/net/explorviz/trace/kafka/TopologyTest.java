@@ -2,28 +2,44 @@ package net.explorviz.trace.kafka;
 
 import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
 import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.quarkus.arc.ClientProxy;
 import io.quarkus.test.junit.QuarkusMock;
 import io.quarkus.test.junit.QuarkusTest;
 import io.smallrye.mutiny.Uni;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import javax.inject.Inject;
+import net.explorviz.avro.EventType;
+import net.explorviz.avro.LandscapeToken;
 import net.explorviz.avro.Span;
+import net.explorviz.avro.TokenEvent;
 import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.persistence.LateSpanService;
 import net.explorviz.trace.persistence.ReactiveTraceService;
 import net.explorviz.trace.persistence.dao.Trace;
 import net.explorviz.trace.service.HashHelper;
 import net.explorviz.trace.service.TimestampHelper;
+import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsConfig;
 import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
 import org.apache.kafka.streams.Topology;
+import org.apache.kafka.streams.TopologyDescription;
 import org.apache.kafka.streams.TopologyTestDriver;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.junit.jupiter.api.AfterEach;
@@ -41,6 +57,10 @@ class TopologyTest {
   private static final Logger LOGGER = LoggerFactory.getLogger(TopologyTest.class);
   @ConfigProperty(name = "explorviz.kafka-streams.topics.in")
   /* default */ String inTopic;
+  @ConfigProperty(name = "explorviz.kafka-streams.topics.out")
+  /* default */ String outTopic;
+  @ConfigProperty(name = "explorviz.kafka-streams.topics.tokens")
+  /* default */ String tokenTopic;
   @ConfigProperty(name = "explorviz.kafka-streams.window.size")
   /* default */ long windowSizeInMs;
   @ConfigProperty(name = "explorviz.kafka-streams.window.grace")
@@ -48,14 +68,24 @@ class TopologyTest {
   @Inject
   Topology topology;
   @Inject
+  TopologyProducer topologyProducer;
+  @Inject
   SpecificAvroSerde<Span> spanSerde;
+  @Inject
+  SpecificAvroSerde<net.explorviz.avro.Trace> traceSerde;
+  @Inject
+  SpecificAvroSerde<TokenEvent> tokenEventSerde;
+  @Inject
+  MeterRegistry meterRegistry;
   ReactiveTraceService reactiveTraceService;
+  private Properties config;
   private TopologyTestDriver testDriver;
   private TestInputTopic<String, Span> inputTopic;
 
   @BeforeEach
   void setUp() {
     final Properties config = new Properties();
+    this.config = config;
     config.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass().getName());
     config.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, SpecificAvroSerde.class.getName());
     config.put(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234");
@@ -236,6 +266,352 @@ class TopologyTest {
   }
 
 
+  @Test
+  void groupsCoPartitionedSpansInPlace() {
+    final Topology coPartitioned = this.useTopology(producer -> {
+      producer.partitioningMode = "co-partitioned";
+      producer.upstreamKey = "trace-id";
+    });
+    final Map<String, Trace> mockSpanDB = this.persistedTraces();
+
+    // Only spans with a mismatching key are repartitioned
+    Assertions.assertEquals(Set.of("partitioning-fallback-repartition"),
+        sinkTopics(coPartitioned));
+    final double fallbacks = this.fallbacks();
+
+    final net.explorviz.avro.Trace testTrace = TraceHelper.randomTrace(10);
+    long t = testTrace.getStartTimeEpochMilli();
+    for (final Span s : testTrace.getSpanList()) {
+      t += 1;
+      s.setStartTimeEpochMilli(t);
+      this.inputTopic.pipeInput(s.getTraceId(), s);
+    }
+    this.forceSuppression(t);
+
+    final String k = testTrace.getLandscapeToken() + "::" + testTrace.getTraceId();
+    Assertions.assertEquals(1, mockSpanDB.size());
+    Assertions.assertEquals(10, mockSpanDB.get(k).getSpanList().size());
+    Assertions.assertEquals(fallbacks, this.fallbacks());
+  }
+
+  @Test
+  void repartitionsMismatchingCoPartitionedSpans() {
+    this.useTopology(producer -> {
+      producer.partitioningMode = "co-partitioned";
+      producer.upstreamKey = "trace-id";
+    });
+    final Map<String, Trace> mockSpanDB = this.persistedTraces();
+    final double fallbacks = this.fallbacks();
+
+    final net.explorviz.avro.Trace testTrace = TraceHelper.randomTrace(10);
+    long t = testTrace.getStartTimeEpochMilli();
+    int i = 0;
+    for (final Span s : testTrace.getSpanList()) {
+      t += 1;
+      s.setStartTimeEpochMilli(t);
+      // Every other span is keyed by landscapeToken::traceId instead of the trace id
+      final String key =
+          i++ % 2 == 0 ? s.getTraceId() : s.getLandscapeToken() + "::" + s.getTraceId();
+      this.inputTopic.pipeInput(key, s);
+    }
+    this.forceSuppression(t);
+
+    final String k = testTrace.getLandscapeToken() + "::" + testTrace.getTraceId();
+    Assertions.assertEquals(1, mockSpanDB.size());
+    Assertions.assertEquals(10, mockSpanDB.get(k).getSpanList().size());
+    Assertions.assertEquals(fallbacks + 5, this.fallbacks());
+  }
+
+  @Test
+  void separatesLandscapesWithSameTraceId() {
+    this.useTopology(producer -> {
+      producer.partitioningMode = "co-partitioned";
+      producer.upstreamKey = "trace-id";
+    });
+    final Map<String, Trace> mockSpanDB = this.persistedTraces();
+
+    final Span first = TraceHelper.randomSpan("trace", "landscape-a");
+    final Span second = TraceHelper.randomSpan("trace", "landscape-b");
+    second.setStartTimeEpochMilli(first.getStartTimeEpochMilli() + 1);
+    this.inputTopic.pipeInput("trace", first);
+    this.inputTopic.pipeInput("trace", second);
+    this.forceSuppression(second.getStartTimeEpochMilli());
+
+    Assertions.assertEquals(2, mockSpanDB.size());
+    for (final String token : List.of("landscape-a", "landscape-b")) {
+      final Trace trace = mockSpanDB.get(token + "::trace");
+      Assertions.assertEquals(1, trace.getSpanList().size());
+      Assertions.assertEquals(token, trace.getSpanList().get(0).getLandscapeToken());
+    }
+  }
+
+  @Test
+  void keepsSpansOfOpenTraceWhenPolicyChanges() {
+    final LateSpanService lateSpanService = Mockito.mock(LateSpanService.class);
+    Mockito.when(lateSpanService.stitch(ArgumentMatchers.any()))
+        .thenReturn(CompletableFuture.completedFuture(null));
+    this.useTopology(producer -> {
+      producer.adaptiveWindows = true;
+      producer.lateStitching = true;
+      producer.lateSpanService = lateSpanService;
+    });
+    final Map<String, Trace> mockSpanDB = this.persistedTraces();
+
+    // End of the default window of the trace under test
+    final long windowEnd = 1_600_000_000_000L;
+    final String token = "adaptive";
+
+    // Short traces in the previous window, whose durations shrink the window of the landscape
+    for (int i = 0; i < 200; i++) {
+      final Span span = TraceHelper.randomSpan("short-" + i, token);
+      span.setStartTimeEpochMilli(windowEnd - 19_000);
+      span.setEndTimeEpochMilli(windowEnd - 19_000);
+      this.inputTopic.pipeInput(span.getTraceId(), span);
+    }
+    final Span first = TraceHelper.randomSpan("open", token);
+    first.setStartTimeEpochMilli(windowEnd - 9900);
+    this.inputTopic.pipeInput(first.getTraceId(), first);
+
+    // Closes the previous window, the trace under test stays open
+    final Span other = TraceHelper.randomSpan("other", "other");
+    other.setStartTimeEpochMilli(windowEnd - 8000);
+    this.inputTopic.pipeInput(other.getTraceId(), other);
+    Assertions.assertEquals(200, mockSpanDB.size());
+
+    // Closed w.r.t. the shrunk window size, but the trace is tied to its open window
+    final Span second = TraceHelper.randomSpan("open", token);
+    second.setStartTimeEpochMilli(windowEnd - 9800);
+    this.inputTopic.pipeInput(second.getTraceId(), second);
+    this.forceSuppression(second.getStartTimeEpochMilli());
+
+    Assertions.assertEquals(2, mockSpanDB.get(token + "::open").getSpanList().size());
+    Mockito.verify(lateSpanService, Mockito.never()).stitch(ArgumentMatchers.any());
+  }
+
+  @Test
+  void reducesDecoupledTracesOnce() {
+    final Topology decoupled = this.useTopology(producer -> producer.decoupledReduction = true);
+    final Map<String, Trace> mockSpanDB = this.persistedTraces();
+
+    // Assembled traces are handed over to the reduction via an internal topic
+    Assertions.assertTrue(sinkTopics(decoupled).contains("assembled-traces-repartition"));
+
+    final net.explorviz.avro.Trace testTrace = TraceHelper.randomTrace(10);
+    long t = testTrace.getStartTimeEpochMilli();
+    for (final Span s : testTrace.getSpanList()) {
+      t += 1;
+      s.setStartTimeEpochMilli(t);
+      this.inputTopic.pipeInput(s.getTraceId(), s);
+    }
+    this.forceSuppression(t);
+
+    final String k = testTrace.getLandscapeToken() + "::" + testTrace.getTraceId();
+    Assertions.assertEquals(1, mockSpanDB.size());
+    Assertions.assertEquals(10, mockSpanDB.get(k).getSpanList().size());
+    Mockito.verify(this.reactiveTraceService, Mockito.times(1))
+        .insert(ArgumentMatchers.any(Trace.class));
+  }
+
+  @Test
+  void writesReducedTracesWithCompactSerde() {
+    this.assertOutput("compact", new CompactTraceSerde().deserializer());
+  }
+
+  @Test
+  void writesReducedTracesWithAvroSerde() {
+    this.assertOutput("avro", this.traceSerde.deserializer());
+  }
+
+  /**
+   * Checks that reduced traces are written to the output topic, keyed by landscapeToken::traceId
+   * and serialized by the configured serde.
+   */
+  private void assertOutput(final String serde,
+      final Deserializer<net.explorviz.avro.Trace> deserializer) {
+    this.useTopology(producer -> {
+      producer.output = true;
+      producer.outputSerde = serde;
+    });
+    final Map<String, Trace> mockSpanDB = this.persistedTraces();
+    final TestOutputTopic<String, net.explorviz.avro.Trace> outputTopic =
+        this.testDriver.createOutputTopic(this.outTopic, Serdes.String().deserializer(),
+            deserializer);
+
+    final net.explorviz.avro.Trace testTrace = TraceHelper.randomTrace(10);
+    long t = testTrace.getStartTimeEpochMilli();
+    for (final Span s : testTrace.getSpanList()) {
+      t += 1;
+      s.setStartTimeEpochMilli(t);
+      this.inputTopic.pipeInput(s.getTraceId(), s);
+    }
+    this.forceSuppression(t);
+
+    final String k = testTrace.getLandscapeToken() + "::" + testTrace.getTraceId();
+    final List<KeyValue<String, net.explorviz.avro.Trace>> written =
+        outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(1, written.size());
+    Assertions.assertEquals(k, written.get(0).key);
+    Assertions.assertEquals(testTrace.getTraceId(), written.get(0).value.getTraceId());
+    Assertions.assertEquals(mockSpanDB.get(k).getSpanList().size(),
+        written.get(0).value.getSpanList().size());
+  }
+
+  @Test
+  void dropsSpansOfInvalidTokens() {
+    this.useTopology(producer -> producer.tokenFilter = true);
+    final Map<String, Trace> mockSpanDB = this.persistedTraces();
+    final TestInputTopic<String, TokenEvent> tokenTopic = this.testDriver.createInputTopic(
+        this.tokenTopic, Serdes.String().serializer(), this.tokenEventSerde.serializer());
+
+    tokenTopic.pipeInput("created", tokenEvent(EventType.CREATED, "created"));
+    tokenTopic.pipeInput("deleted", tokenEvent(EventType.DELETED, "deleted"));
+    tokenTopic.pipeInput("tombstoned", tokenEvent(EventType.CREATED, "tombstoned"));
+    tokenTopic.pipeInput("tombstoned", null);
+    final double unknownBefore = this.droppedSpans("unknown");
+
+    long t = TraceHelper.randomSpan().getStartTimeEpochMilli();
+    for (final String token : List.of("created", "deleted", "tombstoned", "other")) {
+      final Span span = TraceHelper.randomSpan("trace-" + token, token);
+      span.setStartTimeEpochMilli(++t);
+      this.inputTopic.pipeInput(span.getTraceId(), span);
+    }
+    // Spans of other tokens would be dropped before they advance the stream time
+    final Span dummy = TraceHelper.randomSpan("dummy", "created");
+    dummy.setStartTimeEpochMilli(t + this.windowSizeInMs + this.graceSizeInMs);
+    this.inputTopic.pipeInput(dummy.getTraceId(), dummy);
+
+    Assertions.assertEquals(Set.of("created::trace-created"), mockSpanDB.keySet());
+    Assertions.assertEquals(1.0, this.droppedSpans("deleted"));
+    // Tombstoned tokens are as unknown as tokens that never existed
+    Assertions.assertEquals(unknownBefore + 2, this.droppedSpans("unknown"));
+    Assertions.assertNull(this.meterRegistry.find("explorviz.trace.tokens.dropped.spans")
+        .tag("token", "other").counter());
+  }
+
+  @Test
+  void countsAdmissionOfUncheckedTokensAsUnknown() {
+    this.useTopology(producer -> producer.admission = true);
+    this.persistedTraces();
+    final double before = this.admittedSpans("unknown");
+
+    final Span span = TraceHelper.randomSpan();
+    this.inputTopic.pipeInput(span.getTraceId(), span);
+
+    // Without the token filter, any agent could create meters by sending arbitrary tokens
+    Assertions.assertEquals(before + 1, this.admittedSpans("unknown"));
+    Assertions.assertEquals(0, this.admittedSpans(span.getLandscapeToken()));
+  }
+
+  @Test
+  void admitsSpansOnceRepartitionedByTrace() {
+    final Topology admitted = this.useTopology(producer -> producer.admission = true);
+    final Map<String, Trace> mockSpanDB = this.persistedTraces();
+
+    // The admission reads the repartition topic, which the aggregation then reuses
+    final TopologyDescription.Subtopology admission = admitted.describe().subtopologies().stream()
+        .filter(sub -> sub.nodes().stream()
+            .anyMatch(node -> TopologyProducer.ADMISSION_PROCESSOR.equals(node.name())))
+        .findFirst().orElseThrow();
+    Assertions.assertTrue(admission.nodes().stream()
+        .filter(node -> node instanceof TopologyDescription.Source)
+        .flatMap(node -> ((TopologyDescription.Source) node).topicSet().stream())
+        .allMatch(topic -> topic.endsWith("-repartition")));
+    Assertions.assertEquals(1,
+        sinkTopics(admitted).stream().filter(topic -> topic.endsWith("-repartition")).count());
+
+    final net.explorviz.avro.Trace testTrace = TraceHelper.randomTrace(10);
+    long t = testTrace.getStartTimeEpochMilli();
+    for (final Span s : testTrace.getSpanList()) {
+      t += 1;
+      s.setStartTimeEpochMilli(t);
+      this.inputTopic.pipeInput(s.getSpanId(), s);
+    }
+    this.forceSuppression(t);
+
+    final String k = testTrace.getLandscapeToken() + "::" + testTrace.getTraceId();
+    Assertions.assertEquals(10, mockSpanDB.get(k).getSpanList().size());
+  }
+
+  private double admittedSpans(final String token) {
+    final Counter counter = this.meterRegistry.find("explorviz.trace.admission.spans")
+        .tag("token", token).tag("decision", "accepted").counter();
+    return counter == null ? 0 : counter.count();
+  }
+
+  private static TokenEvent tokenEvent(final EventType type, final String token) {
+    return TokenEvent.newBuilder().setType(type).setClonedToken("")
+        .setToken(LandscapeToken.newBuilder().setValue(token).setOwnerId("owner")
+            .setSecret("secret").setCreated(0).setAlias("").build())
+        .build();
+  }
+
+  private double droppedSpans(final String token) {
+    final Counter counter = this.meterRegistry.find("explorviz.trace.tokens.dropped.spans")
+        .tag("token", token).counter();
+    return counter == null ? 0 : counter.count();
+  }
+
+  /**
+   * Collects the persisted traces by landscapeToken::traceId.
+   */
+  private Map<String, Trace> persistedTraces() {
+    final Map<String, Trace> mockSpanDB = new HashMap<>();
+    Mockito.doAnswer(i -> {
+      final Trace inserted = i.getArgument(0, Trace.class);
+      mockSpanDB.put(inserted.getLandscapeToken() + "::" + inserted.getTraceId(), inserted);
+      return Uni.createFrom().nullItem();
+    }).when(this.reactiveTraceService).insert(ArgumentMatchers.any(Trace.class));
+    return mockSpanDB;
+  }
+
+  private double fallbacks() {
+    return this.meterRegistry.get("explorviz.trace.partitioning.fallbacks").counter().count();
+  }
+
+  /**
+   * Replaces the topology under test by one built with a changed configuration. The producer is a
+   * copy of the application's one, such that other tests are not affected.
+   */
+  private Topology useTopology(final Consumer<TopologyProducer> configuration) {
+    final TopologyProducer source = ClientProxy.unwrap(this.topologyProducer);
+    final TopologyProducer producer = new TopologyProducer();
+    try {
+      for (final Field field : TopologyProducer.class.getDeclaredFields()) {
+        if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isFinal(field.getModifiers())) {
+          field.setAccessible(true);
+          field.set(producer, field.get(source));
+        }
+      }
+    } catch (final IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+    producer.reactiveTraceService = this.reactiveTraceService;
+    configuration.accept(producer);
+
+    final Topology changed = producer.buildTopology();
+    this.testDriver.close();
+    this.testDriver = new TopologyTestDriver(changed, this.config);
+    this.inputTopic = this.testDriver.createInputTopic(this.inTopic, Serdes.String().serializer(),
+        this.spanSerde.serializer());
+    return changed;
+  }
+
+  /**
+   * Returns the topics written by a topology, e.g., repartition topics without the application
+   * id.
+   */
+  private static Set<String> sinkTopics(final Topology topology) {
+    final Set<String> topics = new HashSet<>();
+    for (final TopologyDescription.Subtopology subtopology : topology.describe().subtopologies()) {
+      for (final TopologyDescription.Node node : subtopology.nodes()) {
+        if (node instanceof TopologyDescription.Sink) {
+          topics.add(((TopologyDescription.Sink) node).topic());
+        }
+      }
+    }
+    return topics;
+  }
+
   /**
    * Forces the suppression to emit results by sending a dummy event with a timestamp larger than
    * the suppression time.
@@ -0,0 +1,239 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.service.AggregateMemory;
+import net.explorviz.trace.service.TraceAggregator;
+import net.explorviz.trace.service.TraceSizeEstimator;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.processor.api.ProcessorSupplier;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TraceCompletionProcessorTest {
+
+  private static final long INACTIVITY = 1000;
+  private static final long TIMEOUT = 10_000;
+
+  private TopologyTestDriver testDriver;
+  private TestInputTopic<String, Span> inputTopic;
+  private TestOutputTopic<String, Trace> outputTopic;
+
+  private <T extends SpecificRecord> SpecificAvroSerde<T> serde(
+      final SchemaRegistryClient registry) {
+    final SpecificAvroSerde<T> serde = new SpecificAvroSerde<>(registry);
+    serde.configure(
+        Map.of(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234"),
+        false);
+    return serde;
+  }
+
+  @BeforeEach
+  void setUp() {
+    this.start(new TraceAggregator());
+  }
+
+  private void start(final TraceAggregator aggregator) {
+    final SchemaRegistryClient registry = new MockSchemaRegistryClient();
+    final SpecificAvroSerde<Span> spanSerde = this.serde(registry);
+    final SpecificAvroSerde<Trace> traceSerde = this.serde(registry);
+
+    final StreamsBuilder builder = new StreamsBuilder();
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.inMemoryKeyValueStore(TraceAssemblyStore.SUMMARY_STORE), Serdes.String(),
+        traceSerde));
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.inMemoryKeyValueStore(TraceAssemblyStore.SPAN_STORE), Serdes.String(), spanSerde));
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.inMemoryKeyValueStore(TraceAssemblyStore.LEVEL_STORE), Serdes.String(),
+        Serdes.Integer()));
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.inMemoryKeyValueStore(TraceAssemblyStore.ORPHAN_STORE), Serdes.String(),
+        Serdes.String()));
+
+    final ProcessorSupplier<String, Span, String, Trace> supplier =
+        () -> new TraceCompletionProcessor(INACTIVITY, TIMEOUT, Duration.ofMillis(100),
+            aggregator);
+
+    builder.stream("in", Consumed.with(Serdes.String(), spanSerde))
+        .process(supplier, TraceAssemblyStore.storeNames(true))
+        .to("out", Produced.with(Serdes.String(), traceSerde));
+
+    final Properties config = new Properties();
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "test");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:1234");
+
+    this.testDriver = new TopologyTestDriver(builder.build(), config);
+    this.inputTopic = this.testDriver.createInputTopic("in", Serdes.String().serializer(),
+        spanSerde.serializer());
+    this.outputTopic = this.testDriver.createOutputTopic("out", Serdes.String().deserializer(),
+        traceSerde.deserializer());
+  }
+
+  @AfterEach
+  void afterEach() {
+    this.testDriver.close();
+  }
+
+  @Test
+  void emitsCompleteTraceAfterInactivity() {
+    final Trace trace = TraceHelper.linearTrace(5);
+    for (final Span s : trace.getSpanList()) {
+      this.inputTopic.pipeInput("k", s);
+    }
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(INACTIVITY / 2));
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(INACTIVITY));
+    final Trace emitted = this.outputTopic.readValue();
+    Assertions.assertEquals(5, emitted.getSpanList().size());
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+  }
+
+  @Test
+  void holdsIncompleteTraceUntilTimeout() {
+    final Trace trace = TraceHelper.linearTrace(5);
+    // Root is missing
+    for (final Span s : trace.getSpanList().subList(1, 5)) {
+      this.inputTopic.pipeInput("k", s);
+    }
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(INACTIVITY * 2));
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(TIMEOUT));
+    Assertions.assertEquals(4, this.outputTopic.readValue().getSpanList().size());
+  }
+
+  @Test
+  void emitsOnceMissingParentArrives() {
+    final Trace trace = TraceHelper.linearTrace(5);
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(1));
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(0));
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(3));
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(INACTIVITY * 2));
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(2));
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(INACTIVITY * 2));
+    Assertions.assertEquals(4, this.outputTopic.readValue().getSpanList().size());
+  }
+
+  @Test
+  void capsSpansInOrderOfArrival() {
+    this.testDriver.close();
+    this.start(new TraceAggregator(3, 0L, null));
+
+    final List<Span> spans = TraceHelper.randomTrace(5).getSpanList();
+    for (int i = 0; i < spans.size(); i++) {
+      // Span ids sort in the reverse order of arrival
+      spans.get(i).setSpanId(String.valueOf((char) ('e' - i)));
+      this.inputTopic.pipeInput("k", spans.get(i));
+    }
+
+    final KeyValueStore<String, Span> spanStore =
+        this.testDriver.getKeyValueStore(TraceAssemblyStore.SPAN_STORE);
+    Assertions.assertEquals(3, spanStore.approximateNumEntries());
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(TIMEOUT));
+    final Trace emitted = this.outputTopic.readValue();
+    Assertions.assertEquals(Set.copyOf(spans.subList(0, 3)), Set.copyOf(emitted.getSpanList()));
+    Assertions.assertEquals(2, emitted.getDroppedSpanCount());
+  }
+
+  @Test
+  void releasesHeldBytesOnEmissionAndClose() {
+    this.testDriver.close();
+    final AggregateMemory memory = new AggregateMemory();
+    this.start(new TraceAggregator(0, 0L, memory));
+
+    for (final Span s : TraceHelper.linearTrace(3).getSpanList()) {
+      this.inputTopic.pipeInput("a", s);
+    }
+    final Trace open = TraceHelper.linearTrace(3);
+    // Root is missing
+    final List<Span> held = open.getSpanList().subList(1, 3);
+    for (final Span s : held) {
+      this.inputTopic.pipeInput("b", s);
+    }
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(INACTIVITY * 2));
+    Assertions.assertEquals("a", this.outputTopic.readKeyValue().key);
+    Assertions.assertEquals(
+        TraceSizeEstimator.estimate(Trace.newBuilder(open).setSpanList(held).build()),
+        memory.get());
+
+    // Closes the task as if it was revoked
+    this.testDriver.close();
+    Assertions.assertEquals(0, memory.get());
+    this.start(new TraceAggregator());
+  }
+
+  @Test
+  void prunesSpansBeyondDepthLimit() {
+    this.testDriver.close();
+    this.start(new TraceAggregator(0, 0L, 2, null, null));
+
+    final Trace trace = TraceHelper.linearTrace(6);
+    // Levels 4 and 5 arrive before their ancestors
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(5));
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(4));
+    for (final Span s : trace.getSpanList().subList(0, 4)) {
+      this.inputTopic.pipeInput("k", s);
+    }
+
+    final KeyValueStore<String, Span> spans =
+        this.testDriver.getKeyValueStore(TraceAssemblyStore.SPAN_STORE);
+    Assertions.assertEquals(3, spans.approximateNumEntries());
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(INACTIVITY * 2));
+    final Trace emitted = this.outputTopic.readValue();
+    Assertions.assertEquals(Set.copyOf(trace.getSpanList().subList(0, 3)),
+        Set.copyOf(emitted.getSpanList()));
+    Assertions.assertEquals(3, emitted.getDroppedSpanCount());
+  }
+
+  @Test
+  void dropsSpansWhoseParentNeverArrives() {
+    this.testDriver.close();
+    this.start(new TraceAggregator(0, 0L, 10, null, null));
+
+    final Trace trace = TraceHelper.linearTrace(5);
+    // The parent of levels 3 and 4 is missing
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(4));
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(3));
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(0));
+    this.inputTopic.pipeInput("k", trace.getSpanList().get(1));
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(TIMEOUT));
+    final Trace emitted = this.outputTopic.readValue();
+    Assertions.assertEquals(Set.copyOf(trace.getSpanList().subList(0, 2)),
+        Set.copyOf(emitted.getSpanList()));
+    Assertions.assertEquals(2, emitted.getDroppedSpanCount());
+  }
+
+}
@@ -0,0 +1,142 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.processor.api.ProcessorSupplier;
+import org.apache.kafka.streams.state.Stores;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TraceDeduplicationProcessorTest {
+
+  private static final long INTERVAL = 10_000;
+  private static final long IDLE_TIMEOUT = 1000;
+  private static final String TOKEN = "tok";
+
+  private TopologyTestDriver testDriver;
+  private MeterRegistry registry;
+  private TestInputTopic<String, Trace> inputTopic;
+  private TestOutputTopic<String, Trace> outputTopic;
+
+  @BeforeEach
+  void setUp() {
+    this.createDriver(IdleAdvancement.DISABLED);
+  }
+
+  private void createDriver(final IdleAdvancement idleAdvancement) {
+    final SpecificAvroSerde<Trace> traceSerde =
+        new SpecificAvroSerde<>(new MockSchemaRegistryClient());
+    traceSerde.configure(
+        Map.of(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234"),
+        false);
+
+    if (this.testDriver != null) {
+      this.testDriver.close();
+    }
+    this.registry = new SimpleMeterRegistry();
+    final MeterRegistry registry = this.registry;
+
+    final StreamsBuilder builder = new StreamsBuilder();
+    builder.addStateStore(
+        Stores.keyValueStoreBuilder(Stores.inMemoryKeyValueStore("dedup"), Serdes.String(),
+            traceSerde));
+
+    final ProcessorSupplier<String, Trace, String, Trace> supplier =
+        () -> new TraceDeduplicationProcessor("dedup", INTERVAL, idleAdvancement, registry);
+    builder.stream("in", Consumed.with(Serdes.String(), traceSerde)).process(supplier, "dedup")
+        .to("out", Produced.with(Serdes.String(), traceSerde));
+
+    final Properties config = new Properties();
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "test");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:1234");
+
+    this.testDriver = new TopologyTestDriver(builder.build(), config);
+    this.inputTopic = this.testDriver.createInputTopic("in", Serdes.String().serializer(),
+        traceSerde.serializer());
+    this.outputTopic = this.testDriver.createOutputTopic("out", Serdes.String().deserializer(),
+        traceSerde.deserializer());
+  }
+
+  @AfterEach
+  void afterEach() {
+    this.testDriver.close();
+  }
+
+  private static Trace copy(final Trace trace, final String traceId, final long duration) {
+    return Trace.newBuilder(trace).setTraceId(traceId).setDuration(duration).build();
+  }
+
+  @Test
+  void emitsTraceOnceItsWindowCloses() {
+    final Trace trace = TraceHelper.randomTrace(3, TOKEN);
+    this.inputTopic.pipeInput(TOKEN, trace, 1);
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    // A later trace closes the window without any wall-clock punctuation
+    this.inputTopic.pipeInput(TOKEN, TraceHelper.randomTrace(2, TOKEN), INTERVAL);
+    final List<KeyValue<String, Trace>> emitted = this.outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(1, emitted.size());
+    Assertions.assertEquals(TOKEN + "::" + trace.getTraceId(), emitted.get(0).key);
+    Assertions.assertEquals(1, emitted.get(0).value.getTraceCount());
+  }
+
+  @Test
+  void mergesIdenticalTracesOfTheSameWindow() {
+    final Trace trace = TraceHelper.randomTrace(3, TOKEN);
+    this.inputTopic.pipeInput(TOKEN, copy(trace, "first", 10), 1);
+    this.inputTopic.pipeInput(TOKEN, copy(trace, "second", 30), 2);
+    // Same call tree, but in the next window
+    this.inputTopic.pipeInput(TOKEN, copy(trace, "third", 20), INTERVAL + 1);
+
+    final List<KeyValue<String, Trace>> emitted = this.outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(1, emitted.size());
+    final Trace representative = emitted.get(0).value;
+    Assertions.assertEquals("first", representative.getTraceId());
+    Assertions.assertEquals(2, representative.getTraceCount());
+    Assertions.assertEquals(10, representative.getMinDuration());
+    Assertions.assertEquals(30, representative.getMaxDuration());
+    Assertions.assertEquals(1.0,
+        this.registry.get("explorviz.trace.dedup.merged").counter().count());
+  }
+
+  @Test
+  void forwardsTracesOfClosedWindowsRightAway() {
+    this.inputTopic.pipeInput(TOKEN, TraceHelper.randomTrace(1, TOKEN), 2 * INTERVAL);
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    this.inputTopic.pipeInput(TOKEN, TraceHelper.randomTrace(1, TOKEN), 1);
+    Assertions.assertEquals(1, this.outputTopic.readKeyValuesToList().size());
+  }
+
+  @Test
+  void emitsTracesOfIdlePartitions() {
+    this.createDriver(new IdleAdvancement(IDLE_TIMEOUT, Duration.ofMillis(IDLE_TIMEOUT), null));
+
+    this.inputTopic.pipeInput(TOKEN, TraceHelper.randomTrace(1, TOKEN), 1);
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(INTERVAL + IDLE_TIMEOUT));
+    Assertions.assertEquals(1, this.outputTopic.readKeyValuesToList().size());
+  }
+
+}
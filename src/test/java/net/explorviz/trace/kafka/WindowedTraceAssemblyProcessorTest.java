@@ -0,0 +1,192 @@
+package net.explorviz.trace.kafka;
+
+import io.confluent.kafka.schemaregistry.client.MockSchemaRegistryClient;
+import io.confluent.kafka.schemaregistry.client.SchemaRegistryClient;
+import io.confluent.kafka.serializers.AbstractKafkaSchemaSerDeConfig;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.service.TraceAggregator;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsBuilder;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.kstream.Consumed;
+import org.apache.kafka.streams.kstream.Produced;
+import org.apache.kafka.streams.processor.api.ProcessorSupplier;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.Stores;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class WindowedTraceAssemblyProcessorTest {
+
+  private static final long WINDOW = 10_000;
+  private static final long GRACE = 2000;
+  private static final long IDLE_TIMEOUT = 5000;
+
+  private TopologyTestDriver testDriver;
+  private TestInputTopic<String, Span> inputTopic;
+  private TestOutputTopic<String, Trace> outputTopic;
+  private SimpleMeterRegistry meterRegistry;
+
+  private <T extends SpecificRecord> SpecificAvroSerde<T> serde(
+      final SchemaRegistryClient registry) {
+    final SpecificAvroSerde<T> serde = new SpecificAvroSerde<>(registry);
+    serde.configure(
+        Map.of(AbstractKafkaSchemaSerDeConfig.SCHEMA_REGISTRY_URL_CONFIG, "http://registry:1234"),
+        false);
+    return serde;
+  }
+
+  @BeforeEach
+  void setUp() {
+    this.createDriver(AdaptiveWindowPolicy.fixed(WINDOW, GRACE));
+  }
+
+  private void createDriver(final AdaptiveWindowPolicy windowPolicy) {
+    if (this.testDriver != null) {
+      this.testDriver.close();
+    }
+    final SchemaRegistryClient registry = new MockSchemaRegistryClient();
+    final SpecificAvroSerde<Span> spanSerde = this.serde(registry);
+    final SpecificAvroSerde<Trace> traceSerde = this.serde(registry);
+
+    final StreamsBuilder builder = new StreamsBuilder();
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.inMemoryKeyValueStore(TraceAssemblyStore.SUMMARY_STORE), Serdes.String(),
+        traceSerde));
+    builder.addStateStore(Stores.keyValueStoreBuilder(
+        Stores.inMemoryKeyValueStore(TraceAssemblyStore.SPAN_STORE), Serdes.String(), spanSerde));
+
+    this.meterRegistry = new SimpleMeterRegistry();
+    final IdleAdvancement idleAdvancement =
+        new IdleAdvancement(IDLE_TIMEOUT, Duration.ofSeconds(1), this.meterRegistry);
+    final TraceAggregator aggregator = new TraceAggregator();
+    final ProcessorSupplier<String, Span, String, Trace> supplier =
+        () -> new WindowedTraceAssemblyProcessor(windowPolicy, aggregator, idleAdvancement);
+
+    builder.stream("in", Consumed.with(Serdes.String(), spanSerde))
+        .process(supplier, TraceAssemblyStore.SUMMARY_STORE, TraceAssemblyStore.SPAN_STORE)
+        .to("out", Produced.with(Serdes.String(), traceSerde));
+
+    final Properties config = new Properties();
+    config.put(StreamsConfig.APPLICATION_ID_CONFIG, "test");
+    config.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:1234");
+
+    this.testDriver = new TopologyTestDriver(builder.build(), config);
+    this.inputTopic = this.testDriver.createInputTopic("in", Serdes.String().serializer(),
+        spanSerde.serializer());
+    this.outputTopic = this.testDriver.createOutputTopic("out", Serdes.String().deserializer(),
+        traceSerde.deserializer());
+  }
+
+  @AfterEach
+  void afterEach() {
+    this.testDriver.close();
+  }
+
+  @Test
+  void emitsTraceOnceWindowCloses() {
+    final Trace trace = TraceHelper.linearTrace(5);
+    long ts = 1;
+    for (final Span s : trace.getSpanList()) {
+      this.inputTopic.pipeInput("a", s, ts++);
+    }
+    this.inputTopic.pipeInput("b", TraceHelper.randomSpan(), WINDOW + GRACE - 1);
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    this.inputTopic.pipeInput("b", TraceHelper.randomSpan(), WINDOW + GRACE);
+    final KeyValue<String, Trace> emitted = this.outputTopic.readKeyValue();
+    Assertions.assertEquals("a", emitted.key);
+    Assertions.assertEquals(5, emitted.value.getSpanList().size());
+    Assertions.assertEquals(trace.getStartTimeEpochMilli(), emitted.value.getStartTimeEpochMilli());
+    Assertions.assertEquals(trace.getEndTimeEpochMilli(), emitted.value.getEndTimeEpochMilli());
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    // Spans of emitted traces are removed from the store
+    final KeyValueStore<String, Span> spans =
+        this.testDriver.getKeyValueStore(TraceAssemblyStore.SPAN_STORE);
+    Assertions.assertEquals(2, spans.approximateNumEntries());
+  }
+
+  @Test
+  void splitsTraceAcrossWindows() {
+    this.inputTopic.pipeInput("a", TraceHelper.randomSpan(), 1);
+    this.inputTopic.pipeInput("a", TraceHelper.randomSpan(), WINDOW + 1);
+    this.inputTopic.pipeInput("z", TraceHelper.randomSpan(), 3 * WINDOW);
+
+    final List<KeyValue<String, Trace>> emitted = this.outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(2, emitted.size());
+    Assertions.assertEquals(1, emitted.get(0).value.getSpanList().size());
+    Assertions.assertEquals(1, emitted.get(1).value.getSpanList().size());
+  }
+
+  @Test
+  void keepsWindowOfTraceWhenPolicyChanges() {
+    final AdaptiveWindowPolicy windowPolicy =
+        new AdaptiveWindowPolicy(WINDOW, GRACE, WINDOW, 10 * WINDOW, GRACE, GRACE, 0.99);
+    this.createDriver(windowPolicy);
+
+    this.inputTopic.pipeInput("a", TraceHelper.randomSpan("a", "tok"), 1);
+
+    // Enough samples of long traces to enlarge the windows of the landscape
+    for (int i = 0; i < 200; i++) {
+      windowPolicy.recordDuration("tok", WINDOW);
+    }
+    Assertions.assertTrue(windowPolicy.windowSize("tok") > WINDOW);
+
+    // Still added to the window opened by the first span
+    this.inputTopic.pipeInput("a", TraceHelper.randomSpan("a", "tok"), WINDOW - 1);
+    this.inputTopic.pipeInput("z", TraceHelper.randomSpan("z", "tok"), WINDOW + GRACE);
+
+    final List<KeyValue<String, Trace>> emitted = this.outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(1, emitted.size());
+    Assertions.assertEquals("a", emitted.get(0).key);
+    Assertions.assertEquals(2, emitted.get(0).value.getSpanList().size());
+  }
+
+  @Test
+  void dropsSpansOfClosedWindows() {
+    this.inputTopic.pipeInput("z", TraceHelper.randomSpan(), 3 * WINDOW);
+    this.inputTopic.pipeInput("late", TraceHelper.randomSpan(), 1);
+    this.inputTopic.pipeInput("z", TraceHelper.randomSpan(), 5 * WINDOW);
+
+    final List<KeyValue<String, Trace>> emitted = this.outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(1, emitted.size());
+    Assertions.assertEquals("z", emitted.get(0).key);
+  }
+
+  @Test
+  void advancesStreamTimeOfIdlePartition() {
+    this.inputTopic.pipeInput("a", TraceHelper.randomSpan(), 1);
+
+    // Not idle yet
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(IDLE_TIMEOUT - 1000));
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    // Idle, but the window is still open w.r.t. the advanced stream time
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(2000));
+    Assertions.assertTrue(this.outputTopic.isEmpty());
+
+    this.testDriver.advanceWallClockTime(Duration.ofMillis(WINDOW));
+    final List<KeyValue<String, Trace>> emitted = this.outputTopic.readKeyValuesToList();
+    Assertions.assertEquals(1, emitted.size());
+    Assertions.assertEquals("a", emitted.get(0).key);
+    Assertions.assertEquals(1,
+        this.meterRegistry.get("explorviz.trace.idle.wait").timer().count());
+  }
+
+}
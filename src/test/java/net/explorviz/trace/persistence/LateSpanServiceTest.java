@@ -0,0 +1,126 @@
+package net.explorviz.trace.persistence;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import net.explorviz.avro.Span;
+import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.persistence.dao.Trace;
+import net.explorviz.trace.service.TraceAggregator;
+import net.explorviz.trace.service.TraceConverter;
+import net.explorviz.trace.service.reduction.TraceReduction;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.AdditionalAnswers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+class LateSpanServiceTest {
+
+  private static final String TOKEN = "tok";
+  private static final String TRACE_ID = "tid";
+
+  private SimpleMeterRegistry meterRegistry;
+  private ReactiveTraceService reactiveTraceService;
+  private LateSpanService service;
+
+  @BeforeEach
+  void setUp() {
+    this.meterRegistry = new SimpleMeterRegistry();
+    this.reactiveTraceService = Mockito.mock(ReactiveTraceService.class);
+    Mockito.when(this.reactiveTraceService.insert(Mockito.any()))
+        .thenReturn(Uni.createFrom().voidItem());
+    Mockito.when(this.reactiveTraceService.delete(Mockito.any()))
+        .thenReturn(Uni.createFrom().voidItem());
+
+    final TraceReduction traceReduction = Mockito.mock(TraceReduction.class);
+    Mockito.when(traceReduction.reduce(Mockito.any()))
+        .then(AdditionalAnswers.returnsFirstArg());
+
+    this.service = new LateSpanService(this.meterRegistry);
+    this.service.reactiveTraceService = this.reactiveTraceService;
+    this.service.traceReduction = traceReduction;
+  }
+
+  private Span span(final long start, final long end) {
+    final Span span = TraceHelper.randomSpan(TRACE_ID, TOKEN);
+    span.setStartTimeEpochMilli(start);
+    span.setEndTimeEpochMilli(end);
+    return span;
+  }
+
+  private Trace persisted(final Span... spans) {
+    final TraceAggregator aggregator = new TraceAggregator();
+    final net.explorviz.avro.Trace trace = new net.explorviz.avro.Trace();
+    for (final Span span : spans) {
+      aggregator.aggregate(trace, span);
+    }
+    return TraceConverter.convertTraceToDao(trace);
+  }
+
+  private void persist(final Trace... fragments) {
+    Mockito.when(this.reactiveTraceService.getByTraceId(TOKEN, TRACE_ID))
+        .thenReturn(Multi.createFrom().items(fragments));
+  }
+
+  private double unstitched() {
+    return this.meterRegistry.get("explorviz.trace.late.unstitched").counter().count();
+  }
+
+  @Test
+  void mergesFragmentsAndDeletesStaleOnes() {
+    final Trace first = this.persisted(this.span(100, 200));
+    final Trace second = this.persisted(this.span(300, 400));
+    this.persist(first, second);
+
+    this.service.stitch(this.span(150, 350)).toCompletableFuture().join();
+
+    final ArgumentCaptor<Trace> merged = ArgumentCaptor.forClass(Trace.class);
+    Mockito.verify(this.reactiveTraceService).insert(merged.capture());
+    Assertions.assertEquals(3, merged.getValue().getSpanList().size());
+    Assertions.assertEquals(100, merged.getValue().getStartTime());
+    Assertions.assertEquals(400, merged.getValue().getEndTime());
+
+    // The merged trace replaces the row of the first fragment, the other row is stale
+    Mockito.verify(this.reactiveTraceService).delete(second);
+    Mockito.verify(this.reactiveTraceService, Mockito.never()).delete(first);
+    Assertions.assertEquals(0, this.unstitched());
+  }
+
+  @Test
+  void dropsSpansOfUnpersistedTraces() {
+    this.persist();
+
+    this.service.stitch(this.span(100, 200)).toCompletableFuture().join();
+
+    Mockito.verify(this.reactiveTraceService, Mockito.never()).insert(Mockito.any());
+    Assertions.assertEquals(1, this.unstitched());
+  }
+
+  @Test
+  void stitchesSpansOfTheSameTraceOneAfterAnother() {
+    this.persist(this.persisted(this.span(100, 200)));
+    final CompletableFuture<Void> firstInsert = new CompletableFuture<>();
+    Mockito.when(this.reactiveTraceService.insert(Mockito.any()))
+        .thenReturn(Uni.createFrom().completionStage(firstInsert))
+        .thenReturn(Uni.createFrom().voidItem());
+
+    final CompletionStage<Void> first = this.service.stitch(this.span(120, 150));
+    final CompletionStage<Void> second = this.service.stitch(this.span(130, 140));
+
+    // The second span must read the trace that includes the first one
+    Mockito.verify(this.reactiveTraceService, Mockito.times(1)).getByTraceId(TOKEN, TRACE_ID);
+    Assertions.assertFalse(second.toCompletableFuture().isDone());
+
+    firstInsert.complete(null);
+    first.toCompletableFuture().join();
+    second.toCompletableFuture().join();
+    Mockito.verify(this.reactiveTraceService, Mockito.times(2)).getByTraceId(TOKEN, TRACE_ID);
+    Mockito.verify(this.reactiveTraceService, Mockito.times(2)).insert(Mockito.any());
+  }
+
+}
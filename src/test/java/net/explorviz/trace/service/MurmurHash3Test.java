@@ -0,0 +1,26 @@
+package net.explorviz.trace.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class MurmurHash3Test {
+
+  private static String hex(final String input) {
+    final StringBuilder sb = new StringBuilder();
+    for (final byte b : MurmurHash3.hash128(input.getBytes(StandardCharsets.UTF_8))) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  @Test
+  void referenceValues() {
+    assertEquals("00000000000000000000000000000000", hex(""));
+    assertEquals("029bbd41b3a7d8cb191dae486a901e5b", hex("hello"));
+    assertEquals("6c1b07bc7bbc4be347939ac4a93c437a",
+        hex("The quick brown fox jumps over the lazy dog"));
+  }
+
+}
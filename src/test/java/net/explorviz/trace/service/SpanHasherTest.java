@@ -0,0 +1,85 @@
+package net.explorviz.trace.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import net.explorviz.avro.Span;
+import net.explorviz.trace.helper.TraceHelper;
+import org.junit.jupiter.api.Test;
+
+class SpanHasherTest {
+
+  private static String sha3(final Span span) throws NoSuchAlgorithmException {
+    final String input = String.join(";", span.getLandscapeToken(), span.getHostIpAddress(),
+        span.getAppInstanceId(), span.getFullyQualifiedOperationName().replace(".", ";"));
+    final byte[] hash = MessageDigest.getInstance("SHA3-256")
+        .digest(input.getBytes(StandardCharsets.UTF_8));
+    final StringBuilder sb = new StringBuilder();
+    for (final byte b : hash) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  @Test
+  void sha3IsCompatible() throws NoSuchAlgorithmException {
+    final SpanHasher hasher = new SpanHasher(SpanHashAlgorithm.SHA3_256, 10, false);
+    final Span span = TraceHelper.randomSpan();
+
+    assertEquals(sha3(span), hasher.hash(span));
+    // Memoized
+    assertEquals(sha3(span), hasher.hash(span));
+    assertEquals(sha3(span), HashHelper.createHash(span));
+  }
+
+  @Test
+  void boundedCacheStaysCorrect() throws NoSuchAlgorithmException {
+    final SpanHasher hasher = new SpanHasher(SpanHashAlgorithm.SHA3_256, 2, false);
+    for (int i = 0; i < 10; i++) {
+      final Span span = TraceHelper.randomSpan();
+      assertEquals(sha3(span), hasher.hash(span));
+    }
+  }
+
+  @Test
+  void trustsUpstreamHashCode() {
+    final Span span = TraceHelper.randomSpan();
+    span.setHashCode("upstream");
+
+    assertEquals("upstream",
+        new SpanHasher(SpanHashAlgorithm.MURMUR3_128, 10, true).hash(span));
+    assertNotEquals("upstream",
+        new SpanHasher(SpanHashAlgorithm.MURMUR3_128, 10, false).hash(span));
+  }
+
+  @Test
+  void binaryMatchesHex() {
+    final Span span = TraceHelper.randomSpan();
+    final SpanHasher hasher = new SpanHasher(SpanHashAlgorithm.MURMUR3_128, 10, false);
+
+    final ByteBuffer binary = hasher.hashBinary(span);
+    assertEquals(16, binary.remaining());
+    assertEquals(hasher.hash(span), HashHelper.toHex(binary));
+    assertArrayEquals(HashHelper.fromHex(hasher.hash(span)), binary.array());
+
+    final Span copy = Span.newBuilder(span).setHashCode("").setHashCodeBinary(binary).build();
+    span.setHashCode(hasher.hash(span));
+    assertTrue(HashHelper.sameHash(copy, span));
+  }
+
+  @Test
+  void ignoresDefaultHashCode() {
+    final Span span = TraceHelper.randomSpan();
+    final SpanHasher hasher = new SpanHasher(SpanHashAlgorithm.MURMUR3_128, 10, true);
+
+    assertEquals(32, hasher.hash(span).length());
+    assertEquals(HashHelper.createHash(span), HashHelper.hashOf(span));
+  }
+
+}
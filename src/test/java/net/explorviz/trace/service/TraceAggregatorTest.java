@@ -72,11 +72,122 @@ class TraceAggregatorTest {
     assertEquals(aggregate.getSpanList().get(1), newLast, "Trace does not contain first span");
   }
 
+  @Test
+  void summarizeMatchesAggregate() {
+    final Trace trace = TraceHelper.linearTrace(10);
+
+    Trace summary = new Trace();
+    for (final Span s : trace.getSpanList()) {
+      summary = this.aggregator.summarize(summary, s);
+    }
+
+    assertTrue(summary.getSpanList().isEmpty(), "Summary must not contain spans");
+    assertEquals(trace.getStartTimeEpochMilli(), summary.getStartTimeEpochMilli(),
+        "Start time does not match");
+    assertEquals(trace.getEndTimeEpochMilli(), summary.getEndTimeEpochMilli(),
+        "End time does not match");
+    assertEquals(trace.getDuration(), summary.getDuration(), "Duration does not match");
+  }
+
+  @Test
+  void capsSpansPerTrace() {
+    final TraceAggregator capped = new TraceAggregator(5, 0L, null);
+    final Trace trace = TraceHelper.linearTrace(8);
+
+    Trace aggregate = new Trace();
+    for (final Span s : trace.getSpanList()) {
+      aggregate = capped.aggregate(aggregate, s);
+    }
+
+    assertEquals(5, aggregate.getSpanList().size(), "Spans beyond the limit must not be stored");
+    assertEquals(3, aggregate.getDroppedSpanCount(), "Invalid amount of dropped spans");
+    assertEquals(trace.getEndTimeEpochMilli(), aggregate.getEndTimeEpochMilli(),
+        "Dropped spans must still adjust the times");
+  }
+
+  @Test
+  void capsBytesPerTrace() {
+    final Trace trace = TraceHelper.linearTrace(8);
+    final long spanBytes = TraceSizeEstimator.estimate(trace.getSpanList().get(0));
+    final TraceAggregator capped = new TraceAggregator(0, 3 * spanBytes, null);
+
+    Trace aggregate = new Trace();
+    for (final Span s : trace.getSpanList()) {
+      aggregate = capped.aggregate(aggregate, s);
+    }
+
+    assertTrue(TraceSizeEstimator.estimate(aggregate) <= 3 * spanBytes,
+        "Trace exceeds the byte limit");
+    assertEquals(8, aggregate.getSpanList().size() + aggregate.getDroppedSpanCount(),
+        "Every span must be stored or counted");
+
+    // A running estimate yields the same trace
+    final TraceAggregate running = new TraceAggregate();
+    for (final Span s : trace.getSpanList()) {
+      capped.aggregate(running, s);
+    }
+    assertEquals(aggregate.getSpanList(), running.getTrace().getSpanList(),
+        "Running estimate must cap the same spans");
+    assertEquals(TraceSizeEstimator.estimate(running.getTrace()), running.getEstimatedBytes(),
+        "Running estimate does not match the trace");
+  }
+
+  @Test
+  void shedsSpansWhileMemoryIsExhausted() {
+    final Trace trace = TraceHelper.linearTrace(8);
+    final AggregateMemory memory = new AggregateMemory();
+    memory.shedBytes = 1000;
+    final TraceAggregator shedding = new TraceAggregator(0, 0L, memory);
+
+    Trace aggregate = new Trace();
+    for (final Span s : trace.getSpanList().subList(0, 4)) {
+      aggregate = shedding.aggregate(aggregate, s);
+    }
+    // Held by the aggregates of other traces
+    memory.add(1001);
+    for (final Span s : trace.getSpanList().subList(4, 8)) {
+      aggregate = shedding.aggregate(aggregate, s);
+    }
+
+    assertEquals(4, aggregate.getSpanList().size(), "Spans must be shed above the limit");
+    assertEquals(4, aggregate.getDroppedSpanCount(), "Shed spans must be counted");
+    assertEquals(4, memory.shedSpans(), "Shed spans must be counted in the memory");
+    assertEquals(trace.getEndTimeEpochMilli(), aggregate.getEndTimeEpochMilli(),
+        "Shed spans must still adjust the times");
+
+    // Once the aggregates are released, spans are stored again
+    memory.release(1001);
+    aggregate = shedding.aggregate(aggregate, TraceHelper.randomSpan());
+    assertEquals(5, aggregate.getSpanList().size(), "Spans must be stored below the limit");
+  }
+
+  @Test
+  void dropsDuplicateSpans() {
+    // Small traces are scanned, large ones are checked against a filter first
+    for (final int exactLimit : new int[] {1000, 4}) {
+      final SpanDeduplicator deduplicator = new SpanDeduplicator(exactLimit);
+      final TraceAggregator deduplicating = new TraceAggregator(0, 0L, -1, null, deduplicator);
+      final Trace trace = TraceHelper.linearTrace(50);
+
+      Trace aggregate = new Trace();
+      for (final Span s : trace.getSpanList()) {
+        aggregate = deduplicating.aggregate(aggregate, s);
+        // Replayed right away and once more at the end
+        aggregate = deduplicating.aggregate(aggregate, Span.newBuilder(s).build());
+      }
+      for (final Span s : trace.getSpanList()) {
+        aggregate = deduplicating.aggregate(aggregate, s);
+      }
+
+      assertEquals(50, aggregate.getSpanList().size(), "Duplicates must not be stored");
+      assertEquals(100, deduplicator.duplicates(), "Invalid amount of duplicates");
+      assertEquals(0, aggregate.getDroppedSpanCount(), "Duplicates are no dropped spans");
+    }
+  }
 
 
   private long toTimestamp(final Instant instant) {
     return instant.toEpochMilli();
   }
 
-
 }
@@ -0,0 +1,46 @@
+package net.explorviz.trace.service;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import org.junit.jupiter.api.Test;
+
+class TraceCompletenessTest {
+
+  @Test
+  void connectedTraceIsComplete() {
+    final Trace trace = TraceHelper.linearTrace(10);
+    assertTrue(TraceCompleteness.isComplete(trace));
+  }
+
+  @Test
+  void traceWithoutRootIsIncomplete() {
+    final Trace trace = TraceHelper.linearTrace(10);
+    trace.getSpanList().remove(0);
+    assertFalse(TraceCompleteness.isComplete(trace));
+  }
+
+  @Test
+  void traceWithMissingParentIsIncomplete() {
+    final Trace trace = TraceHelper.linearTrace(10);
+    // Remove a span in the middle of the chain
+    trace.getSpanList().remove(5);
+    assertFalse(TraceCompleteness.isComplete(trace));
+  }
+
+  @Test
+  void singleRootIsComplete() {
+    final Span root = TraceHelper.randomSpan("tid", "tok", "");
+    final Trace trace = new TraceAggregator().aggregate(new Trace(), root);
+    assertTrue(TraceCompleteness.isComplete(trace));
+  }
+
+  @Test
+  void emptyTraceIsIncomplete() {
+    assertFalse(TraceCompleteness.isComplete(new Trace()));
+  }
+
+}
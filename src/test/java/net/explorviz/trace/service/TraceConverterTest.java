@@ -1,7 +1,9 @@
 package net.explorviz.trace.service;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import net.explorviz.avro.Span;
@@ -84,5 +86,30 @@ public class TraceConverterTest {
     assertEquals(expected, result);
   }
 
+  @Test
+  void testBinaryHashCodeConversion() {
+
+    final net.explorviz.avro.Trace testObject = TraceHelper.randomTrace(1);
+    final Span testObjectSpan = testObject.getSpanList().get(0);
+    final ByteBuffer hash = ByteBuffer.wrap(HashHelper.fromHex("00ff10ab"));
+    testObjectSpan.setHashCodeBinary(hash);
+
+    final SpanDynamic result = TraceConverter.convertTraceToDao(testObject).getSpanList().get(0);
+
+    assertNull(result.getHashCode());
+    assertEquals(hash, result.getHashCodeBinary());
+    assertEquals("00ff10ab", HashHelper.hashOf(testObjectSpan));
+  }
+
+  @Test
+  void testDaoRoundTrip() {
+
+    final Trace stored = TraceConverter.convertTraceToDao(TraceHelper.randomTrace(5));
+
+    final net.explorviz.avro.Trace converted = TraceConverter.convertDaoToTrace(stored);
+
+    assertEquals(5, converted.getSpanList().size());
+    assertEquals(stored, TraceConverter.convertTraceToDao(converted));
+  }
 
 }
@@ -0,0 +1,99 @@
+package net.explorviz.trace.service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TraceDeduplicatorTest {
+
+  /**
+   * Copies a trace with new span ids and the spans in reverse order.
+   */
+  private static Trace renamed(final Trace trace, final String traceId, final long duration) {
+    final Map<String, String> ids = new HashMap<>();
+    for (final Span span : trace.getSpanList()) {
+      ids.put(span.getSpanId(), traceId + "-" + ids.size());
+    }
+    final List<Span> spans = new ArrayList<>();
+    for (final Span span : trace.getSpanList()) {
+      spans.add(Span.newBuilder(span).setTraceId(traceId).setSpanId(ids.get(span.getSpanId()))
+          .setParentSpanId(ids.getOrDefault(span.getParentSpanId(), "")).build());
+    }
+    Collections.reverse(spans);
+    return Trace.newBuilder(trace).setTraceId(traceId).setDuration(duration).setSpanList(spans)
+        .build();
+  }
+
+  @Test
+  void identicalCallTreesShareFingerprint() {
+    final Trace trace = TraceHelper.randomTrace(10);
+    Assertions.assertEquals(TraceShape.callTreeFingerprint(trace),
+        TraceShape.callTreeFingerprint(renamed(trace, "other", 10)));
+  }
+
+  @Test
+  void differentParentsChangeFingerprint() {
+    final Trace trace = TraceHelper.linearTrace(4);
+    final List<Span> spans = new ArrayList<>(trace.getSpanList());
+    // Call the last method from the root instead of its caller
+    spans.set(3, Span.newBuilder(spans.get(3)).setParentSpanId(spans.get(0).getSpanId()).build());
+    final Trace moved = Trace.newBuilder(trace).setSpanList(spans).build();
+
+    Assertions.assertNotEquals(TraceShape.callTreeFingerprint(trace),
+        TraceShape.callTreeFingerprint(moved));
+  }
+
+  @Test
+  void duplicateSpansKeepFingerprint() {
+    final Trace trace = TraceHelper.linearTrace(30);
+    // Every span of the chain delivered twice
+    final List<Span> spans = new ArrayList<>(trace.getSpanList());
+    spans.addAll(trace.getSpanList());
+    final Trace duplicated = Trace.newBuilder(trace).setSpanList(spans).build();
+
+    Assertions.assertTimeoutPreemptively(Duration.ofSeconds(1),
+        () -> Assertions.assertEquals(TraceShape.callTreeFingerprint(trace),
+            TraceShape.callTreeFingerprint(duplicated)));
+  }
+
+  @Test
+  void mergesCountsAndDurations() {
+    final Trace first = TraceHelper.randomTrace(5);
+    final Trace representative = TraceDeduplicator.represent(renamed(first, "a", 10));
+    TraceDeduplicator.merge(representative, renamed(first, "b", 30));
+    TraceDeduplicator.merge(representative, renamed(first, "c", 20));
+
+    Assertions.assertEquals("a", representative.getTraceId());
+    Assertions.assertEquals(5, representative.getSpanList().size());
+    Assertions.assertEquals(3, representative.getTraceCount());
+    Assertions.assertEquals(3, representative.getOverallRequestCount());
+    Assertions.assertEquals(10, representative.getMinDuration());
+    Assertions.assertEquals(20, representative.getAvgDuration());
+    Assertions.assertEquals(30, representative.getMaxDuration());
+  }
+
+  @Test
+  void mergesRepresentativesByTheirCounts() {
+    final Trace trace = TraceHelper.randomTrace(3);
+    final Trace representative = TraceDeduplicator.represent(renamed(trace, "a", 10));
+    final Trace other = TraceDeduplicator.represent(renamed(trace, "b", 40));
+    TraceDeduplicator.merge(other, renamed(trace, "c", 40));
+    TraceDeduplicator.merge(other, renamed(trace, "d", 40));
+
+    TraceDeduplicator.merge(representative, other);
+
+    Assertions.assertEquals(4, representative.getTraceCount());
+    Assertions.assertEquals(10, representative.getMinDuration());
+    Assertions.assertEquals(32, representative.getAvgDuration());
+    Assertions.assertEquals(40, representative.getMaxDuration());
+  }
+
+}
@@ -0,0 +1,73 @@
+package net.explorviz.trace.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import net.explorviz.trace.helper.TraceHelper;
+import net.explorviz.trace.persistence.dao.SpanDynamic;
+import net.explorviz.trace.persistence.dao.Trace;
+import net.explorviz.trace.persistence.dao.TraceSegment;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class TraceSegmenterTest {
+
+  @Test
+  void splitsAndMergesSegments() {
+    final Trace trace = TraceConverter.convertTraceToDao(TraceHelper.randomTrace(25));
+    final List<SpanDynamic> spans = new ArrayList<>(trace.getSpanList());
+
+    final List<TraceSegment> segments = TraceSegmenter.split(trace, 10);
+
+    Assertions.assertEquals(3, trace.getSegmentCount());
+    Assertions.assertEquals(10, trace.getSpanList().size());
+    Assertions.assertEquals(2, segments.size());
+    Assertions.assertEquals(1, segments.get(0).getSegment());
+    Assertions.assertEquals(10, segments.get(0).getSpanList().size());
+    Assertions.assertEquals(5, segments.get(1).getSpanList().size());
+    for (final TraceSegment segment : segments) {
+      Assertions.assertEquals(trace.getLandscapeToken(), segment.getLandscapeToken());
+      Assertions.assertEquals(trace.getTraceId(), segment.getTraceId());
+      Assertions.assertEquals(trace.getStartTime(), segment.getStartTime());
+    }
+
+    // Segments may be read in any order
+    final List<TraceSegment> reversed = new ArrayList<>(segments);
+    Collections.reverse(reversed);
+    Assertions.assertEquals(spans, TraceSegmenter.merge(trace, reversed).getSpanList());
+  }
+
+  @Test
+  void ignoresStaleSegments() {
+    final Trace previous = TraceConverter.convertTraceToDao(TraceHelper.randomTrace(25));
+    final List<TraceSegment> stale = TraceSegmenter.split(previous, 10);
+
+    // Persisted again with fewer segments, the third segment of the previous version remains
+    final Trace trace = TraceConverter.convertTraceToDao(TraceHelper.randomTrace(15));
+    final List<SpanDynamic> spans = new ArrayList<>(trace.getSpanList());
+    final List<TraceSegment> segments = new ArrayList<>(TraceSegmenter.split(trace, 10));
+    segments.add(stale.get(1));
+
+    Assertions.assertEquals(2, trace.getSegmentCount());
+    Assertions.assertEquals(spans, TraceSegmenter.merge(trace, segments).getSpanList());
+  }
+
+  @Test
+  void keepsSmallTraces() {
+    final Trace trace = TraceConverter.convertTraceToDao(TraceHelper.randomTrace(10));
+    trace.setSegmentCount(3);
+
+    Assertions.assertTrue(TraceSegmenter.split(trace, 10).isEmpty());
+    Assertions.assertEquals(0, trace.getSegmentCount());
+    Assertions.assertEquals(10, trace.getSpanList().size());
+  }
+
+  @Test
+  void disabledSegmentation() {
+    final Trace trace = TraceConverter.convertTraceToDao(TraceHelper.randomTrace(25));
+
+    Assertions.assertTrue(TraceSegmenter.split(trace, 0).isEmpty());
+    Assertions.assertEquals(25, trace.getSpanList().size());
+  }
+
+}
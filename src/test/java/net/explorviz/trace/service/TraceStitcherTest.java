@@ -0,0 +1,90 @@
+package net.explorviz.trace.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.List;
+import net.explorviz.avro.Span;
+import net.explorviz.avro.Trace;
+import net.explorviz.trace.helper.TraceHelper;
+import org.junit.jupiter.api.Test;
+
+class TraceStitcherTest {
+
+  private static final String TEST_TRACE_ID = "tid";
+  private static final String TEST_TOKEN = "tok";
+
+  private Span span(final long start, final long end) {
+    final Span span = TraceHelper.randomSpan(TEST_TRACE_ID, TEST_TOKEN);
+    span.setStartTimeEpochMilli(start);
+    span.setEndTimeEpochMilli(end);
+    return span;
+  }
+
+  private Trace fragment(final Span... spans) {
+    final TraceAggregator aggregator = new TraceAggregator();
+    final Trace trace = new Trace();
+    for (final Span span : spans) {
+      aggregator.aggregate(trace, span);
+    }
+    return trace;
+  }
+
+  @Test
+  void mergesFragmentsAndLateSpan() {
+    final Trace first = this.fragment(this.span(100, 200), this.span(150, 180));
+    final Trace second = this.fragment(this.span(300, 400));
+    final Span late = this.span(50, 120);
+
+    final Trace merged = TraceStitcher.stitch(List.of(first, second), List.of(late));
+
+    assertEquals(4, merged.getSpanList().size());
+    assertEquals(TEST_TOKEN, merged.getLandscapeToken());
+    assertEquals(TEST_TRACE_ID, merged.getTraceId());
+    assertEquals(50, merged.getStartTimeEpochMilli());
+    assertEquals(400, merged.getEndTimeEpochMilli());
+    assertEquals(350, merged.getDuration());
+  }
+
+  @Test
+  void keepsSpansOnce() {
+    final Span span = this.span(100, 200);
+    final Trace stored = this.fragment(span);
+
+    final Trace merged =
+        TraceStitcher.stitch(List.of(stored), List.of(Span.newBuilder(span).build()));
+
+    assertEquals(1, merged.getSpanList().size());
+  }
+
+  @Test
+  void createsTraceFromLateSpanAlone() {
+    final Span late = this.span(100, 200);
+
+    final Trace merged = TraceStitcher.stitch(List.of(), List.of(late));
+
+    assertEquals(List.of(late), merged.getSpanList());
+    assertEquals(100, merged.getDuration());
+  }
+
+  @Test
+  void keepsCountsOfRepresentedTraces() {
+    final Trace first = this.fragment(this.span(100, 200));
+    final Trace second = this.fragment(this.span(300, 400));
+    // Merged with two identical traces
+    second.setTraceCount(3);
+    second.setOverallRequestCount(3);
+    second.setMinDuration(80);
+    second.setAvgDuration(100);
+    second.setMaxDuration(120);
+
+    final Trace merged =
+        TraceStitcher.stitch(List.of(first, second), List.of(this.span(150, 180)));
+
+    assertEquals(3, merged.getTraceCount());
+    assertEquals(3, merged.getOverallRequestCount());
+    assertEquals(80, merged.getMinDuration());
+    assertEquals(100, merged.getAvgDuration());
+    assertEquals(120, merged.getMaxDuration());
+  }
+
+}